@@ -0,0 +1,13 @@
+package android.media;
+
+/**
+ * Stub of the Android class, for benchmarks on a plain JVM.
+ */
+public final class MediaCodec {
+    public static final int BUFFER_FLAG_KEY_FRAME = 1;
+    public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    private MediaCodec() {
+    }
+}
@@ -0,0 +1,14 @@
+package android.system;
+
+/**
+ * Stub of the Android class, for benchmarks on a plain JVM.
+ */
+public final class ErrnoException extends Exception {
+
+    public final int errno;
+
+    public ErrnoException(String functionName, int errno) {
+        super(functionName);
+        this.errno = errno;
+    }
+}
@@ -0,0 +1,14 @@
+package android.system;
+
+import java.io.FileDescriptor;
+
+/**
+ * Stub of the Android class, for benchmarks on a plain JVM: the space is not reserved.
+ */
+public final class Os {
+    private Os() {
+    }
+
+    public static void posix_fallocate(FileDescriptor fd, long offset, long length) throws ErrnoException {
+    }
+}
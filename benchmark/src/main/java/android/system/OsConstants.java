@@ -0,0 +1,11 @@
+package android.system;
+
+/**
+ * Stub of the Android class, for benchmarks on a plain JVM.
+ */
+public final class OsConstants {
+    public static final int ENOSPC = 28;
+
+    private OsConstants() {
+    }
+}
@@ -0,0 +1,30 @@
+package android.view;
+
+/**
+ * Stub of the Android class, for benchmarks on a plain JVM.
+ */
+public final class MotionEvent {
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int ACTION_MOVE = 2;
+    public static final int ACTION_POINTER_DOWN = 5;
+    public static final int ACTION_POINTER_UP = 6;
+    public static final int ACTION_POINTER_INDEX_SHIFT = 8;
+
+    public static final int TOOL_TYPE_FINGER = 1;
+
+    private MotionEvent() {
+    }
+
+    public static final class PointerProperties {
+        public int id;
+        public int toolType;
+    }
+
+    public static final class PointerCoords {
+        public float x;
+        public float y;
+        public float pressure;
+        public float size;
+    }
+}
@@ -0,0 +1,123 @@
+package com.genymobile.scrcpy;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the control messages received from the clients, in the binary format (desktop client, or web client binary frames) and
+ * from JSON (web client text frames).
+ * <p>
+ * The "parseJsonTouchEventViaMap" variant is the former JSON path, which deserialized each message into a {@code Map<String, String>}
+ * before converting the values.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ControlMessageBenchmark {
+
+    private static final int ACTION_MOVE = 2;
+
+    private final ControlMessageReader reader = new ControlMessageReader();
+    private final ControlMessageReaderJson jsonReader = new ControlMessageReaderJson();
+    private final ObjectReader mapReader = new ObjectMapper().readerFor(Map.class);
+
+    private ByteArrayInputStream touchEventInput;
+    private ByteArrayInputStream textEventInput;
+    private ByteBuffer touchEventFrame;
+    private String touchEventJson;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(ControlMessage.TYPE_INJECT_TOUCH_EVENT);
+        dos.writeByte(ACTION_MOVE);
+        dos.writeLong(-42); // pointer id
+        dos.writeInt(100);
+        dos.writeInt(200);
+        dos.writeShort(1080);
+        dos.writeShort(1920);
+        dos.writeShort(0xffff); // pressure
+        dos.writeInt(0); // buttons
+        touchEventInput = new ByteArrayInputStream(bos.toByteArray());
+        touchEventFrame = ByteBuffer.wrap(bos.toByteArray());
+
+        bos.reset();
+        dos.writeByte(ControlMessage.TYPE_INJECT_TEXT);
+        byte[] text = "hello, world".getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(text.length);
+        dos.write(text);
+        textEventInput = new ByteArrayInputStream(bos.toByteArray());
+
+        touchEventJson = "{\"type\":\"" + ControlMessage.TYPE_INJECT_TOUCH_EVENT + "\",\"action\":\"" + ACTION_MOVE + "\",\"pointerId\":\"-42\","
+                + "\"positionX\":\"100\",\"positionY\":\"200\",\"width\":\"1080\",\"height\":\"1920\",\"pressure\":\"65535\",\"buttons\":\"0\"}";
+    }
+
+    private ControlMessage readNext(ByteArrayInputStream input) throws IOException {
+        input.reset();
+        reader.readFrom(input);
+        return reader.next();
+    }
+
+    @Benchmark
+    public ControlMessage nextTouchEvent() throws IOException {
+        return readNext(touchEventInput);
+    }
+
+    @Benchmark
+    public ControlMessage nextTextEvent() throws IOException {
+        return readNext(textEventInput);
+    }
+
+    @Benchmark
+    public ControlMessage parseBinaryFrameTouchEvent() {
+        // a websocket binary frame, parsed in place
+        touchEventFrame.rewind();
+        return reader.parseEvent(touchEventFrame);
+    }
+
+    @Benchmark
+    public ControlMessage parseJsonTouchEvent() throws IOException {
+        return jsonReader.parseEvent(touchEventJson);
+    }
+
+    @Benchmark
+    public ControlMessage parseJsonTouchEventViaMap() throws IOException {
+        Map<String, String> msg = mapReader.readValue(touchEventJson);
+        int action = Integer.parseInt(msg.get("action"));
+        long pointerId = Long.parseLong(msg.get("pointerId"));
+        int x = Integer.parseInt(msg.get("positionX"));
+        int y = Integer.parseInt(msg.get("positionY"));
+        int screenWidth = Integer.parseInt(msg.get("width"));
+        int screenHeight = Integer.parseInt(msg.get("height"));
+        Position position = new Position(x, y, screenWidth, screenHeight);
+        int pressureInt = Integer.parseInt(msg.get("pressure"));
+        float pressure = pressureInt == 0xffff ? 1f : (pressureInt / 0x1p16f);
+        int buttons = Integer.parseInt(msg.get("buttons"));
+        return ControlMessage.createInjectTouchEvent(action, pointerId, position, pressure, buttons);
+    }
+}
@@ -0,0 +1,45 @@
+package com.genymobile.scrcpy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the messages sent to the clients.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeviceMessageBenchmark {
+
+    private final DeviceMessage clipboard = DeviceMessage.createClipboard("The quick brown fox jumps over the lazy dog");
+    private final DeviceMessage pushResponse = DeviceMessage.createPushResponse((short) 1, 0);
+    private final byte[] array = new byte[DeviceMessage.MAX_EVENT_SIZE];
+
+    @Benchmark
+    public byte[] writeClipboard() {
+        return clipboard.writeToByteArray(0);
+    }
+
+    @Benchmark
+    public byte[] writeClipboardToArray() {
+        clipboard.writeToByteArray(array);
+        return array;
+    }
+
+    @Benchmark
+    public byte[] writePushResponse() {
+        return pushResponse.writeToByteArray(0);
+    }
+}
@@ -0,0 +1,232 @@
+package com.genymobile.scrcpy;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Push of a large file through a loopback websocket, from the client messages to the file on disk.
+ * <p>
+ * With {@code ackWindow} set to 0, the client waits for the ack of each chunk before sending the next one, like the older clients. Otherwise,
+ * it keeps up to 2 ack windows in flight. The loopback has no latency, so {@code rttMs} delays the responses to simulate a real network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilePushBenchmark {
+
+    // "scrcpy_message"
+    private static final int MAGIC_LENGTH = 14;
+    private static final String FILE_NAME = "push.bin";
+
+    @Param({"67108864"})
+    private int fileSize;
+
+    @Param({"65536"})
+    private int chunkSize;
+
+    @Param({"0", "1048576", "8388608"})
+    private int ackWindow;
+
+    @Param({"0", "2"})
+    private int rttMs;
+
+    private File directory;
+    private FilePushHandler handler;
+    private WebSocketServer server;
+    private WebSocketClient client;
+    private ScheduledExecutorService network;
+    private final BlockingQueue<ByteBuffer> responses = new LinkedBlockingQueue<>();
+    private byte[] data;
+    private int checksum;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("push").toFile();
+        handler = new FilePushHandler(directory);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final ControlMessageReader reader = new ControlMessageReader();
+        server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0)) {
+            @Override
+            public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            }
+
+            @Override
+            public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+                handler.cancelAllForConnection(conn);
+            }
+
+            @Override
+            public void onMessage(WebSocket conn, String message) {
+            }
+
+            @Override
+            public void onMessage(WebSocket conn, ByteBuffer message) {
+                handler.handlePush(conn, reader.parseEvent(message));
+            }
+
+            @Override
+            public void onError(WebSocket conn, Exception ex) {
+                ex.printStackTrace();
+            }
+
+            @Override
+            public void onStart() {
+                started.countDown();
+            }
+        };
+        server.setReuseAddr(true);
+        server.start();
+        started.await();
+
+        client = new WebSocketClient(new URI("ws://127.0.0.1:" + server.getPort())) {
+            @Override
+            public void onOpen(ServerHandshake handshake) {
+            }
+
+            @Override
+            public void onMessage(String message) {
+            }
+
+            @Override
+            public void onMessage(final ByteBuffer bytes) {
+                bytes.position(MAGIC_LENGTH);
+                if (rttMs == 0) {
+                    responses.add(bytes);
+                    return;
+                }
+                network.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        responses.add(bytes);
+                    }
+                }, rttMs, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                ex.printStackTrace();
+            }
+        };
+        network = Executors.newSingleThreadScheduledExecutor();
+        client.connectBlocking();
+
+        data = new byte[fileSize];
+        for (int i = 0; i < fileSize; ++i) {
+            data[i] = (byte) i;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        checksum = (int) crc.getValue();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.closeBlocking();
+        server.stop();
+        handler.stop();
+        network.shutdown();
+        Files.deleteIfExists(new File(directory, FILE_NAME).toPath());
+        Files.delete(directory.toPath());
+    }
+
+    private ByteBuffer takeResponse() throws InterruptedException, IOException {
+        ByteBuffer response = responses.take();
+        if (response.get(response.position()) == DeviceMessage.TYPE_PUSH_RESPONSE && response.get(response.position() + 3) < 0) {
+            throw new IOException("Push failed: " + response.get(response.position() + 3));
+        }
+        return response;
+    }
+
+    @Benchmark
+    public void push() throws InterruptedException, IOException {
+        client.send(new byte[]{ControlMessage.TYPE_PUSH_FILE, 0, 0, ControlMessage.PUSH_STATE_NEW});
+        ByteBuffer newResponse = takeResponse();
+        short pushId = newResponse.getShort(newResponse.position() + 1);
+
+        byte[] name = FILE_NAME.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer start = ByteBuffer.allocate(14 + name.length);
+        start.put((byte) ControlMessage.TYPE_PUSH_FILE);
+        start.putShort(pushId);
+        start.put((byte) ControlMessage.PUSH_STATE_START);
+        start.putInt(fileSize);
+        start.putShort((short) name.length);
+        start.put(name);
+        start.putInt(ackWindow);
+        start.flip();
+        client.send(start);
+        takeResponse();
+
+        long acked = 0;
+        for (int offset = 0; offset < fileSize; offset += chunkSize) {
+            int length = Math.min(chunkSize, fileSize - offset);
+            ByteBuffer append = ByteBuffer.allocate(8 + length);
+            append.put((byte) ControlMessage.TYPE_PUSH_FILE);
+            append.putShort(pushId);
+            append.put((byte) ControlMessage.PUSH_STATE_APPEND);
+            append.putInt(length);
+            append.put(data, offset, length);
+            append.flip();
+            client.send(append);
+            if (ackWindow == 0) {
+                takeResponse();
+            } else {
+                while (offset + length - acked > 2L * ackWindow) {
+                    ByteBuffer progress = takeResponse();
+                    acked = progress.getLong(progress.position() + 3);
+                }
+            }
+        }
+
+        ByteBuffer finish = ByteBuffer.allocate(8);
+        finish.put((byte) ControlMessage.TYPE_PUSH_FILE);
+        finish.putShort(pushId);
+        finish.put((byte) ControlMessage.PUSH_STATE_FINISH);
+        finish.putInt(checksum);
+        finish.flip();
+        client.send(finish);
+        ByteBuffer response;
+        do {
+            // skip the remaining progress messages
+            response = takeResponse();
+        } while (response.get(response.position()) == DeviceMessage.TYPE_PUSH_PROGRESS);
+    }
+}
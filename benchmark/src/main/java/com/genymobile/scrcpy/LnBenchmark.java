@@ -0,0 +1,82 @@
+package com.genymobile.scrcpy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the logs on the hot paths, when their level is disabled (the default INFO threshold), compared to a baseline doing no logging.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LnBenchmark {
+
+    private static final Ln.MessageSupplier SUPPLIER = new Ln.MessageSupplier() {
+        @Override
+        public String get() {
+            return "Injecting input event";
+        }
+    };
+
+    // only the first message is logged
+    private final Ln.RateLimiter limiter = new Ln.RateLimiter(TimeUnit.DAYS.toMillis(1));
+
+    private int value;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Ln.initLogLevel(Ln.Level.INFO);
+    }
+
+    @Benchmark
+    public int baseline() {
+        return ++value;
+    }
+
+    @Benchmark
+    public int disabledConstant() {
+        Ln.v("Injecting input event");
+        return ++value;
+    }
+
+    @Benchmark
+    public int disabledConcatenation() {
+        // the message is built even if it is not logged
+        Ln.d("Set encoder bit rate to " + value);
+        return ++value;
+    }
+
+    @Benchmark
+    public int disabledGuardedConcatenation() {
+        if (Ln.isEnabled(Ln.Level.DEBUG)) {
+            Ln.d("Set encoder bit rate to " + value);
+        }
+        return ++value;
+    }
+
+    @Benchmark
+    public int disabledSupplier() {
+        Ln.v(SUPPLIER);
+        return ++value;
+    }
+
+    @Benchmark
+    public int rateLimitedSuppressed() {
+        Ln.w(limiter, "Ignore touch event, it was generated for a different device size");
+        return ++value;
+    }
+}
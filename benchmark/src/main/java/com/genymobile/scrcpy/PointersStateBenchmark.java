@@ -0,0 +1,76 @@
+package com.genymobile.scrcpy;
+
+import android.view.MotionEvent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pointer bookkeeping of the touch events injection, for a move of all the active pointers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PointersStateBenchmark {
+
+    @Param({"1", "5", "10"})
+    private int pointers;
+
+    private final PointersState pointersState = new PointersState();
+    private final MotionEvent.PointerProperties[] props = new MotionEvent.PointerProperties[PointersState.MAX_POINTERS];
+    private final MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[PointersState.MAX_POINTERS];
+    private final Point point = new Point(100, 200);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < PointersState.MAX_POINTERS; ++i) {
+            props[i] = new MotionEvent.PointerProperties();
+            coords[i] = new MotionEvent.PointerCoords();
+        }
+        for (int i = 0; i < pointers; ++i) {
+            pointersState.setPoint(pointersState.getPointerIndex(i), point.getX(), point.getY());
+        }
+    }
+
+    @Benchmark
+    public int getPointerIndexLast() {
+        // worst case of the lookup
+        return pointersState.getPointerIndex(pointers - 1);
+    }
+
+    @Benchmark
+    public int move() {
+        // what the controller does for each touch event
+        int index = pointersState.getPointerIndex(pointers - 1);
+        pointersState.setPoint(index, point.getX(), point.getY());
+        pointersState.setPressure(index, 1f);
+        return pointersState.update(props, coords);
+    }
+
+    @Benchmark
+    public int pointerUpDown() {
+        // the last finger is released, then touches the screen again
+        int index = pointersState.getPointerIndex(pointers - 1);
+        pointersState.setUp(index, true);
+        pointersState.update(props, coords);
+        index = pointersState.getPointerIndex(pointers - 1);
+        pointersState.setPoint(index, point.getX(), point.getY());
+        pointersState.setPressure(index, 1f);
+        return pointersState.update(props, coords);
+    }
+}
@@ -0,0 +1,138 @@
+package com.genymobile.scrcpy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping of the touch positions to the device coordinates, by several injection threads, while the screen info is concurrently replaced
+ * (rotation, video settings changes).
+ * <p>
+ * The "locked" group is the former implementation: a synchronized getter, then {@link Position#rotate(int)} and a new {@link Point} for
+ * each event. The "published" group reads a volatile reference to a precomputed {@link PositionMapper}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScreenInfoBenchmark {
+
+    private static final Size VIDEO_SIZE = new Size(720, 1280);
+    private static final Position POSITION = new Position(100, 200, 720, 1280);
+
+    // the fields of ScreenInfo used by the former mapping
+    private static final class LegacyScreenInfo {
+        private final int left;
+        private final int top;
+        private final int contentWidth;
+        private final int contentHeight;
+        private final Size unlockedVideoSize;
+        private final int reverseVideoRotation;
+
+        LegacyScreenInfo(int left, int top, int contentWidth, int contentHeight, Size unlockedVideoSize, int reverseVideoRotation) {
+            this.left = left;
+            this.top = top;
+            this.contentWidth = contentWidth;
+            this.contentHeight = contentHeight;
+            this.unlockedVideoSize = unlockedVideoSize;
+            this.reverseVideoRotation = reverseVideoRotation;
+        }
+    }
+
+    @State(Scope.Group)
+    public static class LockedDevice {
+        // two screen infos accepting the same client positions
+        private final LegacyScreenInfo[] infos = {
+                new LegacyScreenInfo(0, 0, 1080, 1920, VIDEO_SIZE, 0),
+                new LegacyScreenInfo(40, 60, 1000, 1800, VIDEO_SIZE, 0),
+        };
+        private LegacyScreenInfo screenInfo = infos[0];
+        private int next;
+
+        synchronized LegacyScreenInfo getScreenInfo() {
+            return screenInfo;
+        }
+
+        synchronized void rotate() {
+            next ^= 1;
+            screenInfo = infos[next];
+        }
+
+        Point getPhysicalPoint(Position position) {
+            LegacyScreenInfo info = getScreenInfo();
+            Size unlockedVideoSize = info.unlockedVideoSize;
+            Position devicePosition = position.rotate(info.reverseVideoRotation);
+            if (!unlockedVideoSize.equals(devicePosition.getScreenSize())) {
+                return null;
+            }
+            Point point = devicePosition.getPoint();
+            int x = info.left + point.getX() * info.contentWidth / unlockedVideoSize.getWidth();
+            int y = info.top + point.getY() * info.contentHeight / unlockedVideoSize.getHeight();
+            return new Point(x, y);
+        }
+    }
+
+    @State(Scope.Group)
+    public static class PublishedDevice {
+        private final PositionMapper[] mappers = {
+                new PositionMapper(0, 0, 1080, 1920, VIDEO_SIZE, 0),
+                new PositionMapper(40, 60, 1000, 1800, VIDEO_SIZE, 0),
+        };
+        private volatile PositionMapper mapper = mappers[0];
+        private int next;
+
+        void rotate() {
+            // single writer
+            next ^= 1;
+            mapper = mappers[next];
+        }
+
+        int getPhysicalX(Position position) {
+            PositionMapper m = mapper;
+            if (!m.accepts(position.getScreenSize())) {
+                return -1;
+            }
+            Point point = position.getPoint();
+            return m.mapX(point.getX(), point.getY()) + m.mapY(point.getX(), point.getY());
+        }
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(3)
+    public Point lockedTouch(LockedDevice device) {
+        return device.getPhysicalPoint(POSITION);
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(1)
+    public void lockedRotation(LockedDevice device) {
+        device.rotate();
+    }
+
+    @Benchmark
+    @Group("published")
+    @GroupThreads(3)
+    public int publishedTouch(PublishedDevice device) {
+        return device.getPhysicalX(POSITION);
+    }
+
+    @Benchmark
+    @Group("published")
+    @GroupThreads(1)
+    public void publishedRotation(PublishedDevice device) {
+        device.rotate();
+    }
+}
@@ -0,0 +1,47 @@
+package com.genymobile.scrcpy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small helpers called on the control and configuration paths.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilsBenchmark {
+
+    private final Position position = new Position(100, 200, 1080, 1920);
+    // multi-byte characters, so that the truncation must find a character boundary
+    private final byte[] utf8 = "aàéèçù€🙂 aàéèçù€🙂 aàéèçù€🙂 aàéèçù€🙂".getBytes(StandardCharsets.UTF_8);
+    private final String codecOptions = "profile=1,level:int=4096,bitrate-mode:long=1,repeat-previous-frame-after:float=0.5,name:string=x\\,y";
+
+    @Benchmark
+    public Position rotate() {
+        return position.rotate(1);
+    }
+
+    @Benchmark
+    public int getUtf8TruncationIndex() {
+        return StringUtils.getUtf8TruncationIndex(utf8, utf8.length - 3);
+    }
+
+    @Benchmark
+    public List<CodecOption> parseCodecOptions() {
+        return CodecOption.parse(codecOptions);
+    }
+}
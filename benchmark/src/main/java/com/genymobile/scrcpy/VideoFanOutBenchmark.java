@@ -0,0 +1,90 @@
+package com.genymobile.scrcpy;
+
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.Framedata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of sending one encoded packet to N websocket clients.
+ * <p>
+ * Each simulated client is represented by its socket output queue, as in {@code WebSocketImpl.outQueue}. The "perClient" variant frames the
+ * payload for each socket (what {@code WebSocket.send(ByteBuffer)} does), the "shared" variant frames it once into a {@link VideoPacket}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VideoFanOutBenchmark {
+
+    @Param({"1", "10", "50"})
+    private int clients;
+
+    // a 1080p60 stream at 8 Mbps produces packets of about 16 KB, key frames are much bigger
+    @Param({"16384", "131072"})
+    private int packetSize;
+
+    private final Draft draft = new Draft_6455();
+    private ByteBuffer codecBuffer;
+    private Queue<ByteBuffer>[] outQueues;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        codecBuffer = ByteBuffer.allocateDirect(packetSize);
+        outQueues = new Queue[clients];
+        for (int i = 0; i < clients; ++i) {
+            outQueues[i] = new ArrayDeque<>();
+        }
+    }
+
+    private void flush() {
+        // simulate the sockets writing their queues
+        for (Queue<ByteBuffer> outQueue : outQueues) {
+            outQueue.clear();
+        }
+    }
+
+    @Benchmark
+    public void perClient() {
+        for (Queue<ByteBuffer> outQueue : outQueues) {
+            List<Framedata> frames = draft.createFrames(codecBuffer.duplicate(), false);
+            for (Framedata frame : frames) {
+                outQueue.add(draft.createBinaryFrame(frame));
+            }
+        }
+        flush();
+    }
+
+    @Benchmark
+    public void shared() {
+        VideoPacket packet = VideoPacket.copyOf(codecBuffer.duplicate(), 0);
+        for (Queue<ByteBuffer> outQueue : outQueues) {
+            outQueue.add(packet.retain().getFrame());
+        }
+        flush();
+        for (int i = 0; i < clients; ++i) {
+            packet.release();
+        }
+        packet.release();
+    }
+}
@@ -0,0 +1,54 @@
+package com.genymobile.scrcpy;
+
+import android.graphics.Rect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the video settings (sent by the clients to change the stream parameters).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VideoSettingsBenchmark {
+
+    private VideoSettings videoSettings;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        videoSettings = new VideoSettings();
+        videoSettings.setBitRate(8000000);
+        videoSettings.setMaxFps(60);
+        videoSettings.setBounds(new Size(1080, 1920));
+        videoSettings.setCrop(new Rect(0, 0, 1080, 1920));
+        videoSettings.setCodecOptions("profile=1,level=4096");
+        videoSettings.setEncoderName("OMX.qcom.video.encoder.avc");
+        bytes = videoSettings.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return videoSettings.toByteArray();
+    }
+
+    @Benchmark
+    public VideoSettings fromByteArray() {
+        return VideoSettings.fromByteArray(bytes);
+    }
+}
@@ -0,0 +1,82 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Additive-increase/multiplicative-decrease bit rate controller.
+ * <p>
+ * The stream is considered congested when the data waiting to be sent represents more than {@link #CONGESTION_DELAY_MS} at the current bit
+ * rate, or when packets wait longer than that before being handed over to the socket. On congestion, the bit rate is decreased by
+ * {@link #DECREASE_FACTOR} (and not decreased again until the backlog had a chance to drain). After {@link #INCREASE_SAMPLES} samples
+ * without congestion, it is increased by the configured step.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class AimdBitrateController implements BitrateController {
+
+    static final int CONGESTION_DELAY_MS = 200;
+    static final float DECREASE_FACTOR = 0.75f;
+    static final int INCREASE_SAMPLES = 4;
+    // samples ignored after a decrease, while the backlog drains
+    static final int HOLD_SAMPLES = 2;
+
+    private final int minBitRate;
+    private final int maxBitRate;
+    private final int step;
+
+    private int bitRate;
+    private int cleanSamples;
+    private int holdSamples;
+
+    /**
+     * @param bitRate    the initial bit rate
+     * @param minBitRate the floor
+     * @param maxBitRate the ceiling
+     * @param step       the additive increase
+     */
+    public AimdBitrateController(int bitRate, int minBitRate, int maxBitRate, int step) {
+        if (minBitRate <= 0 || minBitRate > maxBitRate) {
+            throw new IllegalArgumentException("Invalid bit rate range: [" + minBitRate + ", " + maxBitRate + "]");
+        }
+        if (step <= 0) {
+            throw new IllegalArgumentException("Invalid bit rate step: " + step);
+        }
+        this.minBitRate = minBitRate;
+        this.maxBitRate = maxBitRate;
+        this.step = step;
+        reset(bitRate);
+    }
+
+    @Override
+    public int update(long bufferedBytes, long sendLatencyMs) {
+        if (holdSamples > 0) {
+            --holdSamples;
+            return bitRate;
+        }
+
+        long bufferedMs = bufferedBytes * 8 * 1000 / bitRate;
+        if (bufferedMs > CONGESTION_DELAY_MS || sendLatencyMs > CONGESTION_DELAY_MS) {
+            cleanSamples = 0;
+            int newBitRate = Math.max(minBitRate, (int) (bitRate * DECREASE_FACTOR));
+            if (newBitRate != bitRate) {
+                Ln.d("Congestion (buffered=" + bufferedBytes + ", latency=" + sendLatencyMs + "ms), decrease bit rate to " + newBitRate);
+                bitRate = newBitRate;
+                holdSamples = HOLD_SAMPLES;
+            }
+        } else if (++cleanSamples >= INCREASE_SAMPLES) {
+            cleanSamples = 0;
+            bitRate = (int) Math.min(maxBitRate, (long) bitRate + step);
+        }
+        return bitRate;
+    }
+
+    @Override
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    @Override
+    public void reset(int bitRate) {
+        this.bitRate = Math.max(minBitRate, Math.min(maxBitRate, bitRate));
+        cleanSamples = 0;
+        holdSamples = 0;
+    }
+}
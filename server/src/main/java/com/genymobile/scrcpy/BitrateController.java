@@ -0,0 +1,28 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Policy adjusting the bit rate of a running encoder to the network conditions of its clients.
+ * <p>
+ * The controller is fed periodically with congestion samples, and returns the bit rate to apply. It does not depend on Android, so that it
+ * can be tested with synthetic traces.
+ */
+public interface BitrateController {
+
+    /**
+     * Feed a congestion sample.
+     *
+     * @param bufferedBytes  the number of bytes waiting to be sent to the most lagging client
+     * @param sendLatencyMs  the delay between the production of the last packet and its handover to the socket of the most lagging client
+     * @return the bit rate to apply, in bits per second
+     */
+    int update(long bufferedBytes, long sendLatencyMs);
+
+    int getBitRate();
+
+    /**
+     * Restart from the given bit rate (for example when the stream is reconfigured).
+     *
+     * @param bitRate the bit rate, in bits per second
+     */
+    void reset(int bitRate);
+}
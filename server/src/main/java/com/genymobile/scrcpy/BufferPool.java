@@ -0,0 +1,136 @@
+package com.genymobile.scrcpy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of byte buffers, by size classes (powers of two).
+ * <p>
+ * The encoded packets are copied out of the codec buffers at the frame rate; recycling their buffers avoids to allocate (and collect) several
+ * megabytes per second. Direct buffers are preferred: they can be written to a socket channel without an intermediate copy.
+ * <p>
+ * Requests larger than the biggest size class are not pooled. The total size of the free buffers is bounded, so that a burst (like a long
+ * GOP released at once) does not retain memory forever.
+ * <p>
+ * This class is thread-safe: buffers are typically acquired by the encoder thread and released by the sender threads.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 10; // 1 KB
+    private static final int DEFAULT_MAX_SIZE_SHIFT = 22; // 4 MB
+    private static final long DEFAULT_MAX_FREE_BYTES = 16 << 20; // 16 MB
+
+    private final boolean direct;
+    private final int maxSizeShift;
+    private final long maxFreeBytes;
+    private final ArrayDeque<ByteBuffer>[] freeBuffers;
+
+    private long freeBytes;
+    private long allocations;
+    private long reuses;
+
+    public BufferPool(boolean direct) {
+        this(direct, DEFAULT_MAX_SIZE_SHIFT, DEFAULT_MAX_FREE_BYTES);
+    }
+
+    /**
+     * @param direct       whether to allocate direct buffers
+     * @param maxSizeShift the log2 of the biggest size class
+     * @param maxFreeBytes the maximum total size of the free buffers kept in the pool
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(boolean direct, int maxSizeShift, long maxFreeBytes) {
+        if (maxSizeShift < MIN_SIZE_SHIFT || maxSizeShift > 30) {
+            throw new IllegalArgumentException("Invalid max size shift: " + maxSizeShift);
+        }
+        this.direct = direct;
+        this.maxSizeShift = maxSizeShift;
+        this.maxFreeBytes = maxFreeBytes;
+        freeBuffers = new ArrayDeque[maxSizeShift - MIN_SIZE_SHIFT + 1];
+        for (int i = 0; i < freeBuffers.length; ++i) {
+            freeBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    static int getSizeShift(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT) {
+            return MIN_SIZE_SHIFT;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * Return a buffer of at least {@code size} bytes, with position 0 and limit {@code size}.
+     *
+     * @param size the requested size
+     * @return a cleared buffer (the content is undefined)
+     */
+    public ByteBuffer acquire(int size) {
+        int shift = getSizeShift(size);
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            if (shift <= maxSizeShift) {
+                buffer = freeBuffers[shift - MIN_SIZE_SHIFT].poll();
+            }
+            if (buffer != null) {
+                freeBytes -= buffer.capacity();
+                ++reuses;
+            } else {
+                ++allocations;
+            }
+        }
+        if (buffer == null) {
+            // pooled buffers have the size of their class
+            buffer = allocate(shift <= maxSizeShift ? 1 << shift : size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Return a buffer to the pool.
+     * <p>
+     * The caller must not use the buffer (nor any view of it) anymore.
+     *
+     * @param buffer a buffer returned by {@link #acquire(int)}
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1 || buffer.isDirect() != direct || buffer.isReadOnly()) {
+            // not from this pool
+            return;
+        }
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        if (shift < MIN_SIZE_SHIFT || shift > maxSizeShift) {
+            return;
+        }
+        synchronized (this) {
+            if (freeBytes + capacity <= maxFreeBytes) {
+                freeBuffers[shift - MIN_SIZE_SHIFT].add(buffer);
+                freeBytes += capacity;
+            }
+        }
+    }
+
+    /**
+     * Return the number of buffers allocated by the pool (including the oversized buffers, which are never reused).
+     *
+     * @return the number of allocations
+     */
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    public synchronized long getFreeBytes() {
+        return freeBytes;
+    }
+}
@@ -11,6 +11,13 @@ import java.nio.ByteBuffer;
 public abstract class Connection implements Device.RotationListener, Device.ClipboardListener {
     public interface StreamInvalidateListener {
         void onStreamInvalidate();
+
+        /**
+         * Called when the video settings changed, so that the stream applies the changes (restarting only if necessary).
+         *
+         * @param diff the changed fields
+         */
+        void onVideoSettingsChanged(VideoSettingsDiff diff);
     }
 
     protected final ControlMessageReader reader = new ControlMessageReader();
@@ -24,6 +31,17 @@ public abstract class Connection implements Device.RotationListener, Device.Clip
 
     abstract void send(ByteBuffer data);
 
+    /**
+     * Send an encoded video packet, from the sender thread.
+     * <p>
+     * The packet is only valid during the call, it must be retained to be used later.
+     *
+     * @param packet the packet
+     */
+    void send(VideoPacket packet) {
+        send(packet.getData());
+    }
+
     public void send(DeviceMessage msg){
 
     }
@@ -78,15 +96,25 @@ public abstract class Connection implements Device.RotationListener, Device.Clip
     }
 
     public boolean setVideoSettings(VideoSettings newSettings) {
-        if (!videoSettings.equals(newSettings)) {
-            videoSettings.merge(newSettings);
-            device.applyNewVideoSetting(videoSettings);
-            if (this.streamInvalidateListener != null) {
-                streamInvalidateListener.onStreamInvalidate();
-            }
-            return true;
+        VideoSettingsDiff diff = videoSettings.merge(newSettings);
+        if (diff.isEmpty()) {
+            return false;
         }
-        return false;
+        Ln.d("Video settings changed: " + diff);
+        device.applyNewVideoSetting(videoSettings);
+        onVideoSettingsChanged(diff);
+        if (this.streamInvalidateListener != null) {
+            streamInvalidateListener.onVideoSettingsChanged(diff);
+        }
+        return true;
+    }
+
+    /**
+     * Called when the video settings changed, before the stream applies the changes.
+     *
+     * @param diff the changed fields
+     */
+    protected void onVideoSettingsChanged(VideoSettingsDiff diff) {
     }
 
     public void setStreamInvalidateListener(StreamInvalidateListener listener) {
@@ -1,7 +1,6 @@
 package com.genymobile.scrcpy;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 
 /**
  * Union of all supported event types, identified by their {@code type}.
@@ -22,12 +21,24 @@ public final class ControlMessage {
     public static final int TYPE_ROTATE_DEVICE = 11;
     public static final int TYPE_CHANGE_STREAM_PARAMETERS = 101;
     public static final int TYPE_PUSH_FILE = 102;
+    public static final int TYPE_GET_METRICS = 103;
+    public static final int TYPE_LATENCY_ECHO = 104;
+    public static final int TYPE_PULL_FILE = 105;
+    public static final int TYPE_LIST_DIRECTORY = 106;
 
     public static final int PUSH_STATE_NEW = 0;
     public static final int PUSH_STATE_START = 1;
     public static final int PUSH_STATE_APPEND = 2;
     public static final int PUSH_STATE_FINISH = 3;
     public static final int PUSH_STATE_CANCEL = 4;
+    public static final int PUSH_STATE_RESUME = 5;
+    public static final int PUSH_STATE_APPEND_AT = 6;
+
+    public static final long NO_CHECKSUM = -1;
+
+    public static final int PULL_STATE_START = 0;
+    public static final int PULL_STATE_ACK = 1;
+    public static final int PULL_STATE_CANCEL = 2;
 
     private int type;
     private String text;
@@ -45,11 +56,27 @@ public final class ControlMessage {
     private byte[] bytes;
     private short pushId;
     private int pushState;
-    private byte[] pushChunk;
-    private int pushChunkSize;
+    private ByteBuffer pushChunk;
     private int fileSize;
     private String fileName;
+    private int pushAckWindow;
+    private long pushChecksum = NO_CHECKSUM;
+    private long pushOffset;
+    private short pullId;
+    private int pullState;
+    private long pullOffset;
+    private int pullWindow;
+    private String path;
+    private short listId;
+    private int listStart;
+    private int listCount;
     private VideoSettings videoSettings;
+    // latency echo: the sequence number of the frame, and when the client received, decoded and displayed it (client clock, in us)
+    private int sequence;
+    private long receivedUs;
+    private long decodedUs;
+    private long displayedUs;
+    private long receivedAtNanos; // System.nanoTime() when queued for injection
 
     private ControlMessage() {
     }
@@ -116,41 +143,65 @@ public final class ControlMessage {
         return msg;
     }
 
-    public static ControlMessage createChangeSteamParameters(byte[] bytes) {
+    public static ControlMessage createChangeStreamParameters(ByteBuffer buffer) {
+        return createChangeStreamParameters(VideoSettings.fromByteBuffer(buffer));
+    }
+
+    public static ControlMessage createChangeStreamParameters(VideoSettings videoSettings) {
         ControlMessage event = new ControlMessage();
         event.type = TYPE_CHANGE_STREAM_PARAMETERS;
-        event.videoSettings = VideoSettings.fromByteArray(bytes);
+        event.videoSettings = videoSettings;
         return event;
     }
 
-    public static ControlMessage createFilePush(byte[] bytes) {
+    /**
+     * Read a push file message, from the buffer position to its limit.
+     * <p>
+     * The chunk of a {@link #PUSH_STATE_APPEND} (or {@link #PUSH_STATE_APPEND_AT}) message is not copied: it is a view of the buffer, only
+     * valid until the buffer is reused.
+     * <p>
+     * The trailing fields are optional, for compatibility with the older clients: the ack window of {@link #PUSH_STATE_START} and
+     * {@link #PUSH_STATE_RESUME} (0 to ack every chunk), and the CRC32 of the whole file on {@link #PUSH_STATE_FINISH}.
+     *
+     * @param buffer the buffer, its position is advanced
+     * @return the message, or {@code null} if the push state is unknown
+     */
+    public static ControlMessage createFilePush(ByteBuffer buffer) {
         ControlMessage event = new ControlMessage();
         event.type = TYPE_PUSH_FILE;
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
         event.pushId = buffer.getShort();
         event.pushState = buffer.get();
         switch (event.pushState) {
             case PUSH_STATE_START:
+            case PUSH_STATE_RESUME:
                 event.fileSize = buffer.getInt();
                 short nameLength = buffer.getShort();
-                byte[] textBuffer = new byte[nameLength];
-                buffer.get(textBuffer, 0, nameLength);
-                event.fileName = new String(textBuffer, 0, nameLength, StandardCharsets.UTF_8);
+                event.fileName = StringUtils.decodeUtf8(buffer, nameLength);
+                if (buffer.remaining() >= 4) {
+                    event.pushAckWindow = buffer.getInt();
+                }
                 break;
+            case PUSH_STATE_APPEND_AT:
+                event.pushOffset = buffer.getLong();
+                // fall through
             case PUSH_STATE_APPEND:
                 int chunkSize = buffer.getInt();
-                byte[] chunk = new byte[chunkSize];
-                if (buffer.remaining() >= chunkSize) {
-                    buffer.get(chunk, 0, chunkSize);
-                    event.pushChunkSize = chunkSize;
+                if (chunkSize >= 0 && buffer.remaining() >= chunkSize) {
+                    ByteBuffer chunk = buffer.slice();
+                    chunk.limit(chunkSize);
+                    buffer.position(buffer.position() + chunkSize);
                     event.pushChunk = chunk;
                 } else {
                     event.pushState = PUSH_STATE_CANCEL;
                 }
                 break;
+            case PUSH_STATE_FINISH:
+                if (buffer.remaining() >= 4) {
+                    event.pushChecksum = buffer.getInt() & 0xffffffffL;
+                }
+                break;
             case PUSH_STATE_NEW:
             case PUSH_STATE_CANCEL:
-            case PUSH_STATE_FINISH:
                 break;
                 // nothing special;
             default:
@@ -160,6 +211,60 @@ public final class ControlMessage {
         return event;
     }
 
+    /**
+     * Read a pull file message, from the buffer position.
+     * <p>
+     * The offset of {@link #PULL_STATE_START} is where to start reading the file (to resume a pull), the offset of {@link #PULL_STATE_ACK}
+     * is the number of bytes received by the client.
+     *
+     * @param buffer the buffer, its position is advanced
+     * @return the message, or {@code null} if the pull state is unknown
+     */
+    public static ControlMessage createFilePull(ByteBuffer buffer) {
+        ControlMessage event = new ControlMessage();
+        event.type = TYPE_PULL_FILE;
+        event.pullId = buffer.getShort();
+        event.pullState = buffer.get();
+        switch (event.pullState) {
+            case PULL_STATE_START:
+                event.pullOffset = buffer.getLong();
+                event.pullWindow = buffer.getInt();
+                short pathLength = buffer.getShort();
+                event.path = StringUtils.decodeUtf8(buffer, pathLength);
+                break;
+            case PULL_STATE_ACK:
+                event.pullOffset = buffer.getLong();
+                break;
+            case PULL_STATE_CANCEL:
+                break;
+            default:
+                Ln.w("Unknown pull event state: " + event.pullState);
+                return null;
+        }
+        return event;
+    }
+
+    public static ControlMessage createListDirectory(ByteBuffer buffer) {
+        ControlMessage event = new ControlMessage();
+        event.type = TYPE_LIST_DIRECTORY;
+        event.listId = buffer.getShort();
+        event.listStart = buffer.getInt();
+        event.listCount = buffer.getInt();
+        short pathLength = buffer.getShort();
+        event.path = StringUtils.decodeUtf8(buffer, pathLength);
+        return event;
+    }
+
+    public static ControlMessage createLatencyEcho(int sequence, long receivedUs, long decodedUs, long displayedUs) {
+        ControlMessage msg = new ControlMessage();
+        msg.type = TYPE_LATENCY_ECHO;
+        msg.sequence = sequence;
+        msg.receivedUs = receivedUs;
+        msg.decodedUs = decodedUs;
+        msg.displayedUs = displayedUs;
+        return msg;
+    }
+
     public static ControlMessage createEmpty(int type) {
         ControlMessage msg = new ControlMessage();
         msg.type = type;
@@ -222,6 +327,22 @@ public final class ControlMessage {
         return bytes;
     }
 
+    public int getSequence() {
+        return sequence;
+    }
+
+    public long getReceivedUs() {
+        return receivedUs;
+    }
+
+    public long getDecodedUs() {
+        return decodedUs;
+    }
+
+    public long getDisplayedUs() {
+        return displayedUs;
+    }
+
     public short getPushId() {
         return pushId;
     }
@@ -230,14 +351,10 @@ public final class ControlMessage {
         return pushState;
     }
 
-    public byte[] getPushChunk() {
+    public ByteBuffer getPushChunk() {
         return pushChunk;
     }
 
-    public int getPushChunkSize() {
-        return pushChunkSize;
-    }
-
     public String getFileName() {
         return fileName;
     }
@@ -246,7 +363,77 @@ public final class ControlMessage {
         return fileSize;
     }
 
+    /**
+     * @return the number of bytes to write between two progress acks, or 0 to ack every chunk
+     */
+    public int getPushAckWindow() {
+        return pushAckWindow;
+    }
+
+    /**
+     * @return the offset in the file of the chunk of a {@link #PUSH_STATE_APPEND_AT} message
+     */
+    public long getPushOffset() {
+        return pushOffset;
+    }
+
+    /**
+     * @return the expected CRC32 of the pushed file (unsigned), or {@link #NO_CHECKSUM}
+     */
+    public long getPushChecksum() {
+        return pushChecksum;
+    }
+
+    public short getPullId() {
+        return pullId;
+    }
+
+    public int getPullState() {
+        return pullState;
+    }
+
+    public long getPullOffset() {
+        return pullOffset;
+    }
+
+    /**
+     * @return the number of bytes the client accepts to receive ahead of its acks, or 0 for the default
+     */
+    public int getPullWindow() {
+        return pullWindow;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public short getListId() {
+        return listId;
+    }
+
+    /**
+     * @return the index of the first entry of the page
+     */
+    public int getListStart() {
+        return listStart;
+    }
+
+    /**
+     * @return the maximum number of entries of the page
+     */
+    public int getListCount() {
+        return listCount;
+    }
+
     public VideoSettings getVideoSettings() {
         return videoSettings;
     }
+
+    public long getReceivedAtNanos() {
+        return receivedAtNanos;
+    }
+
+    void setReceivedAtNanos(long receivedAtNanos) {
+        this.receivedAtNanos = receivedAtNanos;
+    }
 }
@@ -3,8 +3,8 @@ package com.genymobile.scrcpy;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 
 public class ControlMessageReader {
 
@@ -14,6 +14,7 @@ public class ControlMessageReader {
     static final int BACK_OR_SCREEN_ON_LENGTH = 1;
     static final int SET_SCREEN_POWER_MODE_PAYLOAD_LENGTH = 1;
     static final int SET_CLIPBOARD_FIXED_PAYLOAD_LENGTH = 1;
+    static final int LATENCY_ECHO_PAYLOAD_LENGTH = 28;
 
     private static final int MESSAGE_MAX_SIZE = 1 << 18; // 256k
 
@@ -50,6 +51,16 @@ public class ControlMessageReader {
         return parseEvent(buffer);
     }
 
+    /**
+     * Parse the next message from the buffer position.
+     * <p>
+     * This method does not use the internal buffer, so it may be called concurrently, to parse complete messages (for example websocket
+     * frames) in place. {@link ControlMessage#TYPE_CHANGE_STREAM_PARAMETERS} and {@link ControlMessage#TYPE_PUSH_FILE} messages extend to
+     * the buffer limit.
+     *
+     * @param buffer the buffer
+     * @return the message, or {@code null} if it is incomplete or invalid (the buffer position is then unchanged)
+     */
     public ControlMessage parseEvent(ByteBuffer buffer) {
         if (!buffer.hasRemaining()) {
             return null;
@@ -86,11 +97,21 @@ public class ControlMessageReader {
             case ControlMessage.TYPE_PUSH_FILE:
                 msg = parsePushFile(buffer);
                 break;
+            case ControlMessage.TYPE_LATENCY_ECHO:
+                msg = parseLatencyEcho(buffer);
+                break;
+            case ControlMessage.TYPE_PULL_FILE:
+                msg = parsePullFile(buffer);
+                break;
+            case ControlMessage.TYPE_LIST_DIRECTORY:
+                msg = parseListDirectory(buffer);
+                break;
             case ControlMessage.TYPE_EXPAND_NOTIFICATION_PANEL:
             case ControlMessage.TYPE_EXPAND_SETTINGS_PANEL:
             case ControlMessage.TYPE_COLLAPSE_PANELS:
             case ControlMessage.TYPE_GET_CLIPBOARD:
             case ControlMessage.TYPE_ROTATE_DEVICE:
+            case ControlMessage.TYPE_GET_METRICS:
                 msg = ControlMessage.createEmpty(type);
                 break;
             default:
@@ -107,21 +128,52 @@ public class ControlMessageReader {
     }
 
     private ControlMessage parseChangeStreamParameters(ByteBuffer buffer) {
-        int re = buffer.remaining();
-        byte[] bytes = new byte[re];
-        if (re > 0) {
-            buffer.get(bytes, 0, re);
+        // the settings extend to the end of the message
+        try {
+            return ControlMessage.createChangeStreamParameters(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Ln.w("Invalid stream parameters");
+            return null;
         }
-        return ControlMessage.createChangeSteamParameters(bytes);
     }
 
     private ControlMessage parsePushFile(ByteBuffer buffer) {
-        int re = buffer.remaining();
-        byte[] bytes = new byte[re];
-        if (re > 0) {
-            buffer.get(bytes, 0, re);
+        // the push message extends to the end of the message
+        try {
+            return ControlMessage.createFilePush(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Ln.w("Invalid push file message");
+            return null;
+        }
+    }
+
+    private ControlMessage parsePullFile(ByteBuffer buffer) {
+        try {
+            return ControlMessage.createFilePull(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Ln.w("Invalid pull file message");
+            return null;
+        }
+    }
+
+    private ControlMessage parseListDirectory(ByteBuffer buffer) {
+        try {
+            return ControlMessage.createListDirectory(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Ln.w("Invalid list directory message");
+            return null;
+        }
+    }
+
+    private ControlMessage parseLatencyEcho(ByteBuffer buffer) {
+        if (buffer.remaining() < LATENCY_ECHO_PAYLOAD_LENGTH) {
+            return null;
         }
-        return ControlMessage.createFilePush(bytes);
+        int sequence = buffer.getInt();
+        long receivedUs = buffer.getLong();
+        long decodedUs = buffer.getLong();
+        long displayedUs = buffer.getLong();
+        return ControlMessage.createLatencyEcho(sequence, receivedUs, decodedUs, displayedUs);
     }
 
     private ControlMessage parseInjectKeycode(ByteBuffer buffer) {
@@ -135,7 +187,7 @@ public class ControlMessageReader {
         return ControlMessage.createInjectKeycode(action, keycode, repeat, metaState);
     }
 
-    private String parseString(ByteBuffer buffer) {
+    private static String parseString(ByteBuffer buffer) {
         if (buffer.remaining() < 4) {
             return null;
         }
@@ -143,8 +195,7 @@ public class ControlMessageReader {
         if (buffer.remaining() < len) {
             return null;
         }
-        buffer.get(rawBuffer, 0, len);
-        return new String(rawBuffer, 0, len, StandardCharsets.UTF_8);
+        return StringUtils.decodeUtf8(buffer, len);
     }
 
     private ControlMessage parseInjectText(ByteBuffer buffer) {
@@ -1,133 +1,269 @@
 package com.genymobile.scrcpy;
 
-import java.io.EOFException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
 
+/**
+ * Parser of the control messages sent as JSON by the web clients, for example:
+ * <pre>{"type":"2","action":"2","pointerId":"-1","positionX":"100","positionY":"200","width":"1080","height":"1920",
+ * "pressure":"65535","buttons":"0"}</pre>
+ * <p>
+ * The message is decoded token by token directly into the {@link ControlMessage} fields, without building an intermediate map. The values
+ * may be sent either as JSON numbers (or booleans) or as strings.
+ * <p>
+ * This class is thread-safe.
+ */
 public class ControlMessageReaderJson {
 
+    // thread-safe, and expensive to create
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final String MESSAGE_START = "start";
+    private static final String MESSAGE_METRICS = "metrics";
+
+    /**
+     * Parse a control message.
+     * <p>
+     * A {@code {"message":"start"}} message is parsed as a {@link ControlMessage#TYPE_CHANGE_STREAM_PARAMETERS} with the default web
+     * settings (with the latency probe if {@code "latencyProbe":true}), and a {@code {"message":"metrics"}} message as a
+     * {@link ControlMessage#TYPE_GET_METRICS}.
+     *
+     * @param json the JSON object
+     * @return the control message, or {@code null} if the message has no (known) type
+     * @throws IOException if the JSON is malformed
+     */
+    public ControlMessage parseEvent(String json) throws IOException {
+        int type = -1;
+        String message = null;
+        int action = 0;
+        int keycode = 0;
+        int repeat = 0;
+        int metaState = 0;
+        long pointerId = 0;
+        int x = 0;
+        int y = 0;
+        int width = 0;
+        int height = 0;
+        int pressure = 0;
+        int buttons = 0;
+        int hScroll = 0;
+        int vScroll = 0;
+        int mode = 0;
+        boolean paste = false;
+        String text = null;
+        int sequence = 0;
+        long receivedUs = 0;
+        long decodedUs = 0;
+        long displayedUs = 0;
+        boolean latencyProbe = false;
+
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Control message is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                // field names are canonicalized (not allocated for each message)
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                switch (name) {
+                    case "type":
+                        type = readInt(parser);
+                        break;
+                    case "message":
+                        message = parser.getValueAsString();
+                        break;
+                    case "action":
+                        action = readInt(parser);
+                        break;
+                    case "keycode":
+                        keycode = readInt(parser);
+                        break;
+                    case "repeat":
+                        repeat = readInt(parser);
+                        break;
+                    case "metaState":
+                        metaState = readInt(parser);
+                        break;
+                    case "pointerId":
+                        pointerId = readLong(parser);
+                        break;
+                    case "positionX":
+                        x = readInt(parser);
+                        break;
+                    case "positionY":
+                        y = readInt(parser);
+                        break;
+                    case "width":
+                        width = readInt(parser);
+                        break;
+                    case "height":
+                        height = readInt(parser);
+                        break;
+                    case "pressure":
+                        pressure = readInt(parser);
+                        break;
+                    case "buttons":
+                        buttons = readInt(parser);
+                        break;
+                    case "hScroll":
+                        hScroll = readInt(parser);
+                        break;
+                    case "vScroll":
+                        vScroll = readInt(parser);
+                        break;
+                    case "mode":
+                        mode = readInt(parser);
+                        break;
+                    case "paste":
+                        paste = readBoolean(parser);
+                        break;
+                    case "text":
+                        text = parser.getValueAsString();
+                        break;
+                    case "sequence":
+                        sequence = readInt(parser);
+                        break;
+                    case "receivedUs":
+                        receivedUs = readLong(parser);
+                        break;
+                    case "decodedUs":
+                        decodedUs = readLong(parser);
+                        break;
+                    case "displayedUs":
+                        displayedUs = readLong(parser);
+                        break;
+                    case "latencyProbe":
+                        latencyProbe = readBoolean(parser);
+                        break;
+                    default:
+                        // ignore unknown fields (including objects and arrays)
+                        parser.skipChildren();
+                        break;
+                }
+            }
+        }
 
-    public ControlMessage parseEvent(Map<String, String> incommingMessage) {
-        if(incommingMessage.get("type") == null) {
-            return null;
+        if (MESSAGE_START.equals(message)) {
+            VideoSettings videoSettings = createDefaultVideoSettings();
+            videoSettings.setLatencyProbe(latencyProbe);
+            return ControlMessage.createChangeStreamParameters(videoSettings);
+        }
+        if (MESSAGE_METRICS.equals(message)) {
+            return ControlMessage.createEmpty(ControlMessage.TYPE_GET_METRICS);
         }
-        Integer type = Integer.parseInt(incommingMessage.get("type"));
-        ControlMessage msg;
+
         switch (type) {
+            case -1:
+                return null;
             case ControlMessage.TYPE_INJECT_KEYCODE:
-                msg = parseInjectKeycode(incommingMessage);
-                break;
+                return ControlMessage.createInjectKeycode(action, keycode, repeat, metaState);
             case ControlMessage.TYPE_INJECT_TEXT:
-                msg = parseInjectText(incommingMessage);
-                break;
+                return text != null ? ControlMessage.createInjectText(text) : null;
             case ControlMessage.TYPE_INJECT_TOUCH_EVENT:
-                msg = parseInjectTouchEvent(incommingMessage);
-                break;
+                // 16 bits fixed-point, convert it to a float between 0 and 1 (0x1p16f is 2^16 as float)
+                float pressureFloat = pressure == 0xffff ? 1f : (pressure / 0x1p16f);
+                return ControlMessage.createInjectTouchEvent(action, pointerId, new Position(x, y, width, height), pressureFloat, buttons);
             case ControlMessage.TYPE_INJECT_SCROLL_EVENT:
-                msg = parseInjectScrollEvent(incommingMessage);
-                break;
+                return ControlMessage.createInjectScrollEvent(new Position(x, y, width, height), hScroll, vScroll);
             case ControlMessage.TYPE_BACK_OR_SCREEN_ON:
-                msg = parseBackOrScreenOnEvent(incommingMessage);
-                break;
+                return ControlMessage.createBackOrScreenOn(action);
             case ControlMessage.TYPE_SET_CLIPBOARD:
-                msg = parseSetClipboard(incommingMessage);
-                break;
+                return text != null ? ControlMessage.createSetClipboard(text, paste) : null;
             case ControlMessage.TYPE_SET_SCREEN_POWER_MODE:
-                msg = parseSetScreenPowerMode(incommingMessage);
-                break;
+                return ControlMessage.createSetScreenPowerMode(mode);
+            case ControlMessage.TYPE_LATENCY_ECHO:
+                return ControlMessage.createLatencyEcho(sequence, receivedUs, decodedUs, displayedUs);
             case ControlMessage.TYPE_EXPAND_NOTIFICATION_PANEL:
             case ControlMessage.TYPE_EXPAND_SETTINGS_PANEL:
             case ControlMessage.TYPE_COLLAPSE_PANELS:
             case ControlMessage.TYPE_GET_CLIPBOARD:
             case ControlMessage.TYPE_ROTATE_DEVICE:
-                msg = ControlMessage.createEmpty(type);
-                break;
+            case ControlMessage.TYPE_GET_METRICS:
+                return ControlMessage.createEmpty(type);
             default:
                 Ln.w("Unknown event type: " + type);
-                msg = null;
-                break;
+                return null;
         }
-        return msg;
-    }
-
-
-    private ControlMessage parsePushFile(ByteBuffer buffer) {
-        int re = buffer.remaining();
-        byte[] bytes = new byte[re];
-        if (re > 0) {
-            buffer.get(bytes, 0, re);
-        }
-        return ControlMessage.createFilePush(bytes);
-    }
-
-    private ControlMessage parseInjectKeycode(Map<String, String > msg) {
-        int action = Integer.parseInt(msg.get("action"));
-        int keycode = Integer.parseInt(msg.get("keycode"));
-        int repeat = Integer.parseInt(msg.get("repeat"));
-        int metaState = Integer.parseInt(msg.get("metaState"));
-        return ControlMessage.createInjectKeycode(action, keycode, repeat, metaState);
-    }
-
-    private ControlMessage parseInjectText(Map<String, String > msg) {
-        return ControlMessage.createInjectText(msg.get("text"));
     }
 
-    private ControlMessage parseInjectTouchEvent(Map<String, String > msg) {
-
-        int action = Integer.parseInt(msg.get("action"));
-        long pointerId = Long.parseLong(msg.get("pointerId"));
-        Position position = readPosition(msg);
-        // 16 bits fixed-point
-        int pressureInt = Integer.parseInt(msg.get("pressure"));
-        // convert it to a float between 0 and 1 (0x1p16f is 2^16 as float)
-        float pressure = pressureInt == 0xffff ? 1f : (pressureInt / 0x1p16f);
-        int buttons = Integer.parseInt(msg.get("buttons"));
-        return ControlMessage.createInjectTouchEvent(action, pointerId, position, pressure, buttons);
-    }
-
-    private ControlMessage parseInjectScrollEvent(Map<String, String > msg) {
-        Position position = readPosition(msg);
-        int hScroll = Integer.parseInt(msg.get("hScroll"));
-        int vScroll = Integer.parseInt(msg.get("vScroll"));
-        return ControlMessage.createInjectScrollEvent(position, hScroll, vScroll);
-    }
-
-    private ControlMessage parseBackOrScreenOnEvent(Map<String, String > msg) {
-        int action = Integer.parseInt(msg.get("action"));
-        return ControlMessage.createBackOrScreenOn(action);
+    /**
+     * Return the settings of the stream started by a {@code {"message":"start"}} message.
+     *
+     * @return new default video settings
+     */
+    public static VideoSettings createDefaultVideoSettings() {
+        VideoSettings videoSettings = new VideoSettings();
+        videoSettings.setDisplayId(0);
+        videoSettings.setSendFrameMeta(false);
+        videoSettings.setBounds(new Size(800, 800));
+        return videoSettings;
     }
 
-    private ControlMessage parseSetClipboard(Map<String, String > msg) {
-        boolean paste = Boolean.parseBoolean(msg.get("paste"));
-        String text = msg.get("text");
-        if (text == null) {
-            return null;
+    private static int readInt(JsonParser parser) throws IOException {
+        long value = readLong(parser);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IOException("Value out of int range: " + value);
         }
-        return ControlMessage.createSetClipboard(text, paste);
-    }
-
-    private ControlMessage parseSetScreenPowerMode(Map<String, String > msg) {
-        int mode = Integer.parseInt(msg.get("mode"));
-        return ControlMessage.createSetScreenPowerMode(mode);
+        return (int) value;
     }
 
-    private static Position readPosition(Map<String, String> msg) {
-        int x = Integer.parseInt(msg.get("positionX"));
-        int y = Integer.parseInt(msg.get("positionY"));
-        int screenWidth = Integer.parseInt(msg.get("width"));
-        int screenHeight = Integer.parseInt(msg.get("height"));
-        return new Position(x, y, screenWidth, screenHeight);
+    private static long readLong(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_NUMBER_INT:
+                return parser.getLongValue();
+            case VALUE_STRING:
+                // parse the characters in place, without creating a String
+                return parseLong(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+            default:
+                throw new IOException("Expected an integer for \"" + parser.getCurrentName() + "\", got " + parser.currentToken());
+        }
     }
 
-    private static int toUnsigned(short value) {
-        return value & 0xffff;
+    static long parseLong(char[] chars, int offset, int length) throws IOException {
+        if (length == 0 || length > 20) {
+            throw new IOException("Invalid integer: \"" + new String(chars, offset, length) + "\"");
+        }
+        int i = offset;
+        int end = offset + length;
+        boolean negative = chars[i] == '-';
+        if (negative || chars[i] == '+') {
+            ++i;
+            if (i == end) {
+                throw new IOException("Invalid integer: \"" + new String(chars, offset, length) + "\"");
+            }
+        }
+        // accumulate negatively, to handle Long.MIN_VALUE
+        long result = 0;
+        for (; i < end; ++i) {
+            int digit = chars[i] - '0';
+            if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+                throw new IOException("Invalid integer: \"" + new String(chars, offset, length) + "\"");
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                throw new IOException("Invalid integer: \"" + new String(chars, offset, length) + "\"");
+            }
+            result = -result;
+        }
+        return result;
     }
 
-    private static int toUnsigned(byte value) {
-        return value & 0xff;
+    private static boolean readBoolean(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_TRUE:
+                return true;
+            case VALUE_FALSE:
+                return false;
+            case VALUE_STRING:
+                // like Boolean.parseBoolean()
+                return "true".equalsIgnoreCase(parser.getText());
+            default:
+                throw new IOException("Expected a boolean for \"" + parser.getCurrentName() + "\", got " + parser.currentToken());
+        }
     }
 }
@@ -16,6 +16,17 @@ public class Controller {
 
     private static final int DEFAULT_DEVICE_ID = 0;
 
+    // maximum number of samples merged into a single move event
+    private static final int MAX_MOVE_BATCH_SIZE = 32;
+
+    // these warnings are repeated for every event of a gesture
+    private static final Ln.RateLimiter INVALID_TOUCH_LOG_LIMITER = new Ln.RateLimiter(1000);
+    private static final Ln.RateLimiter TOO_MANY_POINTERS_LOG_LIMITER = new Ln.RateLimiter(1000);
+
+    // indexed by message type (the injection and device commands)
+    private static final Metrics.Counter[] EVENT_COUNTERS = createEventCounters();
+    private static final Metrics.Counter OTHER_EVENTS = Metrics.counter("control.events.other");
+
     private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor();
 
     private final Device device;
@@ -31,6 +42,13 @@ public class Controller {
 
     private boolean keepPowerModeOff;
 
+    // created on the first submitted message
+    private InjectionQueue injectionQueue;
+    private boolean stopped;
+
+    // the last move event, not injected yet: the next moves of the same pointers are appended to it as historical samples
+    private MotionEvent pendingMove;
+
     public Controller(Device device, Connection connection) {
         this.device = device;
         this.connection = connection;
@@ -38,6 +56,16 @@ public class Controller {
         sender = new DeviceMessageSender(connection);
     }
 
+    private static Metrics.Counter[] createEventCounters() {
+        String[] names = {"inject_keycode", "inject_text", "inject_touch", "inject_scroll", "back_or_screen_on", "expand_notification_panel",
+                "expand_settings_panel", "collapse_panels", "get_clipboard", "set_clipboard", "set_screen_power_mode", "rotate_device"};
+        Metrics.Counter[] counters = new Metrics.Counter[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            counters[i] = Metrics.counter("control.events." + names[i]);
+        }
+        return counters;
+    }
+
     private void initPointers() {
         for (int i = 0; i < PointersState.MAX_POINTERS; ++i) {
             MotionEvent.PointerProperties props = new MotionEvent.PointerProperties();
@@ -56,7 +84,66 @@ public class Controller {
         return sender;
     }
 
+    /**
+     * Handle a control message asynchronously, from the injection thread of this controller.
+     * <p>
+     * The messages submitted from different threads are handled in the order of the calls.
+     *
+     * @param msg the message
+     * @return {@code false} if the message has been dropped
+     */
+    public boolean submit(ControlMessage msg) {
+        InjectionQueue queue;
+        synchronized (this) {
+            if (stopped) {
+                return false;
+            }
+            if (injectionQueue == null) {
+                injectionQueue = new InjectionQueue(this);
+                injectionQueue.start();
+            }
+            queue = injectionQueue;
+        }
+        return queue.offer(msg);
+    }
+
+    /**
+     * Stop the injection thread, if it has been started. The messages submitted later are dropped.
+     */
+    public void stop() {
+        InjectionQueue queue;
+        synchronized (this) {
+            stopped = true;
+            queue = injectionQueue;
+        }
+        if (queue != null) {
+            queue.stop();
+        }
+    }
+
+    public synchronized InjectionQueue getInjectionQueue() {
+        return injectionQueue;
+    }
+
+    /**
+     * Handle a control message, synchronously.
+     * <p>
+     * Consecutive touch moves are coalesced into a single injected event: the last move may be kept pending until the next message, so the
+     * caller must call {@link #flush()} once no more message is immediately available.
+     *
+     * @param msg the message
+     */
     public void handleEvent(ControlMessage msg) {
+        int type = msg.getType();
+        if (type >= 0 && type < EVENT_COUNTERS.length) {
+            EVENT_COUNTERS[type].inc();
+        } else {
+            OTHER_EVENTS.inc();
+        }
+        if (type != ControlMessage.TYPE_INJECT_TOUCH_EVENT) {
+            // preserve the order of the events
+            flush();
+        }
         switch (msg.getType()) {
             case ControlMessage.TYPE_INJECT_KEYCODE:
                 if (device.supportsInputEvents()) {
@@ -161,36 +248,27 @@ public class Controller {
     private boolean injectTouch(int action, long pointerId, Position position, float pressure, int buttons) {
         long now = SystemClock.uptimeMillis();
 
-        Point point = device.getPhysicalPoint(position);
-        if (point == null) {
-            Ln.w("Ignore touch event, it was generated for a different device size");
+        // read once, the screen info may change concurrently
+        PositionMapper mapper = device.getPositionMapper();
+        if (!mapper.accepts(position.getScreenSize())) {
+            Ln.w(INVALID_TOUCH_LOG_LIMITER, "Ignore touch event, it was generated for a different device size");
             return false;
         }
+        Point clientPoint = position.getPoint();
+        int x = mapper.mapX(clientPoint.getX(), clientPoint.getY());
+        int y = mapper.mapY(clientPoint.getX(), clientPoint.getY());
 
         int pointerIndex = pointersState.getPointerIndex(pointerId);
         if (pointerIndex == -1) {
-            Ln.w("Too many pointers for touch event");
+            Ln.w(TOO_MANY_POINTERS_LOG_LIMITER, "Too many pointers for touch event");
             return false;
         }
-        Pointer pointer = pointersState.get(pointerIndex);
-        pointer.setPoint(point);
-        pointer.setPressure(pressure);
-        pointer.setUp(action == MotionEvent.ACTION_UP);
-
-        int pointerCount = pointersState.update(pointerProperties, pointerCoords);
-
-        if (pointerCount == 1) {
-            if (action == MotionEvent.ACTION_DOWN) {
-                lastTouchDown = now;
-            }
-        } else {
-            // secondary pointers must use ACTION_POINTER_* ORed with the pointerIndex
-            if (action == MotionEvent.ACTION_UP) {
-                action = MotionEvent.ACTION_POINTER_UP | (pointerIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
-            } else if (action == MotionEvent.ACTION_DOWN) {
-                action = MotionEvent.ACTION_POINTER_DOWN | (pointerIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
-            }
+        int pointerCount = pointersState.touch(pointerIndex, x, y, pressure, action == MotionEvent.ACTION_UP, pointerProperties, pointerCoords);
+        if (pointerCount == 1 && action == MotionEvent.ACTION_DOWN) {
+            lastTouchDown = now;
         }
+        // secondary pointers must use ACTION_POINTER_* ORed with the pointerIndex
+        action = PointersState.getMotionAction(action, pointerIndex, pointerCount);
 
         // Right-click and middle-click only work if the source is a mouse
         boolean nonPrimaryButtonPressed = (buttons & ~MotionEvent.BUTTON_PRIMARY) != 0;
@@ -200,26 +278,67 @@ public class Controller {
             buttons = 0;
         }
 
+        if (action == MotionEvent.ACTION_MOVE && pendingMove != null && canCoalesce(pendingMove, pointerCount, buttons, source)) {
+            // the pending event keeps the current coordinates, the previous ones become historical samples
+            pendingMove.addBatch(now, pointerCoords, 0);
+            if (pendingMove.getHistorySize() + 1 >= MAX_MOVE_BATCH_SIZE) {
+                return flush();
+            }
+            return true;
+        }
+        flush();
+
         MotionEvent event = MotionEvent
                 .obtain(lastTouchDown, now, action, pointerCount, pointerProperties, pointerCoords, 0, buttons, 1f, 1f, DEFAULT_DEVICE_ID, 0, source,
                         0);
+        if (action == MotionEvent.ACTION_MOVE) {
+            pendingMove = event;
+            return true;
+        }
+        return device.injectEvent(event);
+    }
+
+    private boolean canCoalesce(MotionEvent event, int pointerCount, int buttons, int source) {
+        if (event.getPointerCount() != pointerCount || event.getButtonState() != buttons || event.getSource() != source) {
+            return false;
+        }
+        for (int i = 0; i < pointerCount; ++i) {
+            if (event.getPointerId(i) != pointerProperties[i].id) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inject the pending move event, if any.
+     *
+     * @return {@code false} if the injection failed
+     */
+    public boolean flush() {
+        if (pendingMove == null) {
+            return true;
+        }
+        MotionEvent event = pendingMove;
+        pendingMove = null;
         return device.injectEvent(event);
     }
 
     private boolean injectScroll(Position position, int hScroll, int vScroll) {
         long now = SystemClock.uptimeMillis();
-        Point point = device.getPhysicalPoint(position);
-        if (point == null) {
+        PositionMapper mapper = device.getPositionMapper();
+        if (!mapper.accepts(position.getScreenSize())) {
             // ignore event
             return false;
         }
+        Point clientPoint = position.getPoint();
 
         MotionEvent.PointerProperties props = pointerProperties[0];
         props.id = 0;
 
         MotionEvent.PointerCoords coords = pointerCoords[0];
-        coords.x = point.getX();
-        coords.y = point.getY();
+        coords.x = mapper.mapX(clientPoint.getX(), clientPoint.getY());
+        coords.y = mapper.mapY(clientPoint.getX(), clientPoint.getY());
         coords.setAxisValue(MotionEvent.AXIS_HSCROLL, hScroll);
         coords.setAxisValue(MotionEvent.AXIS_VSCROLL, vScroll);
 
@@ -150,6 +150,8 @@ public final class DesktopConnection extends Connection {
     public ControlMessage receiveControlMessage() throws IOException {
         ControlMessage msg = reader.next();
         while (msg == null) {
+            // no more buffered message, do not delay the pending events while waiting for the next ones
+            controller.flush();
             reader.readFrom(controlInputStream);
             msg = reader.next();
         }
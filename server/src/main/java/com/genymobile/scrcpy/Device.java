@@ -2,6 +2,7 @@ package com.genymobile.scrcpy;
 
 import com.genymobile.scrcpy.wrappers.ClipboardManager;
 import com.genymobile.scrcpy.wrappers.ContentProvider;
+import com.genymobile.scrcpy.wrappers.HiddenMethods;
 import com.genymobile.scrcpy.wrappers.InputManager;
 import com.genymobile.scrcpy.wrappers.ServiceManager;
 import com.genymobile.scrcpy.wrappers.SurfaceControl;
@@ -9,6 +10,7 @@ import com.genymobile.scrcpy.wrappers.WindowManager;
 
 import android.content.IOnPrimaryClipChangedListener;
 import android.graphics.Rect;
+import android.hardware.display.IDisplayManagerCallback;
 import android.os.Build;
 import android.os.IBinder;
 import android.os.SystemClock;
@@ -18,6 +20,7 @@ import android.view.InputEvent;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class Device {
@@ -38,7 +41,8 @@ public final class Device {
         void onClipboardTextChanged(String text);
     }
 
-    private ScreenInfo screenInfo;
+    // immutable, read without lock on every injected event
+    private volatile ScreenInfo screenInfo;
     private RotationListener rotationListener;
     private ClipboardListener clipboardListener;
     private final AtomicBoolean isSettingClipboard = new AtomicBoolean();
@@ -124,7 +128,7 @@ public final class Device {
         }
     }
 
-    public synchronized ScreenInfo getScreenInfo() {
+    public ScreenInfo getScreenInfo() {
         return screenInfo;
     }
 
@@ -136,34 +140,23 @@ public final class Device {
         this.setScreenInfo(ScreenInfo.computeScreenInfo(Device.getDisplayInfo(displayId), videoSettings));
     }
 
-    public synchronized void setScreenInfo(ScreenInfo screenInfo) {
+    public void setScreenInfo(ScreenInfo screenInfo) {
         this.screenInfo = screenInfo;
         Ln.i("Changing screen info to " +screenInfo.getVideoSize().toString());
     }
 
-    public Point getPhysicalPoint(Position position) {
-        // it hides the field on purpose, to read it with a lock
-        @SuppressWarnings("checkstyle:HiddenField")
-        ScreenInfo screenInfo = getScreenInfo(); // read with synchronization
+    /**
+     * Return the mapping of the client positions to the device coordinates, for the current screen info.
+     *
+     * @return the position mapper
+     */
+    public PositionMapper getPositionMapper() {
+        return screenInfo.getPositionMapper();
+    }
 
+    public Point getPhysicalPoint(Position position) {
         // ignore the locked video orientation, the events will apply in coordinates considered in the physical device orientation
-        Size unlockedVideoSize = screenInfo.getUnlockedVideoSize();
-
-        int reverseVideoRotation = screenInfo.getReverseVideoRotation();
-        // reverse the video rotation to apply the events
-        Position devicePosition = position.rotate(reverseVideoRotation);
-
-        Size clientVideoSize = devicePosition.getScreenSize();
-        if (!unlockedVideoSize.equals(clientVideoSize)) {
-            // The client sends a click relative to a video with wrong dimensions,
-            // the device may have been rotated since the event was generated, so ignore the event
-            return null;
-        }
-        Rect contentRect = screenInfo.getContentRect();
-        Point point = devicePosition.getPoint();
-        int convertedX = contentRect.left + point.getX() * contentRect.width() / unlockedVideoSize.getWidth();
-        int convertedY = contentRect.top + point.getY() * contentRect.height() / unlockedVideoSize.getHeight();
-        return new Point(convertedX, convertedY);
+        return getPositionMapper().map(position);
     }
 
     public static String getDeviceName() {
@@ -186,7 +179,7 @@ public final class Device {
         if (displayId != 0 && !InputManager.setDisplayId(inputEvent, displayId)) {
             return false;
         }
-        Ln.i("Injecting touch event");
+        Ln.v("Injecting input event");
         return SERVICE_MANAGER.getInputManager().injectInputEvent(inputEvent, InputManager.INJECT_INPUT_EVENT_MODE_ASYNC);
     }
 
@@ -340,4 +333,22 @@ public final class Device {
     public static DisplayInfo getDisplayInfo(int displayId) {
         return SERVICE_MANAGER.getDisplayManager().getDisplayInfo(displayId);
     }
+
+    public static boolean registerDisplayCallback(IDisplayManagerCallback callback) {
+        return SERVICE_MANAGER.getDisplayManager().registerCallback(callback);
+    }
+
+    /**
+     * Resolve the hidden methods of the hot paths (encoder restart, input injection) on start, rather than on their first call, and report
+     * the missing ones.
+     */
+    public static void resolveHiddenMethods() {
+        SERVICE_MANAGER.getInputManager();
+        SERVICE_MANAGER.getDisplayManager();
+        SurfaceControl.resolveMethods();
+        List<String> missing = HiddenMethods.getMissing();
+        if (!missing.isEmpty()) {
+            Ln.w("Some hidden methods are not available, the features using them will fail: " + missing);
+        }
+    }
 }
@@ -0,0 +1,126 @@
+package com.genymobile.scrcpy;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The device information sent to the websocket clients: the displays and the encoders.
+ * <p>
+ * Querying them is expensive (a binder call per display, and the whole codec list for the encoders), and they rarely change. The encoders
+ * are queried once; the displays are queried again only on a display or rotation event. Each part is serialized once per change, and the
+ * message of each client is assembled from the serialized parts, so that a rotation watched by many clients does not serialize the same
+ * document for each of them.
+ * <p>
+ * The clients which request it receive a {@link #MESSAGE_DELTA} on changes, with only the parts which changed, rather than the whole
+ * {@link #MESSAGE_FULL} document.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class DeviceInfoCache {
+
+    public static final String MESSAGE_FULL = "device_info";
+    public static final String MESSAGE_DELTA = "device_info_delta";
+
+    private static final Metrics.Counter SERIALIZATIONS = Metrics.counter("device_info.serializations");
+
+    public interface Source {
+        List<DisplayInfo> getDisplays();
+
+        List<?> getEncoders();
+    }
+
+    private final Source source;
+    private final ObjectMapper mapper;
+
+    private String encodersJson;
+    private String displaysJson;
+
+    public DeviceInfoCache(Source source, ObjectMapper mapper) {
+        this.source = source;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Query the displays again, on a display or rotation event.
+     *
+     * @return {@code true} if the displays changed
+     */
+    public synchronized boolean reloadDisplays() throws IOException {
+        String json = serialize(source.getDisplays());
+        if (json.equals(displaysJson)) {
+            return false;
+        }
+        displaysJson = json;
+        return true;
+    }
+
+    public synchronized String getDisplaysJson() throws IOException {
+        if (displaysJson == null) {
+            displaysJson = serialize(source.getDisplays());
+        }
+        return displaysJson;
+    }
+
+    public synchronized String getEncodersJson() throws IOException {
+        if (encodersJson == null) {
+            // the encoders do not change while the device is running
+            encodersJson = serialize(source.getEncoders());
+        }
+        return encodersJson;
+    }
+
+    private String serialize(Object value) throws IOException {
+        SERIALIZATIONS.inc();
+        return mapper.writeValueAsString(value);
+    }
+
+    /**
+     * Build the whole document for a client.
+     *
+     * @param clientId       the id of the client
+     * @param screenInfoJson the serialized screen info of the stream watched by the client, or {@code null} if it watches no stream
+     * @return the {@link #MESSAGE_FULL} message
+     */
+    public String getFullMessage(int clientId, String screenInfoJson) throws IOException {
+        String displays;
+        String encoders;
+        synchronized (this) {
+            displays = getDisplaysJson();
+            encoders = getEncodersJson();
+        }
+        StringBuilder builder = new StringBuilder(displays.length() + encoders.length() + 128);
+        builder.append("{\"message\":\"").append(MESSAGE_FULL).append("\",\"data\":{\"clientId\":").append(clientId);
+        if (screenInfoJson != null) {
+            builder.append(",\"screenInfo\":").append(screenInfoJson);
+        }
+        builder.append(",\"displays\":").append(displays);
+        builder.append(",\"encoders\":").append(encoders);
+        builder.append("}}");
+        return builder.toString();
+    }
+
+    /**
+     * Build a message with the changed parts only.
+     *
+     * @param displaysJson   the serialized displays, or {@code null} if they did not change
+     * @param screenInfoJson the serialized screen info of the stream watched by the client, or {@code null} if it did not change
+     * @return the {@link #MESSAGE_DELTA} message
+     */
+    public static String getDeltaMessage(String displaysJson, String screenInfoJson) {
+        StringBuilder builder = new StringBuilder(64);
+        builder.append("{\"message\":\"").append(MESSAGE_DELTA).append("\",\"data\":{");
+        if (displaysJson != null) {
+            builder.append("\"displays\":").append(displaysJson);
+        }
+        if (screenInfoJson != null) {
+            if (displaysJson != null) {
+                builder.append(',');
+            }
+            builder.append("\"screenInfo\":").append(screenInfoJson);
+        }
+        builder.append("}}");
+        return builder.toString();
+    }
+}
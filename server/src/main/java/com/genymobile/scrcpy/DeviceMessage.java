@@ -2,12 +2,25 @@ package com.genymobile.scrcpy;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 public abstract class DeviceMessage {
     private static final int MESSAGE_MAX_SIZE = 1 << 18; // 256k
     public static final int MAX_EVENT_SIZE = 4096;
     public static final int TYPE_CLIPBOARD = 0;
     public static final int TYPE_PUSH_RESPONSE = 101;
+    public static final int TYPE_PUSH_PROGRESS = 102;
+    public static final int TYPE_PULL_RESPONSE = 103;
+    // written directly into the websocket frames by FilePullHandler: id (2 bytes), offset (8 bytes), length (4 bytes), data
+    public static final int TYPE_PULL_CHUNK = 104;
+    public static final int TYPE_DIRECTORY_LISTING = 105;
+
+    public static final int ENTRY_FILE = 0;
+    public static final int ENTRY_DIRECTORY = 1;
+    public static final int ENTRY_OTHER = 2;
+
+    // prefix of the binary device messages sent over a websocket
+    static final byte[] MAGIC_BYTES_MESSAGE = "scrcpy_message".getBytes(StandardCharsets.UTF_8);
 
     private int type;
 
@@ -59,6 +72,124 @@ public abstract class DeviceMessage {
         }
     }
 
+    private static final class FilePushProgressMessage extends DeviceMessage {
+        private short id;
+        private long offset;
+
+        private FilePushProgressMessage(short id, long offset) {
+            super(TYPE_PUSH_PROGRESS);
+            this.id = id;
+            this.offset = offset;
+        }
+
+        @Override
+        public void writeToByteArray(byte[] array, int offset) {
+            ByteBuffer buffer = ByteBuffer.wrap(array, offset, array.length - offset);
+            buffer.put((byte) this.getType());
+            buffer.putShort(id);
+            buffer.putLong(this.offset);
+        }
+
+        @Override
+        public int getLen() {
+            return 11;
+        }
+    }
+
+    private static final class FilePullResponseMessage extends DeviceMessage {
+        private short id;
+        private int result;
+        private long fileSize;
+
+        private FilePullResponseMessage(short id, int result, long fileSize) {
+            super(TYPE_PULL_RESPONSE);
+            this.id = id;
+            this.result = result;
+            this.fileSize = fileSize;
+        }
+
+        @Override
+        public void writeToByteArray(byte[] array, int offset) {
+            ByteBuffer buffer = ByteBuffer.wrap(array, offset, array.length - offset);
+            buffer.put((byte) this.getType());
+            buffer.putShort(id);
+            buffer.put((byte) result);
+            buffer.putLong(fileSize);
+        }
+
+        @Override
+        public int getLen() {
+            return 12;
+        }
+    }
+
+    /**
+     * A file of a directory listing.
+     */
+    public static final class DirectoryEntry {
+        private final byte[] name;
+        private final int type;
+        private final long size;
+        private final long lastModified;
+
+        /**
+         * @param name         the file name
+         * @param type         one of the {@code ENTRY_*} constants
+         * @param size         the file size, in bytes
+         * @param lastModified the last modification time, in milliseconds since the epoch
+         */
+        public DirectoryEntry(String name, int type, long size, long lastModified) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.type = type;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final class DirectoryListingMessage extends DeviceMessage {
+        private short id;
+        private int result;
+        private int total;
+        private int start;
+        private List<DirectoryEntry> entries;
+
+        private DirectoryListingMessage(short id, int result, int total, int start, List<DirectoryEntry> entries) {
+            super(TYPE_DIRECTORY_LISTING);
+            this.id = id;
+            this.result = result;
+            this.total = total;
+            this.start = start;
+            this.entries = entries;
+        }
+
+        @Override
+        public void writeToByteArray(byte[] array, int offset) {
+            ByteBuffer buffer = ByteBuffer.wrap(array, offset, array.length - offset);
+            buffer.put((byte) this.getType());
+            buffer.putShort(id);
+            buffer.put((byte) result);
+            buffer.putInt(total);
+            buffer.putInt(start);
+            buffer.putShort((short) entries.size());
+            for (DirectoryEntry entry : entries) {
+                buffer.put((byte) entry.type);
+                buffer.putLong(entry.size);
+                buffer.putLong(entry.lastModified);
+                buffer.putShort((short) entry.name.length);
+                buffer.put(entry.name);
+            }
+        }
+
+        @Override
+        public int getLen() {
+            int len = 14;
+            for (DirectoryEntry entry : entries) {
+                len += 19 + entry.name.length;
+            }
+            return len;
+        }
+    }
+
     public static DeviceMessage createClipboard(String text) {
         return new ClipboardMessage(text);
     }
@@ -67,6 +198,34 @@ public abstract class DeviceMessage {
         return new FilePushResponseMessage(id, result);
     }
 
+    /**
+     * @param id     the push id
+     * @param offset the number of bytes of the file written to disk
+     */
+    public static DeviceMessage createPushProgress(short id, long offset) {
+        return new FilePushProgressMessage(id, offset);
+    }
+
+    /**
+     * @param id       the pull id
+     * @param result   0 or a negative error
+     * @param fileSize the size of the file, its chunks follow
+     */
+    public static DeviceMessage createPullResponse(short id, int result, long fileSize) {
+        return new FilePullResponseMessage(id, result, fileSize);
+    }
+
+    /**
+     * @param id      the listing request id
+     * @param result  0 or a negative error
+     * @param total   the total number of entries of the directory
+     * @param start   the index of the first entry of the page
+     * @param entries the entries of the page
+     */
+    public static DeviceMessage createDirectoryListing(short id, int result, int total, int start, List<DirectoryEntry> entries) {
+        return new DirectoryListingMessage(id, result, total, start, entries);
+    }
+
     public int getType() {
         return type;
     }
@@ -78,6 +237,19 @@ public abstract class DeviceMessage {
         writeToByteArray(temp, offset);
         return temp;
     }
+
+    /**
+     * Serialize the message as a binary websocket message, prefixed by its magic bytes.
+     *
+     * @return the buffer, ready to be sent
+     */
+    public ByteBuffer toWebSocketBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap(writeToByteArray(MAGIC_BYTES_MESSAGE.length));
+        buffer.put(MAGIC_BYTES_MESSAGE);
+        buffer.rewind();
+        return buffer;
+    }
+
     public abstract void writeToByteArray(byte[] array, int offset);
     public abstract int getLen();
 }
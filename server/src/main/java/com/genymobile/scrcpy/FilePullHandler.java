@@ -0,0 +1,482 @@
+package com.genymobile.scrcpy;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Send device files and directory listings to the websocket clients.
+ * <p>
+ * Like the pushes (see {@link FilePushHandler}), the files are read by a few dedicated I/O threads, all the operations of a pull being
+ * executed in order on the same thread. Each chunk is read (with a positional read, from the page cache) directly into its websocket frame,
+ * a pooled direct buffer which is enqueued as a whole to the socket: the data is copied only once, and the socket writes it without any
+ * intermediate copy.
+ * <p>
+ * The client acks the bytes received: at most "window" bytes are in flight, so a pull never floods the socket output queue, and the acked
+ * frames are returned to the pool. A pull may start at any offset, to resume an interrupted transfer.
+ * <p>
+ * The pull ids are chosen by the client, they are scoped to its connection.
+ * <p>
+ * Only the files and the directories under the allowed roots may be read (none by default, see {@link Options#getPullRoots()}): the
+ * paths are canonicalized first, so that neither ".." nor a symbolic link leads out of the roots.
+ */
+public final class FilePullHandler {
+
+    // the other errors are shared with the pushes
+    static final int ERROR_FAILED_TO_READ = -13;
+    static final int ERROR_PERMISSION_DENIED = -14;
+
+    static final int DEFAULT_WINDOW = 2 << 20; // 2 MB
+    static final int MAX_LIST_COUNT = 1000;
+
+    // type, id, offset and length
+    private static final int CHUNK_HEADER_LENGTH = 1 + 2 + 8 + 4;
+    private static final int MESSAGE_HEADER_LENGTH = DeviceMessage.MAGIC_BYTES_MESSAGE.length + CHUNK_HEADER_LENGTH;
+    private static final int FRAME_SIZE_SHIFT = 18; // 256 KB
+    // so that a frame, including its headers (the websocket frame header is at most 10 bytes), fits exactly in a pooled buffer
+    static final int CHUNK_SIZE = (1 << FRAME_SIZE_SHIFT) - 10 - MESSAGE_HEADER_LENGTH;
+
+    private static final int IO_THREADS = 2;
+    private static final long MAX_FREE_BYTES = 8 << 20; // 8 MB
+
+    private static final Metrics.Counter PULLED_FILES = Metrics.counter("pull.files");
+    private static final Metrics.Counter PULLED_BYTES = Metrics.counter("pull.bytes");
+    private static final Metrics.Counter LISTINGS = Metrics.counter("pull.listings");
+    private static final Metrics.Histogram CHUNK_READ = Metrics.histogram("pull.chunk_read_us");
+
+    // canonical paths
+    private final List<String> roots = new ArrayList<>();
+    private final ExecutorService[] executors;
+    private final BufferPool pool = new BufferPool(true, FRAME_SIZE_SHIFT, MAX_FREE_BYTES);
+    private final ConcurrentHashMap<PullKey, FilePull> pulls = new ConcurrentHashMap<>();
+
+    /**
+     * @param roots the directories which may be read, with all their content
+     */
+    public FilePullHandler(List<File> roots) {
+        this(roots, IO_THREADS);
+    }
+
+    FilePullHandler(List<File> roots, int ioThreads) {
+        for (File root : roots) {
+            try {
+                this.roots.add(root.getCanonicalPath());
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid pull root: \"" + root + "\"", e);
+            }
+        }
+        executors = FilePushHandler.createExecutors("pull-io", ioThreads);
+        Metrics.gauge("pull.active", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return pulls.size();
+            }
+        });
+    }
+
+    private static final class PullKey {
+        private final WebSocket conn;
+        private final short pullId;
+
+        PullKey(WebSocket conn, short pullId) {
+            this.conn = conn;
+            this.pullId = pullId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PullKey)) {
+                return false;
+            }
+            PullKey other = (PullKey) o;
+            return conn == other.conn && pullId == other.pullId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(conn) + pullId;
+        }
+    }
+
+    private static final class SentFrame {
+        private final ByteBuffer buffer;
+        private final long end;
+
+        SentFrame(ByteBuffer buffer, long end) {
+            this.buffer = buffer;
+            this.end = end;
+        }
+    }
+
+    private static final class FilePull {
+        private final PullKey key;
+        private final String path;
+        private final long startOffset;
+        private final int window;
+
+        // only accessed from the I/O thread of the pull
+        private FileChannel channel;
+        private long fileSize;
+        private long sentOffset;
+        private long ackedOffset;
+        // the frames enqueued to the socket, until they are acked
+        private final ArrayDeque<SentFrame> inFlight = new ArrayDeque<>();
+
+        FilePull(PullKey key, String path, long startOffset, int window) {
+            this.key = key;
+            this.path = path;
+            this.startOffset = startOffset;
+            this.window = window;
+        }
+
+        int open(File file) {
+            if (!file.isFile()) {
+                return FilePushHandler.ERROR_FILE_NOT_FOUND;
+            }
+            try {
+                channel = new FileInputStream(file).getChannel();
+                fileSize = channel.size();
+            } catch (FileNotFoundException e) {
+                return FilePushHandler.ERROR_FILE_NOT_FOUND;
+            } catch (IOException e) {
+                return ERROR_FAILED_TO_READ;
+            }
+            if (startOffset < 0 || startOffset > fileSize) {
+                return FilePushHandler.ERROR_INCORRECT_SIZE;
+            }
+            sentOffset = startOffset;
+            ackedOffset = startOffset;
+            return FilePushHandler.NO_ERROR;
+        }
+
+        boolean isOpen() {
+            return channel != null;
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Ln.w("Failed to close file: \"" + path + "\"");
+                }
+                channel = null;
+            }
+            // the frames not acked may still be read by the socket, they must not be recycled
+            inFlight.clear();
+        }
+    }
+
+    /**
+     * Resolve a path requested by a client.
+     *
+     * @return the canonical file, or {@code null} if it is not under an allowed root
+     */
+    File resolve(String path) {
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            return null;
+        }
+        String canonicalPath;
+        try {
+            canonicalPath = file.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+        for (String root : roots) {
+            String prefix = root.endsWith(File.separator) ? root : root + File.separator;
+            if (canonicalPath.equals(root) || canonicalPath.startsWith(prefix)) {
+                return new File(canonicalPath);
+            }
+        }
+        return null;
+    }
+
+    private void execute(short id, Runnable task) {
+        executors[(id & 0xffff) % executors.length].execute(task);
+    }
+
+    private static boolean send(WebSocket conn, DeviceMessage msg) {
+        try {
+            conn.send(msg.toWebSocketBuffer());
+            return true;
+        } catch (WebsocketNotConnectedException e) {
+            // the client has left
+            return false;
+        }
+    }
+
+    private static void sendResponse(WebSocket conn, short pullId, int result, long fileSize) {
+        send(conn, DeviceMessage.createPullResponse(pullId, result, fileSize));
+    }
+
+    private void release(FilePull pull) {
+        pulls.remove(pull.key, pull);
+        pull.close();
+    }
+
+    private void fail(FilePull pull, int error) {
+        release(pull);
+        sendResponse(pull.key.conn, pull.key.pullId, error, 0);
+    }
+
+    /**
+     * Read the next chunk into its frame and hand it over to the socket.
+     *
+     * @return {@code false} if the pull has failed (and has been released)
+     */
+    private boolean sendChunk(FilePull pull) {
+        long startNanos = System.nanoTime();
+        int length = (int) Math.min(CHUNK_SIZE, pull.fileSize - pull.sentOffset);
+        int payloadLength = MESSAGE_HEADER_LENGTH + length;
+        ByteBuffer frame = pool.acquire(VideoPacket.getFrameHeaderLength(payloadLength) + payloadLength);
+        VideoPacket.writeFrameHeader(frame, payloadLength);
+        int payloadPosition = frame.position();
+        frame.put(DeviceMessage.MAGIC_BYTES_MESSAGE);
+        frame.put((byte) DeviceMessage.TYPE_PULL_CHUNK);
+        frame.putShort(pull.key.pullId);
+        frame.putLong(pull.sentOffset);
+        frame.putInt(length);
+
+        long end = pull.sentOffset + length;
+        try {
+            long position = pull.sentOffset;
+            while (position < end) {
+                int r = pull.channel.read(frame, position);
+                if (r == -1) {
+                    // truncated meanwhile
+                    pool.release(frame);
+                    fail(pull, FilePushHandler.ERROR_INCORRECT_SIZE);
+                    return false;
+                }
+                position += r;
+            }
+        } catch (IOException e) {
+            pool.release(frame);
+            fail(pull, ERROR_FAILED_TO_READ);
+            return false;
+        }
+        frame.flip();
+        CHUNK_READ.record((System.nanoTime() - startNanos) / 1000);
+
+        WebSocket conn = pull.key.conn;
+        if (!conn.isOpen()) {
+            pool.release(frame);
+            release(pull);
+            return false;
+        }
+        if (conn instanceof WebSocketImpl) {
+            // already framed, enqueued as a whole (see WebSocketSender)
+            WebSocketImpl impl = (WebSocketImpl) conn;
+            impl.outQueue.add(frame);
+            impl.getWebSocketListener().onWriteDemand(impl);
+            pull.inFlight.add(new SentFrame(frame, end));
+        } else {
+            // the data is copied synchronously
+            frame.position(payloadPosition);
+            try {
+                conn.send(frame);
+            } catch (WebsocketNotConnectedException e) {
+                release(pull);
+                return false;
+            } finally {
+                pool.release(frame);
+            }
+        }
+        pull.sentOffset = end;
+        PULLED_BYTES.add(length);
+        return true;
+    }
+
+    private void pump(FilePull pull) {
+        while (pull.sentOffset < pull.fileSize && pull.sentOffset - pull.ackedOffset < pull.window) {
+            if (!sendChunk(pull)) {
+                return;
+            }
+        }
+        if (pull.ackedOffset == pull.fileSize) {
+            release(pull);
+            PULLED_FILES.inc();
+        }
+    }
+
+    private void onAck(FilePull pull, long offset) {
+        // ignore the acks beyond the bytes sent
+        offset = Math.min(offset, pull.sentOffset);
+        if (offset <= pull.ackedOffset) {
+            return;
+        }
+        pull.ackedOffset = offset;
+        // received by the client, so completely written by the socket
+        while (!pull.inFlight.isEmpty() && pull.inFlight.peek().end <= offset) {
+            pool.release(pull.inFlight.poll().buffer);
+        }
+        pump(pull);
+    }
+
+    private void handleStart(WebSocket conn, ControlMessage msg) {
+        short pullId = msg.getPullId();
+        String path = msg.getPath();
+        if (!path.startsWith("/")) {
+            sendResponse(conn, pullId, FilePushHandler.ERROR_INVALID_NAME, 0);
+            return;
+        }
+        int window = msg.getPullWindow() > 0 ? msg.getPullWindow() : DEFAULT_WINDOW;
+        PullKey key = new PullKey(conn, pullId);
+        final FilePull pull = new FilePull(key, path, msg.getPullOffset(), window);
+        if (pulls.putIfAbsent(key, pull) != null) {
+            sendResponse(conn, pullId, FilePushHandler.ERROR_INVALID_STATE, 0);
+            return;
+        }
+        execute(pullId, new Runnable() {
+            @Override
+            public void run() {
+                File file = resolve(pull.path);
+                int result = file != null ? pull.open(file) : ERROR_PERMISSION_DENIED;
+                if (result != FilePushHandler.NO_ERROR) {
+                    fail(pull, result);
+                    return;
+                }
+                sendResponse(pull.key.conn, pull.key.pullId, FilePushHandler.NO_ERROR, pull.fileSize);
+                pump(pull);
+            }
+        });
+    }
+
+    private void handleAck(WebSocket conn, final ControlMessage msg) {
+        final FilePull pull = pulls.get(new PullKey(conn, msg.getPullId()));
+        if (pull == null) {
+            // completed or canceled meanwhile
+            return;
+        }
+        execute(msg.getPullId(), new Runnable() {
+            @Override
+            public void run() {
+                if (pull.isOpen()) {
+                    onAck(pull, msg.getPullOffset());
+                }
+            }
+        });
+    }
+
+    private void handleCancel(WebSocket conn, ControlMessage msg) {
+        final FilePull pull = pulls.get(new PullKey(conn, msg.getPullId()));
+        if (pull == null) {
+            return;
+        }
+        execute(msg.getPullId(), new Runnable() {
+            @Override
+            public void run() {
+                release(pull);
+            }
+        });
+    }
+
+    /**
+     * Handle a pull message. A canceled pull is not acknowledged: the client must ignore the chunks already in flight.
+     */
+    public void handlePull(WebSocket conn, ControlMessage msg) {
+        switch (msg.getPullState()) {
+            case ControlMessage.PULL_STATE_START:
+                handleStart(conn, msg);
+                break;
+            case ControlMessage.PULL_STATE_ACK:
+                handleAck(conn, msg);
+                break;
+            case ControlMessage.PULL_STATE_CANCEL:
+                handleCancel(conn, msg);
+                break;
+            default:
+                sendResponse(conn, msg.getPullId(), FilePushHandler.ERROR_INVALID_STATE, 0);
+        }
+    }
+
+    /**
+     * Send a page of the entries of a directory, sorted by name (so that the pages are consistent as long as the directory does not
+     * change).
+     */
+    public void handleListDirectory(final WebSocket conn, final ControlMessage msg) {
+        execute(msg.getListId(), new Runnable() {
+            @Override
+            public void run() {
+                send(conn, listDirectory(msg.getListId(), msg.getPath(), msg.getListStart(), msg.getListCount()));
+            }
+        });
+    }
+
+    DeviceMessage listDirectory(short id, String path, int start, int count) {
+        List<DeviceMessage.DirectoryEntry> entries = new ArrayList<>();
+        if (!path.startsWith("/")) {
+            return DeviceMessage.createDirectoryListing(id, FilePushHandler.ERROR_INVALID_NAME, 0, start, entries);
+        }
+        File directory = resolve(path);
+        if (directory == null) {
+            return DeviceMessage.createDirectoryListing(id, ERROR_PERMISSION_DENIED, 0, start, entries);
+        }
+        String[] names = directory.list();
+        if (names == null) {
+            return DeviceMessage.createDirectoryListing(id, FilePushHandler.ERROR_FILE_NOT_FOUND, 0, start, entries);
+        }
+        LISTINGS.inc();
+        Arrays.sort(names);
+        if (count <= 0 || count > MAX_LIST_COUNT) {
+            count = MAX_LIST_COUNT;
+        }
+        start = Math.max(0, start);
+        int end = (int) Math.min((long) start + count, names.length);
+        for (int i = start; i < end; ++i) {
+            File file = new File(directory, names[i]);
+            int type;
+            if (file.isDirectory()) {
+                type = DeviceMessage.ENTRY_DIRECTORY;
+            } else if (file.isFile()) {
+                type = DeviceMessage.ENTRY_FILE;
+            } else {
+                type = DeviceMessage.ENTRY_OTHER;
+            }
+            entries.add(new DeviceMessage.DirectoryEntry(names[i], type, file.length(), file.lastModified()));
+        }
+        return DeviceMessage.createDirectoryListing(id, FilePushHandler.NO_ERROR, names.length, start, entries);
+    }
+
+    /**
+     * Release the pulls of a client which has left.
+     */
+    public void cancelAllForConnection(WebSocket conn) {
+        for (final FilePull pull : pulls.values()) {
+            if (pull.key.conn == conn) {
+                execute(pull.key.pullId, new Runnable() {
+                    @Override
+                    public void run() {
+                        release(pull);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Stop the I/O threads, once the pending operations are executed.
+     */
+    public void stop() {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+    }
+}
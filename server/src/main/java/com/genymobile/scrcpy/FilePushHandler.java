@@ -1,238 +1,706 @@
 package com.genymobile.scrcpy;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
 import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
+/**
+ * Write the files pushed by the websocket clients.
+ * <p>
+ * The push messages are received on the websocket threads, but the files are written by a few dedicated I/O threads, so that a slow disk
+ * never blocks a socket. All the operations of a push are executed in order on the same I/O thread, and the pushes are spread over the
+ * I/O threads, so that several files (of the same client or not) are written in parallel. The chunks are written directly from the
+ * websocket frames, which are never reused by the websocket, so they are not copied.
+ * <p>
+ * Older clients wait for an ack of each chunk. A client may instead request a progress message ({@link DeviceMessage#TYPE_PUSH_PROGRESS})
+ * every "ack window" bytes written to disk, and keep sending chunks meanwhile, up to 2 ack windows (at least {@link #MIN_QUEUED_BYTES})
+ * ahead of the bytes written: the chunks are kept in memory until they are written, so the push of a client sending faster than the disk
+ * writes fails. A push interrupted by a disconnection may be resumed (with {@link ControlMessage#PUSH_STATE_RESUME}) from the bytes
+ * already written, and its CRC32 may be verified on finish.
+ * <p>
+ * While a file is written, its length tells nothing about the bytes written (its space is reserved), so they are recorded aside, in a
+ * progress file ({@link #PROGRESS_SUFFIX}), from which a push interrupted without closing its file (the server was killed) is resumed.
+ * <p>
+ * The space of the whole file is checked and reserved on start, so that a push which cannot fit fails immediately. The chunks may be
+ * written at explicit offsets ({@link ControlMessage#PUSH_STATE_APPEND_AT}), in any order, so that a client may pipeline them: the
+ * progress messages report the bytes written from the start of the file without any hole.
+ */
 public final class FilePushHandler {
-    private static final int NEW_PUSH_ID = 1;
-    private static final int NO_ERROR = 0;
-    private static final int ERROR_INVALID_NAME = -1;
-    private static final int ERROR_NO_SPACE = -2;
-    private static final int ERROR_FAILED_TO_DELETE = -3;
-    private static final int ERROR_FAILED_TO_CREATE = -4;
-    private static final int ERROR_FILE_NOT_FOUND = -5;
-    private static final int ERROR_FAILED_TO_WRITE = -6;
-    private static final int ERROR_FILE_IS_BUSY = -7;
-    private static final int ERROR_INVALID_STATE = -8;
-    private static final int ERROR_UNKNOWN_ID = -9;
-    private static final int ERROR_NO_FREE_ID = -10;
-    private static final int ERROR_INCORRECT_SIZE = -11;
+    public static final String PUSH_PATH = "/data/local/tmp";
+
+    static final int NEW_PUSH_ID = 1;
+    static final int NO_ERROR = 0;
+    static final int ERROR_INVALID_NAME = -1;
+    static final int ERROR_NO_SPACE = -2;
+    static final int ERROR_FAILED_TO_DELETE = -3;
+    static final int ERROR_FAILED_TO_CREATE = -4;
+    static final int ERROR_FILE_NOT_FOUND = -5;
+    static final int ERROR_FAILED_TO_WRITE = -6;
+    static final int ERROR_FILE_IS_BUSY = -7;
+    static final int ERROR_INVALID_STATE = -8;
+    static final int ERROR_UNKNOWN_ID = -9;
+    static final int ERROR_NO_FREE_ID = -10;
+    static final int ERROR_INCORRECT_SIZE = -11;
+    static final int ERROR_CHECKSUM = -12;
+
+    static final String PROGRESS_SUFFIX = ".scrcpy-progress";
 
-    private static final String PUSH_PATH = "/data/local/tmp";
+    private static final int IO_THREADS = 2;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // the bytes received but not written yet, for the clients acked on every chunk (or with a small window)
+    static final long MIN_QUEUED_BYTES = 4 << 20; // 4 MB
+    // the bytes redone at most when a push is resumed after a crash
+    static final long PROGRESS_INTERVAL = 1024 * 1024;
 
-    private FilePushHandler() {
+    private static final Metrics.Counter PUSHED_FILES = Metrics.counter("push.files");
+    private static final Metrics.Counter PUSHED_BYTES = Metrics.counter("push.bytes");
+    private static final Metrics.Counter RESUMED_PUSHES = Metrics.counter("push.resumes");
+    private static final Metrics.Counter CHECKSUM_ERRORS = Metrics.counter("push.checksum_errors");
+    private static final Metrics.Histogram CHUNK_WRITE = Metrics.histogram("push.chunk_write_us");
+
+    /**
+     * Reserve the space of the pushed files.
+     */
+    interface Allocator {
+        void allocate(RandomAccessFile file, long length) throws ErrnoException, IOException;
     }
 
-    private static final class FilePush {
-        private static final HashMap<String, FilePush> INSTANCES_BY_NAME = new HashMap<>();
-        private static final HashMap<Short, FilePush> INSTANCES_BY_ID = new HashMap<>();
-        private static short nextPushId = 0;
+    private static final Allocator FALLOCATE = new Allocator() {
+        @Override
+        public void allocate(RandomAccessFile file, long length) throws ErrnoException, IOException {
+            Os.posix_fallocate(file.getFD(), 0, length);
+        }
+    };
 
-        private final FileOutputStream stream;
-        private final WebSocket conn;
+    private final File directory;
+    private final Allocator allocator;
+    private final ExecutorService[] executors;
+    private final ConcurrentHashMap<Short, FilePush> pushesById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FilePush> pushesByName = new ConcurrentHashMap<>();
+    private final AtomicInteger lastPushId = new AtomicInteger();
+
+    public FilePushHandler(File directory) {
+        this(directory, IO_THREADS, FALLOCATE);
+    }
+
+    FilePushHandler(File directory, int ioThreads, Allocator allocator) {
+        this.directory = directory;
+        this.allocator = allocator;
+        executors = createExecutors("push-io", ioThreads);
+        Metrics.gauge("push.active", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return pushesById.size();
+            }
+        });
+    }
+
+    /**
+     * Create single-threaded executors, so that the operations of a transfer are executed in order by submitting them always to the same
+     * executor.
+     */
+    static ExecutorService[] createExecutors(String name, int count) {
+        ExecutorService[] executors = new ExecutorService[count];
+        for (int i = 0; i < count; ++i) {
+            final String threadName = name + "-" + i;
+            executors[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executors;
+    }
+
+    private static final class FilePush {
         private final short pushId;
+        private final WebSocket conn;
         private final String fileName;
+        private final File file;
+        private final File progressFile;
+        private final Allocator allocator;
         private final long fileSize;
-        private long processedBytes = 0;
+        private final int ackWindow;
+        // the chunks received but not written yet, updated from the websocket and the I/O threads
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final long maxQueuedBytes;
+        // the client has sent too many chunks, the push is failing
+        private volatile boolean overflowed;
+        // of the contiguous bytes written from the start of the file
+        private final CRC32 checksum = new CRC32();
 
+        // only accessed from the I/O thread of the push
+        private RandomAccessFile output;
+        private FileChannel channel;
+        private FileChannel progressChannel;
+        // the bytes written from the start of the file, without any hole
+        private long contiguousBytes;
+        private long recordedBytes;
+        // the ranges (start -> end) written out of order, after the contiguous bytes
+        private final TreeMap<Long, Long> pendingRanges = new TreeMap<>();
+        // the end of the last chunk, where the next chunk without explicit offset is written
+        private long appendPosition;
+        private long ackedBytes;
 
-        FilePush(short pushId, long fileSize, String fileName, FileOutputStream stream, WebSocket conn) {
+        FilePush(short pushId, WebSocket conn, String fileName, File file, Allocator allocator, long fileSize, int ackWindow) {
             this.pushId = pushId;
-            this.fileSize = fileSize;
-            this.fileName = fileName;
-            this.stream = stream;
             this.conn = conn;
-            INSTANCES_BY_ID.put(pushId, this);
-            INSTANCES_BY_NAME.put(fileName, this);
+            this.fileName = fileName;
+            this.file = file;
+            progressFile = new File(file.getPath() + PROGRESS_SUFFIX);
+            this.allocator = allocator;
+            this.fileSize = fileSize;
+            this.ackWindow = ackWindow;
+            maxQueuedBytes = Math.max(2L * ackWindow, MIN_QUEUED_BYTES);
         }
-        public static FilePush getInstance(String fileName) {
-            return INSTANCES_BY_NAME.get(fileName);
+
+        int create() {
+            try {
+                if (!file.createNewFile()) {
+                    if (!file.delete()) {
+                        return ERROR_FAILED_TO_DELETE;
+                    }
+                }
+            } catch (IOException e) {
+                return ERROR_FAILED_TO_CREATE;
+            }
+            int result = open();
+            if (result == NO_ERROR) {
+                result = openProgress();
+            }
+            if (result == NO_ERROR) {
+                // recorded before the file is preallocated (a stale record of a previous push may exist)
+                try {
+                    recordProgress();
+                } catch (IOException e) {
+                    result = ERROR_FAILED_TO_WRITE;
+                }
+            }
+            if (result == NO_ERROR) {
+                result = preallocate();
+            }
+            if (result == ERROR_NO_SPACE) {
+                closeQuietly();
+                if (!file.delete()) {
+                    Ln.w("Failed to delete file: \"" + fileName + "\"");
+                }
+            }
+            return result;
         }
-        public static FilePush getInstance(short id) {
-            return INSTANCES_BY_ID.get(id);
+
+        int resume() {
+            int result = open();
+            if (result != NO_ERROR) {
+                return result;
+            }
+            boolean recorded = progressFile.exists();
+            result = openProgress();
+            if (result != NO_ERROR) {
+                return result;
+            }
+            try {
+                long length = channel.size();
+                if (recorded) {
+                    // the file may be longer: preallocated, or written after the last record
+                    length = Math.min(readProgress(), length);
+                }
+                if (length > fileSize) {
+                    return ERROR_INCORRECT_SIZE;
+                }
+                // the checksum covers the whole file, including the bytes written before the interruption
+                updateChecksum(0, length);
+                contiguousBytes = length;
+                appendPosition = length;
+                ackedBytes = length;
+                recordProgress();
+            } catch (IOException e) {
+                return ERROR_FAILED_TO_WRITE;
+            }
+            return preallocate();
+        }
+
+        private int open() {
+            try {
+                output = new RandomAccessFile(file, "rw");
+                channel = output.getChannel();
+                return NO_ERROR;
+            } catch (FileNotFoundException e) {
+                return ERROR_FILE_NOT_FOUND;
+            }
         }
-        public static short getNextPushId() {
-            short current = nextPushId;
-            while (INSTANCES_BY_ID.containsKey(++nextPushId)) {
-                if (nextPushId == Short.MAX_VALUE) {
-                    nextPushId = 0;
+
+        private int openProgress() {
+            try {
+                progressChannel = new RandomAccessFile(progressFile, "rw").getChannel();
+                return NO_ERROR;
+            } catch (FileNotFoundException e) {
+                return ERROR_FAILED_TO_CREATE;
+            }
+        }
+
+        /**
+         * @return the recorded contiguous bytes, or 0 if the record is incomplete
+         */
+        private long readProgress() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            while (buffer.hasRemaining()) {
+                if (progressChannel.read(buffer, buffer.position()) == -1) {
+                    return 0;
                 }
-                if (nextPushId == current) {
-                    return -1;
+            }
+            buffer.flip();
+            return buffer.getLong();
+        }
+
+        private void recordProgress() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            buffer.putLong(contiguousBytes);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                progressChannel.write(buffer, buffer.position());
+            }
+            recordedBytes = contiguousBytes;
+        }
+
+        /**
+         * Reserve the space of the whole file, so that the push does not fail near the end on a full disk, and the file is not
+         * fragmented.
+         */
+        private int preallocate() {
+            try {
+                allocator.allocate(output, fileSize);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC) {
+                    return ERROR_NO_SPACE;
                 }
+                // not supported by the file system (EOPNOTSUPP), the chunks are written at their offset anyway
+                Ln.w("Failed to preallocate file \"" + fileName + "\": " + e.getMessage());
+            } catch (IOException e) {
+                return ERROR_FAILED_TO_WRITE;
             }
-            return nextPushId;
+            return NO_ERROR;
         }
-        public static void releaseByConnection(WebSocket conn) {
-            ArrayList<FilePush> related = new ArrayList<>();
-            for (FilePush filePush: INSTANCES_BY_ID.values()) {
-                if (filePush.conn.equals(conn)) {
-                    related.add(filePush);
+
+        /**
+         * Write a chunk at the given offset.
+         *
+         * @return {@link #NO_ERROR}, or an error if the chunk is out of the file or overlaps bytes already written
+         */
+        int write(ByteBuffer chunk, long offset) throws IOException {
+            long end = offset + chunk.remaining();
+            if (offset < 0 || end > fileSize) {
+                return ERROR_INCORRECT_SIZE;
+            }
+            if (end == offset) {
+                return NO_ERROR;
+            }
+            Map.Entry<Long, Long> previous = pendingRanges.floorEntry(end - 1);
+            if (offset < contiguousBytes || (previous != null && previous.getValue() > offset)) {
+                return ERROR_INVALID_STATE;
+            }
+
+            boolean contiguous = offset == contiguousBytes;
+            if (contiguous) {
+                updateChecksum(chunk);
+            }
+            long position = offset;
+            while (chunk.hasRemaining()) {
+                position += channel.write(chunk, position);
+            }
+            appendPosition = end;
+
+            if (contiguous) {
+                contiguousBytes = end;
+                Long pendingEnd;
+                while ((pendingEnd = pendingRanges.remove(contiguousBytes)) != null) {
+                    // read back the bytes written out of order, now that the checksum has reached them
+                    updateChecksum(contiguousBytes, pendingEnd);
+                    contiguousBytes = pendingEnd;
+                }
+                if (contiguousBytes - recordedBytes >= PROGRESS_INTERVAL) {
+                    recordProgress();
+                }
+            } else {
+                // merge with the adjacent ranges
+                long start = offset;
+                Map.Entry<Long, Long> lower = pendingRanges.lowerEntry(offset);
+                if (lower != null && lower.getValue() == offset) {
+                    start = lower.getKey();
                 }
+                Long nextEnd = pendingRanges.remove(end);
+                pendingRanges.put(start, nextEnd != null ? nextEnd : end);
             }
-            for (FilePush filePush: related) {
-                try {
-                    filePush.release();
-                } catch (IOException e) {
-                    Ln.w("Failed to release stream for file: \"" + filePush.getFileName() + "\"");
+            return NO_ERROR;
+        }
+
+        private void updateChecksum(ByteBuffer chunk) {
+            if (chunk.hasArray()) {
+                checksum.update(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            } else {
+                byte[] bytes = new byte[chunk.remaining()];
+                chunk.duplicate().get(bytes);
+                checksum.update(bytes, 0, bytes.length);
+            }
+        }
+
+        private void updateChecksum(long from, long to) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            long position = from;
+            while (position < to) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), to - position));
+                int r = channel.read(buffer, position);
+                if (r == -1) {
+                    throw new EOFException("Unexpected end of file");
                 }
+                checksum.update(buffer.array(), 0, r);
+                position += r;
+            }
+        }
+
+        /**
+         * Tell whether a progress message must be sent, and consider it sent.
+         */
+        boolean takeAck() {
+            if (contiguousBytes - ackedBytes < ackWindow) {
+                return false;
             }
+            ackedBytes = contiguousBytes;
+            return true;
         }
-        public void write(byte[] chunk, int len) throws IOException {
-            processedBytes += len;
-            stream.write(chunk, 0, len);
+
+        boolean isOpen() {
+            return channel != null;
+        }
+
+        boolean isComplete() {
+            return contiguousBytes == fileSize;
         }
-        public String getFileName() {
-            return fileName;
+
+        /**
+         * Close the file. If it is incomplete, it is truncated to its contiguous bytes (dropping the preallocated space and the chunks
+         * written out of order), so that the push may be resumed from its length, and its progress file is deleted.
+         */
+        void close() throws IOException {
+            if (channel != null) {
+                FileChannel c = channel;
+                FileChannel p = progressChannel;
+                channel = null;
+                progressChannel = null;
+                try {
+                    if (contiguousBytes != fileSize) {
+                        c.truncate(contiguousBytes);
+                    }
+                } finally {
+                    try {
+                        c.close();
+                    } finally {
+                        if (p != null) {
+                            p.close();
+                        }
+                    }
+                }
+                // not reached if the file could not be truncated: its length would not be the progress
+                if (p != null && !progressFile.delete()) {
+                    Ln.w("Failed to delete file: \"" + progressFile.getName() + "\"");
+                }
+            }
         }
-        public boolean isComplete() {
-            return processedBytes == fileSize;
+
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                // ignore
+            }
         }
-        public void release() throws IOException {
-            INSTANCES_BY_ID.remove(pushId);
-            INSTANCES_BY_NAME.remove(fileName);
-            this.stream.close();
+    }
+
+    private static void send(WebSocket conn, DeviceMessage msg) {
+        try {
+            conn.send(msg.toWebSocketBuffer());
+        } catch (WebsocketNotConnectedException e) {
+            // the client has left, the push may be resumed on reconnection
         }
     }
 
+    private static void sendResponse(WebSocket conn, short pushId, int result) {
+        send(conn, DeviceMessage.createPushResponse(pushId, result));
+    }
+
+    private void execute(FilePush filePush, Runnable task) {
+        executors[(filePush.pushId & 0xffff) % executors.length].execute(task);
+    }
+
+    private void unregister(FilePush filePush) {
+        pushesById.remove(filePush.pushId, filePush);
+        pushesByName.remove(filePush.fileName, filePush);
+    }
+
+    private void release(FilePush filePush) throws IOException {
+        unregister(filePush);
+        filePush.close();
+    }
+
+    private void releaseQuietly(FilePush filePush) {
+        try {
+            release(filePush);
+        } catch (IOException e) {
+            Ln.w("Failed to release stream for file: \"" + filePush.fileName + "\"");
+        }
+    }
 
-    private static ByteBuffer pushFilePushResponse(short id, int result) {
-        DeviceMessage msg = DeviceMessage.createPushResponse(id, result);
-        return WebSocketConnection.deviceMessageToByteBuffer(msg);
+    private void fail(FilePush filePush, int error) {
+        releaseQuietly(filePush);
+        sendResponse(filePush.conn, filePush.pushId, error);
     }
 
-    private static FilePush checkPushId(WebSocket conn, ControlMessage msg) {
+    private FilePush checkPushId(WebSocket conn, ControlMessage msg) {
         short pushId = msg.getPushId();
-        FilePush filePush = FilePush.getInstance(pushId);
-        if (filePush == null) {
-            conn.send(pushFilePushResponse(pushId, ERROR_UNKNOWN_ID));
+        FilePush filePush = pushesById.get(pushId);
+        if (filePush == null || filePush.conn != conn) {
+            sendResponse(conn, pushId, ERROR_UNKNOWN_ID);
+            return null;
         }
         return filePush;
     }
 
-    private static void handleNew(WebSocket conn) {
-        short newPushId = FilePush.getNextPushId();
+    private short getNextPushId() {
+        for (int i = 0; i < Short.MAX_VALUE; ++i) {
+            // in [1, Short.MAX_VALUE]
+            short pushId = (short) ((lastPushId.incrementAndGet() & Integer.MAX_VALUE) % Short.MAX_VALUE + 1);
+            if (!pushesById.containsKey(pushId)) {
+                return pushId;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isValidName(String fileName) {
+        return !fileName.isEmpty() && !fileName.contains("/") && !".".equals(fileName) && !"..".equals(fileName)
+                && !fileName.endsWith(PROGRESS_SUFFIX);
+    }
+
+    private void handleNew(WebSocket conn) {
+        short newPushId = getNextPushId();
         if (newPushId == -1) {
-            conn.send(FilePushHandler.pushFilePushResponse(newPushId, ERROR_NO_FREE_ID));
+            sendResponse(conn, newPushId, ERROR_NO_FREE_ID);
         } else {
-            conn.send(FilePushHandler.pushFilePushResponse(newPushId, NEW_PUSH_ID));
+            sendResponse(conn, newPushId, NEW_PUSH_ID);
         }
     }
-    private static void handleStart(WebSocket conn, ControlMessage msg) {
+
+    private void handleStart(WebSocket conn, ControlMessage msg, final boolean resume) {
         short pushId = msg.getPushId();
         String fileName = msg.getFileName();
-        int fileSize = msg.getFileSize();
-        if (FilePush.getInstance(fileName) != null) {
-            conn.send(pushFilePushResponse(pushId, ERROR_FILE_IS_BUSY));
+        if (!isValidName(fileName)) {
+            sendResponse(conn, pushId, ERROR_INVALID_NAME);
             return;
         }
-        if (fileName.contains("/")) {
-            conn.send(pushFilePushResponse(pushId, ERROR_INVALID_NAME));
+        File file = new File(directory, fileName);
+        final FilePush filePush = new FilePush(pushId, conn, fileName, file, allocator, msg.getFileSize(), Math.max(0, msg.getPushAckWindow()));
+        if (pushesByName.putIfAbsent(fileName, filePush) != null) {
+            sendResponse(conn, pushId, ERROR_FILE_IS_BUSY);
+            return;
+        }
+        if (pushesById.putIfAbsent(pushId, filePush) != null) {
+            pushesByName.remove(fileName, filePush);
+            sendResponse(conn, pushId, ERROR_INVALID_STATE);
+            return;
+        }
+        // reject immediately the pushes which cannot fit (the space of the file replaced or resumed is available)
+        if (directory.getUsableSpace() + file.length() < filePush.fileSize) {
+            unregister(filePush);
+            sendResponse(conn, pushId, ERROR_NO_SPACE);
             return;
         }
-        File file = new File(PUSH_PATH, fileName);
-
-//        long freeSpace = file.getFreeSpace();
-//        if (freeSpace < fileSize) {
-//            sender.send(pushFilePushResponse(pushId, ERROR_NO_SPACE));
-//            return;
-//        }
 
-        try {
-            if (!file.createNewFile()) {
-                if (!file.delete()) {
-                    conn.send(pushFilePushResponse(pushId, ERROR_FAILED_TO_DELETE));
-                    return;
+        execute(filePush, new Runnable() {
+            @Override
+            public void run() {
+                int result = resume ? filePush.resume() : filePush.create();
+                if (result != NO_ERROR) {
+                    fail(filePush, result);
+                } else if (resume) {
+                    RESUMED_PUSHES.inc();
+                    // the client continues from there
+                    send(filePush.conn, DeviceMessage.createPushProgress(filePush.pushId, filePush.contiguousBytes));
+                } else {
+                    sendResponse(filePush.conn, filePush.pushId, NO_ERROR);
                 }
             }
-        } catch (IOException e) {
-            conn.send(pushFilePushResponse(pushId, ERROR_FAILED_TO_CREATE));
+        });
+    }
+
+    private void handleAppend(WebSocket conn, ControlMessage msg) {
+        final FilePush filePush = checkPushId(conn, msg);
+        if (filePush == null || filePush.overflowed) {
             return;
         }
-
-        FileOutputStream stream;
-        try {
-            stream = new FileOutputStream(file);
-        } catch (FileNotFoundException e) {
-            conn.send(pushFilePushResponse(pushId, ERROR_FILE_NOT_FOUND));
+        final ByteBuffer chunk = msg.getPushChunk();
+        final boolean explicitOffset = msg.getPushState() == ControlMessage.PUSH_STATE_APPEND_AT;
+        final long offset = msg.getPushOffset();
+        final int length = chunk.remaining();
+        long queuedBytes = filePush.queuedBytes.addAndGet(length);
+        // a single chunk is always accepted
+        if (queuedBytes > filePush.maxQueuedBytes && queuedBytes > length) {
+            // the chunks received meanwhile are dropped, the client is notified once the chunks already queued are written
+            filePush.overflowed = true;
+            execute(filePush, new Runnable() {
+                @Override
+                public void run() {
+                    if (filePush.isOpen()) {
+                        fail(filePush, ERROR_INVALID_STATE);
+                    }
+                }
+            });
             return;
         }
-
-        new FilePush(pushId, fileSize, fileName, stream, conn);
-        conn.send(pushFilePushResponse(pushId, NO_ERROR));
-
+        execute(filePush, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    append(filePush, chunk, explicitOffset, offset);
+                } finally {
+                    filePush.queuedBytes.addAndGet(-length);
+                }
+            }
+        });
     }
-    private static void handleAppend(WebSocket conn, ControlMessage msg) {
-        FilePush filePush = checkPushId(conn, msg);
-        if (filePush == null) {
+
+    private void append(FilePush filePush, ByteBuffer chunk, boolean explicitOffset, long offset) {
+        if (!filePush.isOpen()) {
+            // failed or canceled, the client has already been notified
             return;
         }
-        short pushId = msg.getPushId();
+        long startNanos = System.nanoTime();
+        int length = chunk.remaining();
+        int result;
         try {
-            filePush.write(msg.getPushChunk(), msg.getPushChunkSize());
-            conn.send(pushFilePushResponse(pushId, NO_ERROR));
+            result = filePush.write(chunk, explicitOffset ? offset : filePush.appendPosition);
         } catch (IOException e) {
-            conn.send(pushFilePushResponse(pushId, ERROR_FAILED_TO_WRITE));
-            try {
-                filePush.release();
-            } catch (IOException ex) {
-                Ln.w("Failed to release stream for file: \"" + filePush.getFileName() + "\"");
-            }
+            result = ERROR_FAILED_TO_WRITE;
+        }
+        if (result != NO_ERROR) {
+            fail(filePush, result);
+            return;
+        }
+        PUSHED_BYTES.add(length);
+        CHUNK_WRITE.record((System.nanoTime() - startNanos) / 1000);
+        if (filePush.ackWindow == 0) {
+            sendResponse(filePush.conn, filePush.pushId, NO_ERROR);
+        } else if (filePush.takeAck()) {
+            send(filePush.conn, DeviceMessage.createPushProgress(filePush.pushId, filePush.contiguousBytes));
         }
     }
-    private static void handleFinish(WebSocket conn, ControlMessage msg) {
-        FilePush filePush = checkPushId(conn, msg);
+
+    private void handleFinish(WebSocket conn, final ControlMessage msg) {
+        final FilePush filePush = checkPushId(conn, msg);
         if (filePush == null) {
             return;
         }
-        short pushId = msg.getPushId();
-        if (filePush.isComplete()) {
-            try {
-                filePush.release();
-                conn.send(pushFilePushResponse(pushId, NO_ERROR));
-            } catch (IOException e) {
-                conn.send(pushFilePushResponse(pushId, ERROR_FAILED_TO_WRITE));
+        execute(filePush, new Runnable() {
+            @Override
+            public void run() {
+                if (!filePush.isOpen()) {
+                    return;
+                }
+                if (!filePush.isComplete()) {
+                    sendResponse(filePush.conn, filePush.pushId, ERROR_INCORRECT_SIZE);
+                    return;
+                }
+                long expectedChecksum = msg.getPushChecksum();
+                if (expectedChecksum != ControlMessage.NO_CHECKSUM && expectedChecksum != filePush.checksum.getValue()) {
+                    CHECKSUM_ERRORS.inc();
+                    fail(filePush, ERROR_CHECKSUM);
+                    return;
+                }
+                try {
+                    release(filePush);
+                    PUSHED_FILES.inc();
+                    sendResponse(filePush.conn, filePush.pushId, NO_ERROR);
+                } catch (IOException e) {
+                    sendResponse(filePush.conn, filePush.pushId, ERROR_FAILED_TO_WRITE);
+                }
             }
-        } else {
-            conn.send(pushFilePushResponse(pushId, ERROR_INCORRECT_SIZE));
-        }
+        });
     }
-    private static void handleCancel(WebSocket conn, ControlMessage msg) {
-        FilePush filePush = checkPushId(conn, msg);
+
+    private void handleCancel(WebSocket conn, ControlMessage msg) {
+        final FilePush filePush = checkPushId(conn, msg);
         if (filePush == null) {
             return;
         }
-        short pushId = msg.getPushId();
-        try {
-            filePush.release();
-            conn.send(pushFilePushResponse(pushId, NO_ERROR));
-        } catch (IOException e) {
-            conn.send(pushFilePushResponse(pushId, ERROR_FAILED_TO_WRITE));
-        }
+        execute(filePush, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release(filePush);
+                    sendResponse(filePush.conn, filePush.pushId, NO_ERROR);
+                } catch (IOException e) {
+                    sendResponse(filePush.conn, filePush.pushId, ERROR_FAILED_TO_WRITE);
+                }
+            }
+        });
     }
 
-    public static void cancelAllForConnection(WebSocket conn) {
-        FilePush.releaseByConnection(conn);
+    /**
+     * Close the pushes of a client which has left. The partial files are kept, so that the pushes may be resumed.
+     */
+    public void cancelAllForConnection(WebSocket conn) {
+        for (final FilePush filePush : pushesById.values()) {
+            if (filePush.conn == conn) {
+                execute(filePush, new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseQuietly(filePush);
+                    }
+                });
+            }
+        }
     }
 
-    public static void handlePush(WebSocket conn, ControlMessage msg) {
+    /**
+     * Handle a push message. Only the id allocation and the validation are executed on the caller thread.
+     */
+    public void handlePush(WebSocket conn, ControlMessage msg) {
         int state = msg.getPushState();
         switch (state) {
             case ControlMessage.PUSH_STATE_NEW:
                 handleNew(conn);
                 break;
             case ControlMessage.PUSH_STATE_APPEND:
+            case ControlMessage.PUSH_STATE_APPEND_AT:
                 handleAppend(conn, msg);
                 break;
             case ControlMessage.PUSH_STATE_START:
-                handleStart(conn, msg);
+                handleStart(conn, msg, false);
+                break;
+            case ControlMessage.PUSH_STATE_RESUME:
+                handleStart(conn, msg, true);
                 break;
             case ControlMessage.PUSH_STATE_FINISH:
                 handleFinish(conn, msg);
@@ -241,7 +709,16 @@ public final class FilePushHandler {
                 handleCancel(conn, msg);
                 break;
             default:
-                conn.send(pushFilePushResponse(msg.getPushId(), ERROR_INVALID_STATE));
+                sendResponse(conn, msg.getPushId(), ERROR_INVALID_STATE);
+        }
+    }
+
+    /**
+     * Stop the I/O threads, once the pending operations are executed.
+     */
+    public void stop() {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
         }
     }
 }
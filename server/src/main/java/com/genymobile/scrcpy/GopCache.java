@@ -0,0 +1,118 @@
+package com.genymobile.scrcpy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cache of the packets required by a new client to start decoding immediately: the last codec config packet, then the last key frame and
+ * every packet since.
+ * <p>
+ * If the current group of pictures exceeds the maximum size, it is discarded (until the next key frame); only the codec config is kept.
+ * <p>
+ * This class is not thread-safe: the caller must synchronize the accesses.
+ */
+public final class GopCache {
+
+    private final int maxSize;
+
+    private VideoPacket configPacket;
+    private final List<VideoPacket> gop = new ArrayList<>();
+    private int gopSize;
+    private boolean overflowed;
+
+    /**
+     * @param maxSize the maximum size of the cached packets, in bytes (0 to only cache the codec config)
+     */
+    public GopCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void add(VideoPacket packet) {
+        if (packet.isConfig()) {
+            // a new codec config starts a new stream, the previous frames are useless
+            clearGop();
+            if (configPacket != null) {
+                configPacket.release();
+            }
+            configPacket = packet.retain();
+            return;
+        }
+
+        if (packet.isKeyFrame()) {
+            clearGop();
+            overflowed = false;
+        } else if (gop.isEmpty()) {
+            // no key frame to start from
+            return;
+        }
+
+        if (overflowed) {
+            return;
+        }
+
+        if (gopSize + packet.getSize() > maxSize) {
+            Ln.d("GOP cache full (" + maxSize + " bytes), cache only the codec config until the next key frame");
+            clearGop();
+            overflowed = true;
+            return;
+        }
+
+        gop.add(packet.retain());
+        gopSize += packet.getSize();
+    }
+
+    /**
+     * Tell whether a new client could start decoding from the cached packets.
+     *
+     * @return {@code true} if the cache contains a codec config and a key frame
+     */
+    public boolean hasKeyFrame() {
+        return configPacket != null && !gop.isEmpty();
+    }
+
+    /**
+     * Return the cached packets, in decoding order.
+     * <p>
+     * The packets are not retained, the caller must retain them if it keeps them.
+     *
+     * @return the cached packets
+     */
+    public List<VideoPacket> getPackets() {
+        List<VideoPacket> packets = new ArrayList<>(gop.size() + 1);
+        if (configPacket != null) {
+            packets.add(configPacket);
+        }
+        packets.addAll(gop);
+        return packets;
+    }
+
+    public int getGopSize() {
+        return gopSize;
+    }
+
+    private void clearGop() {
+        for (VideoPacket packet : gop) {
+            packet.release();
+        }
+        gop.clear();
+        gopSize = 0;
+    }
+
+    /**
+     * Drop the packets which a new client must not receive after a settings change: after a frame format change, they have the previous
+     * header.
+     */
+    public void onVideoSettingsChanged(VideoSettingsDiff diff) {
+        if (diff.hasFrameFormatChanges()) {
+            clear();
+        }
+    }
+
+    public void clear() {
+        clearGop();
+        if (configPacket != null) {
+            configPacket.release();
+            configPacket = null;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.genymobile.scrcpy;
+
+import android.view.MotionEvent;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bounded queue of the control messages to handle, drained by a dedicated injection thread.
+ * <p>
+ * The producers (typically the websocket threads, which read all the sockets) only enqueue the messages, so that a slow injection (a binder
+ * call) never delays the network. The consumer handles the messages in order, and flushes the {@link Controller} once the queue is empty,
+ * so that the consecutive moves received in a burst are coalesced.
+ * <p>
+ * When the queue is full, the oldest touch move is dropped: the next move or up event of the same pointer carries its absolute position
+ * anyway. The other messages (down, up, keys, text...) are never dropped, so the queue may exceed its capacity if it only contains such
+ * messages.
+ */
+public final class InjectionQueue implements Runnable {
+
+    public static final int DEFAULT_CAPACITY = 128; // messages
+
+    private static final Metrics.Histogram LATENCY = Metrics.histogram("control.injection_latency_us");
+    private static final Metrics.Counter DROPPED_MOVES = Metrics.counter("control.dropped_moves");
+
+    private final Controller controller;
+    private final int capacity;
+    private final ArrayDeque<ControlMessage> queue = new ArrayDeque<>();
+
+    private boolean stopped;
+    private Thread thread;
+
+    // statistics (the latencies are only written by the injection thread)
+    private int maxDepth;
+    private long droppedMoves;
+    private volatile long handledCount;
+    private volatile long latencyTotalNanos;
+    private volatile long latencyMaxNanos;
+
+    public InjectionQueue(Controller controller) {
+        this(controller, DEFAULT_CAPACITY);
+    }
+
+    public InjectionQueue(Controller controller, int capacity) {
+        this.controller = controller;
+        this.capacity = capacity;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Injection queue already started");
+        }
+        thread = new Thread(this, "control-injector");
+        thread.start();
+    }
+
+    /**
+     * Stop the injection thread. The messages not handled yet are dropped.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        queue.clear();
+        notify();
+        if (thread != null) {
+            thread.interrupt();
+        }
+        Ln.d("Injection queue stopped: " + getStats());
+    }
+
+    /**
+     * Enqueue a message to handle, from any thread.
+     *
+     * @param msg the message
+     * @return {@code false} if the message has been dropped (because the queue is full or stopped)
+     */
+    public synchronized boolean offer(ControlMessage msg) {
+        if (stopped) {
+            return false;
+        }
+        if (queue.size() >= capacity) {
+            if (!dropOldestMove()) {
+                if (isMove(msg)) {
+                    // only down/up/key events are queued, drop the new move instead
+                    ++droppedMoves;
+                    DROPPED_MOVES.inc();
+                    return false;
+                }
+                // never drop the other messages, even beyond the capacity
+            }
+        }
+        msg.setReceivedAtNanos(System.nanoTime());
+        queue.add(msg);
+        if (queue.size() > maxDepth) {
+            maxDepth = queue.size();
+        }
+        notify();
+        return true;
+    }
+
+    private boolean dropOldestMove() {
+        Iterator<ControlMessage> it = queue.iterator();
+        while (it.hasNext()) {
+            if (isMove(it.next())) {
+                it.remove();
+                ++droppedMoves;
+                DROPPED_MOVES.inc();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isMove(ControlMessage msg) {
+        return msg.getType() == ControlMessage.TYPE_INJECT_TOUCH_EVENT && msg.getAction() == MotionEvent.ACTION_MOVE;
+    }
+
+    private synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    // package-private for tests
+    synchronized ControlMessage poll() {
+        return queue.poll();
+    }
+
+    private synchronized ControlMessage take() throws InterruptedException {
+        while (!stopped && queue.isEmpty()) {
+            wait();
+        }
+        return queue.poll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                ControlMessage msg = poll();
+                if (msg == null) {
+                    if (isStopped()) {
+                        break;
+                    }
+                    // no more message immediately available, inject the pending move (if any) before waiting
+                    controller.flush();
+                    msg = take();
+                    if (msg == null) {
+                        // stopped
+                        break;
+                    }
+                }
+                try {
+                    controller.handleEvent(msg);
+                } catch (RuntimeException e) {
+                    Ln.e("Could not handle control message", e);
+                }
+                recordLatency(System.nanoTime() - msg.getReceivedAtNanos());
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private void recordLatency(long latencyNanos) {
+        LATENCY.record(latencyNanos / 1000);
+        ++handledCount;
+        latencyTotalNanos += latencyNanos;
+        if (latencyNanos > latencyMaxNanos) {
+            latencyMaxNanos = latencyNanos;
+        }
+    }
+
+    /**
+     * Return the number of messages waiting to be handled.
+     *
+     * @return the queue depth
+     */
+    public synchronized int getDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getDroppedMoves() {
+        return droppedMoves;
+    }
+
+    public long getHandledCount() {
+        return handledCount;
+    }
+
+    /**
+     * Return the average delay between the reception of a message and the end of its handling (including the injection).
+     *
+     * @return the average injection latency, in nanoseconds
+     */
+    public long getAverageLatencyNanos() {
+        long count = getHandledCount();
+        return count == 0 ? 0 : latencyTotalNanos / count;
+    }
+
+    public long getMaxLatencyNanos() {
+        return latencyMaxNanos;
+    }
+
+    public String getStats() {
+        return "messages=" + getHandledCount()
+                + ", depth=" + getDepth() + "/" + capacity
+                + ", maxDepth=" + getMaxDepth()
+                + ", droppedMoves=" + getDroppedMoves()
+                + ", avgLatency=" + getAverageLatencyNanos() / 1000 + "us"
+                + ", maxLatency=" + latencyMaxNanos / 1000 + "us";
+    }
+}
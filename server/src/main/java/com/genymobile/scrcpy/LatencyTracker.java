@@ -0,0 +1,108 @@
+package com.genymobile.scrcpy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Latency breakdown of the frames sent to a single client, from the latency probe (see {@link VideoSettings#getLatencyProbe()}).
+ * <p>
+ * The sender records when each probed frame is handed over to the socket. When the client echoes the sequence number of a frame with the
+ * times it received, decoded and displayed it (in its own clock), the round trip is known in the server clock, so the network delay can be
+ * estimated without synchronizing the clocks:
+ * <pre>
+ *     network (one way) = (echo arrival - sent - (displayed - received)) / 2
+ *     glass-to-glass    = (sent - capture) + network + (displayed - received)
+ * </pre>
+ * The breakdowns are recorded in the {@code latency.*} histograms of {@link Metrics}.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class LatencyTracker {
+
+    // enough for several seconds of frames in flight
+    static final int CAPACITY = 256;
+
+    private static final Metrics.Histogram SERVER = Metrics.histogram("latency.server_us");
+    private static final Metrics.Histogram NETWORK = Metrics.histogram("latency.network_us");
+    private static final Metrics.Histogram DECODE = Metrics.histogram("latency.decode_us");
+    private static final Metrics.Histogram DISPLAY = Metrics.histogram("latency.display_us");
+    private static final Metrics.Histogram GLASS_TO_GLASS = Metrics.histogram("latency.glass_to_glass_us");
+
+    // indexed by sequence number modulo the capacity
+    private final int[] sequences = new int[CAPACITY];
+    private final long[] captureUs = new long[CAPACITY];
+    private final long[] sentUs = new long[CAPACITY];
+
+    private long lastServerUs;
+    private long lastNetworkUs;
+    private long lastDecodeUs;
+    private long lastDisplayUs;
+    private long lastGlassToGlassUs;
+
+    public LatencyTracker() {
+        for (int i = 0; i < CAPACITY; ++i) {
+            sequences[i] = -1;
+        }
+    }
+
+    /**
+     * Record that a probed frame has been handed over to the socket.
+     *
+     * @param sequence  the sequence number of the frame
+     * @param captureUs the capture time of the frame
+     * @param sentNanos the {@link System#nanoTime()} when the frame was sent
+     */
+    public synchronized void onSent(int sequence, long captureUs, long sentNanos) {
+        int index = sequence & (CAPACITY - 1);
+        sequences[index] = sequence;
+        this.captureUs[index] = captureUs;
+        sentUs[index] = sentNanos / 1000;
+    }
+
+    /**
+     * Compute the latency breakdown of a frame echoed by the client.
+     *
+     * @param echo          the {@link ControlMessage#TYPE_LATENCY_ECHO} message
+     * @param receivedNanos the {@link System#nanoTime()} when the echo was received
+     * @return {@code false} if the frame is unknown (not probed, or too old)
+     */
+    public synchronized boolean onEcho(ControlMessage echo, long receivedNanos) {
+        int sequence = echo.getSequence();
+        int index = sequence & (CAPACITY - 1);
+        if (sequence < 0 || sequences[index] != sequence) {
+            return false;
+        }
+        // only once per frame
+        sequences[index] = -1;
+
+        long clientUs = echo.getDisplayedUs() - echo.getReceivedUs();
+        long roundTripUs = receivedNanos / 1000 - sentUs[index] - clientUs;
+        lastServerUs = sentUs[index] - captureUs[index];
+        lastNetworkUs = Math.max(0, roundTripUs / 2);
+        lastDecodeUs = echo.getDecodedUs() - echo.getReceivedUs();
+        lastDisplayUs = echo.getDisplayedUs() - echo.getDecodedUs();
+        lastGlassToGlassUs = lastServerUs + lastNetworkUs + clientUs;
+
+        SERVER.record(lastServerUs);
+        NETWORK.record(lastNetworkUs);
+        DECODE.record(lastDecodeUs);
+        DISPLAY.record(lastDisplayUs);
+        GLASS_TO_GLASS.record(lastGlassToGlassUs);
+        return true;
+    }
+
+    /**
+     * Return the breakdown of the last echoed frame.
+     *
+     * @return the durations by stage, in microseconds
+     */
+    public synchronized Map<String, Object> getLastBreakdown() {
+        Map<String, Object> breakdown = new HashMap<>();
+        breakdown.put("serverUs", lastServerUs);
+        breakdown.put("networkUs", lastNetworkUs);
+        breakdown.put("decodeUs", lastDecodeUs);
+        breakdown.put("displayUs", lastDisplayUs);
+        breakdown.put("glassToGlassUs", lastGlassToGlassUs);
+        return breakdown;
+    }
+}
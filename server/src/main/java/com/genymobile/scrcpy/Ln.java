@@ -2,9 +2,16 @@ package com.genymobile.scrcpy;
 
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Log both to Android logger (so that logs are visible in "adb logcat") and standard output/error (so that they are visible in the terminal
  * directly).
+ * <p>
+ * Once {@link #startAsyncAppender()} is called, the messages are written by a dedicated thread, so that logging never blocks the caller on
+ * I/O. On hot paths, the messages should be built lazily (from a {@link MessageSupplier}, or under {@link #isEnabled(Level)}), so that a
+ * disabled level costs nothing, and repeated warnings should be throttled by a {@link RateLimiter}.
  */
 public final class Ln {
 
@@ -15,8 +22,52 @@ public final class Ln {
         VERBOSE, DEBUG, INFO, WARN, ERROR
     }
 
+    /**
+     * Build a log message only if its level is enabled.
+     * <p>
+     * To avoid any allocation, the supplier should not capture variables (a static instance may be reused).
+     */
+    public interface MessageSupplier {
+        String get();
+    }
+
+    /**
+     * Limit the rate of the messages logged from a call site (typically stored in a static field), so that a flood of identical warnings
+     * cannot saturate the log.
+     * <p>
+     * The number of suppressed messages is appended to the next logged message.
+     */
+    public static final class RateLimiter {
+        private final long intervalNanos;
+        private final AtomicLong nextNanos;
+        private final AtomicInteger suppressed = new AtomicInteger();
+
+        /**
+         * @param intervalMs the minimal interval between two messages, in milliseconds
+         */
+        public RateLimiter(long intervalMs) {
+            intervalNanos = intervalMs * 1_000_000;
+            nextNanos = new AtomicLong(System.nanoTime());
+        }
+
+        boolean tryAcquire(long nowNanos) {
+            long next = nextNanos.get();
+            if (nowNanos - next < 0 || !nextNanos.compareAndSet(next, nowNanos + intervalNanos)) {
+                suppressed.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        int takeSuppressed() {
+            return suppressed.getAndSet(0);
+        }
+    }
+
     private static Level threshold = Level.INFO;
 
+    private static volatile LogAppender appender;
+
     private Ln() {
         // not instantiable
     }
@@ -32,49 +83,151 @@ public final class Ln {
         threshold = level;
     }
 
+    /**
+     * Write the messages from a dedicated thread from now on.
+     * <p>
+     * The pending messages are flushed on exit. If the queue is full, the messages are dropped (and counted), except the errors, which are
+     * written synchronously.
+     */
+    public static synchronized void startAsyncAppender() {
+        if (appender != null) {
+            return;
+        }
+        final LogAppender newAppender = new LogAppender(LogAppender.DEFAULT_CAPACITY);
+        newAppender.start();
+        appender = newAppender;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopAsyncAppender();
+            }
+        }));
+    }
+
+    /**
+     * Flush the pending messages and write the next ones synchronously.
+     */
+    public static synchronized void stopAsyncAppender() {
+        LogAppender current = appender;
+        if (current != null) {
+            appender = null;
+            current.stop();
+        }
+    }
+
     public static boolean isEnabled(Level level) {
         return level.ordinal() >= threshold.ordinal();
     }
 
     public static void v(String message) {
         if (isEnabled(Level.VERBOSE)) {
-            Log.v(TAG, message);
-            System.out.println(PREFIX + "VERBOSE: " + message);
+            log(Level.VERBOSE, message, null);
+        }
+    }
+
+    public static void v(MessageSupplier supplier) {
+        if (isEnabled(Level.VERBOSE)) {
+            log(Level.VERBOSE, supplier.get(), null);
         }
     }
 
     public static void d(String message) {
         if (isEnabled(Level.DEBUG)) {
-            Log.d(TAG, message);
-            System.out.println(PREFIX + "DEBUG: " + message);
+            log(Level.DEBUG, message, null);
+        }
+    }
+
+    public static void d(MessageSupplier supplier) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, supplier.get(), null);
         }
     }
 
+    public static void d(RateLimiter limiter, String message) {
+        logLimited(Level.DEBUG, limiter, message);
+    }
+
     public static void i(String message) {
         if (isEnabled(Level.INFO)) {
-            Log.i(TAG, message);
-            System.out.println(PREFIX + "INFO: " + message);
+            log(Level.INFO, message, null);
         }
     }
 
+    public static void i(MessageSupplier supplier) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, supplier.get(), null);
+        }
+    }
+
+    public static void i(RateLimiter limiter, String message) {
+        logLimited(Level.INFO, limiter, message);
+    }
+
     public static void w(String message) {
         if (isEnabled(Level.WARN)) {
-            Log.w(TAG, message);
-            System.out.println(PREFIX + "WARN: " + message);
+            log(Level.WARN, message, null);
+        }
+    }
+
+    public static void w(MessageSupplier supplier) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, supplier.get(), null);
         }
     }
 
+    public static void w(RateLimiter limiter, String message) {
+        logLimited(Level.WARN, limiter, message);
+    }
+
     public static void e(String message, Throwable throwable) {
         if (isEnabled(Level.ERROR)) {
-            Log.e(TAG, message, throwable);
-            System.out.println(PREFIX + "ERROR: " + message);
-            if (throwable != null) {
-                throwable.printStackTrace();
-            }
+            log(Level.ERROR, message, throwable);
         }
     }
 
     public static void e(String message) {
         e(message, null);
     }
+
+    private static void logLimited(Level level, RateLimiter limiter, String message) {
+        if (!isEnabled(level) || !limiter.tryAcquire(System.nanoTime())) {
+            return;
+        }
+        int suppressed = limiter.takeSuppressed();
+        if (suppressed > 0) {
+            message += " (" + suppressed + " similar messages suppressed)";
+        }
+        log(level, message, null);
+    }
+
+    private static void log(Level level, String message, Throwable throwable) {
+        LogAppender current = appender;
+        if (current == null || !current.offer(level, message, throwable)) {
+            write(level, message, throwable);
+        }
+    }
+
+    static void write(Level level, String message, Throwable throwable) {
+        switch (level) {
+            case VERBOSE:
+                Log.v(TAG, message);
+                break;
+            case DEBUG:
+                Log.d(TAG, message);
+                break;
+            case INFO:
+                Log.i(TAG, message);
+                break;
+            case WARN:
+                Log.w(TAG, message);
+                break;
+            default:
+                Log.e(TAG, message, throwable);
+                break;
+        }
+        System.out.println(PREFIX + level.name() + ": " + message);
+        if (throwable != null) {
+            throwable.printStackTrace();
+        }
+    }
 }
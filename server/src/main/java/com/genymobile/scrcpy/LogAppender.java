@@ -0,0 +1,129 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Bounded queue of log messages, written by a dedicated thread.
+ * <p>
+ * Producers only store references in a preallocated ring under a short lock, they never wait for the writer. When the ring is full, the
+ * messages are dropped and counted (the count is logged once the writer catches up), except the errors, which the caller must write
+ * synchronously.
+ */
+final class LogAppender implements Runnable {
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private static final long STOP_TIMEOUT_MS = 500;
+
+    private final Ln.Level[] levels;
+    private final String[] messages;
+    private final Throwable[] throwables;
+
+    private int head;
+    private int size;
+    private long droppedCount;
+    private boolean waiting;
+    private boolean stopped;
+    private Thread thread;
+
+    LogAppender(int capacity) {
+        levels = new Ln.Level[capacity];
+        messages = new String[capacity];
+        throwables = new Throwable[capacity];
+    }
+
+    void start() {
+        thread = new Thread(this, "log-appender");
+        // never keep the process alive
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Flush the pending messages and stop the writer thread.
+     */
+    void stop() {
+        synchronized (this) {
+            stopped = true;
+            notify();
+        }
+        if (thread != null) {
+            try {
+                thread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Enqueue a message, from any thread.
+     *
+     * @return {@code false} if the message has not been handled, and must be written synchronously by the caller
+     */
+    synchronized boolean offer(Ln.Level level, String message, Throwable throwable) {
+        if (stopped) {
+            return false;
+        }
+        if (size == levels.length) {
+            if (level == Ln.Level.ERROR) {
+                return false;
+            }
+            ++droppedCount;
+            return true;
+        }
+        int index = (head + size) % levels.length;
+        levels[index] = level;
+        messages[index] = message;
+        throwables[index] = throwable;
+        ++size;
+        if (waiting) {
+            notify();
+        }
+        return true;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    @Override
+    public void run() {
+        Ln.Level level;
+        String message;
+        Throwable throwable;
+        long dropped;
+        while (true) {
+            synchronized (this) {
+                while (size == 0 && !stopped) {
+                    waiting = true;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        stopped = true;
+                    }
+                    waiting = false;
+                }
+                if (size == 0) {
+                    // stopped and flushed
+                    return;
+                }
+                level = levels[head];
+                message = messages[head];
+                throwable = throwables[head];
+                messages[head] = null;
+                throwables[head] = null;
+                head = (head + 1) % levels.length;
+                --size;
+                dropped = droppedCount;
+                droppedCount = 0;
+            }
+            if (dropped > 0) {
+                Ln.write(Ln.Level.WARN, dropped + " log messages dropped", null);
+            }
+            Ln.write(level, message, throwable);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.genymobile.scrcpy;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of the server metrics: counters, gauges and latency histograms, identified by a dotted name (with the unit as suffix, for
+ * example {@code "encoder.dequeue_wait_us"}).
+ * <p>
+ * The metrics are created once (typically stored in static fields) and updated lock-free from any thread, without allocation. A
+ * {@link #snapshot()} may be read concurrently, the values are not guaranteed to be consistent with each other.
+ */
+public final class Metrics {
+
+    /**
+     * Value sampled when a snapshot is taken.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Histogram of non-negative values, with a bounded relative error (HDR-style): the values are counted in buckets whose width grows with
+     * the magnitude, 16 buckets per power of two (the relative error is less than 1/16).
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        // enough for any non-negative long
+        private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKET_COUNT) {
+                return (int) value;
+            }
+            int msb = 63 - Long.numberOfLeadingZeros(value);
+            int shift = msb - SUB_BUCKET_BITS;
+            // the SUB_BUCKET_BITS bits following the most significant bit
+            int sub = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+            return (shift + 1) * SUB_BUCKET_COUNT + sub;
+        }
+
+        /**
+         * Return the highest value counted in a bucket.
+         */
+        static long bucketUpperBound(int index) {
+            if (index < 2 * SUB_BUCKET_COUNT) {
+                return index;
+            }
+            int shift = index / SUB_BUCKET_COUNT - 1;
+            long sub = SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT;
+            return ((sub + 1) << shift) - 1;
+        }
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucketIndex(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax;
+            do {
+                currentMax = max.get();
+            } while (value > currentMax && !max.compareAndSet(currentMax, value));
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : sum.get() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Return the value below which the given percentage of the recorded values fall (rounded up to the upper bound of its bucket).
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return the value at the percentile, or 0 if no value has been recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> values = new TreeMap<>();
+            values.put("count", getCount());
+            values.put("mean", getMean());
+            values.put("max", getMax());
+            values.put("p50", getValueAtPercentile(50));
+            values.put("p90", getValueAtPercentile(90));
+            values.put("p99", getValueAtPercentile(99));
+            values.put("p999", getValueAtPercentile(99.9));
+            return values;
+        }
+    }
+
+    private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> GAUGES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+        // not instantiable
+    }
+
+    /**
+     * Return the counter registered with this name, created if necessary.
+     *
+     * @param name the metric name
+     * @return the counter
+     */
+    public static Counter counter(String name) {
+        Counter counter = COUNTERS.get(name);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = COUNTERS.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Return the histogram registered with this name, created if necessary.
+     *
+     * @param name the metric name
+     * @return the histogram
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = HISTOGRAMS.get(name);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = HISTOGRAMS.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Register a gauge, replacing any previous gauge with the same name.
+     *
+     * @param name  the metric name
+     * @param gauge the gauge
+     */
+    public static void gauge(String name, Gauge gauge) {
+        GAUGES.put(name, gauge);
+    }
+
+    /**
+     * Return the current values of all the metrics, by name, to be serialized as JSON.
+     *
+     * @return the metrics values
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> values = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : COUNTERS.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : GAUGES.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getValue());
+        }
+        for (Map.Entry<String, Histogram> entry : HISTOGRAMS.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return values;
+    }
+}
@@ -2,10 +2,19 @@ package com.genymobile.scrcpy;
 
 import android.graphics.Rect;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
 public class Options {
     public static final int TYPE_LOCAL_SOCKET = 1;
     public static final int TYPE_WEB_SOCKET = 2;
 
+    private static final int DEFAULT_GOP_CACHE_SIZE = 8 << 20; // 8 MB
+    private static final int DEFAULT_MAX_RENDITIONS = 3;
+    private static final int DEFAULT_MIN_BIT_RATE = 500_000;
+    private static final int DEFAULT_BIT_RATE_STEP = 500_000;
+
     private Ln.Level logLevel = Ln.Level.ERROR;
     private int maxSize;
     private int bitRate;
@@ -24,6 +33,13 @@ public class Options {
     private int serverType = TYPE_LOCAL_SOCKET;
     private int portNumber = 8886;
     private boolean listenOnAllInterfaces = true;
+    private int gopCacheSize = DEFAULT_GOP_CACHE_SIZE;
+    private int maxRenditions = DEFAULT_MAX_RENDITIONS;
+    private boolean adaptiveBitRate = true;
+    private int minBitRate = DEFAULT_MIN_BIT_RATE;
+    private int maxBitRate; // 0 means the bit rate of the video settings
+    private int bitRateStep = DEFAULT_BIT_RATE_STEP;
+    private List<File> pullRoots = Collections.emptyList();
 
     public Ln.Level getLogLevel() {
         return logLevel;
@@ -171,6 +187,87 @@ public class Options {
         this.listenOnAllInterfaces = value;
     }
 
+    /**
+     * Maximum size of the packets cached (per stream) so that new websocket clients can start decoding immediately.
+     *
+     * @return the size, in bytes
+     */
+    public int getGopCacheSize() {
+        return gopCacheSize;
+    }
+
+    public void setGopCacheSize(int gopCacheSize) {
+        this.gopCacheSize = gopCacheSize;
+    }
+
+    /**
+     * Maximum number of streams encoded concurrently (all displays included), each having its own encoder.
+     *
+     * @return the maximum number of renditions
+     */
+    public int getMaxRenditions() {
+        return maxRenditions;
+    }
+
+    public void setMaxRenditions(int maxRenditions) {
+        this.maxRenditions = maxRenditions;
+    }
+
+    /**
+     * Whether the encoder bit rate is adjusted at runtime to the network conditions of the clients.
+     *
+     * @return {@code true} if the bit rate is adaptive
+     */
+    public boolean getAdaptiveBitRate() {
+        return adaptiveBitRate;
+    }
+
+    public void setAdaptiveBitRate(boolean adaptiveBitRate) {
+        this.adaptiveBitRate = adaptiveBitRate;
+    }
+
+    public int getMinBitRate() {
+        return minBitRate;
+    }
+
+    public void setMinBitRate(int minBitRate) {
+        this.minBitRate = minBitRate;
+    }
+
+    /**
+     * Ceiling of the adaptive bit rate.
+     *
+     * @return the maximum bit rate, or 0 to never exceed the bit rate requested in the video settings
+     */
+    public int getMaxBitRate() {
+        return maxBitRate;
+    }
+
+    public void setMaxBitRate(int maxBitRate) {
+        this.maxBitRate = maxBitRate;
+    }
+
+    public int getBitRateStep() {
+        return bitRateStep;
+    }
+
+    public void setBitRateStep(int bitRateStep) {
+        this.bitRateStep = bitRateStep;
+    }
+
+    /**
+     * The directories whose content the websocket clients may pull and list (with their subdirectories).
+     *
+     * @return the directories, empty to disable the pulls and the listings
+     */
+    public List<File> getPullRoots() {
+        return pullRoots;
+    }
+
+    public void setPullRoots(List<File> pullRoots) {
+        this.pullRoots = pullRoots;
+    }
+
     @Override
     public String toString() {
         return "Options{"
@@ -182,6 +279,13 @@ public class Options {
                 + ", sendFrameMeta=" + sendFrameMeta
                 + ", serverType=" + (serverType == TYPE_LOCAL_SOCKET ? "local" : "web")
                 + ", listenOnAllInterfaces=" + (this.listenOnAllInterfaces ? "true" : "false")
+                + ", gopCacheSize=" + gopCacheSize
+                + ", maxRenditions=" + maxRenditions
+                + ", adaptiveBitRate=" + adaptiveBitRate
+                + ", minBitRate=" + minBitRate
+                + ", maxBitRate=" + maxBitRate
+                + ", bitRateStep=" + bitRateStep
+                + ", pullRoots=" + pullRoots
                 + '}';
     }
 }
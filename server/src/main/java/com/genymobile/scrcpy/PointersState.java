@@ -2,46 +2,48 @@ package com.genymobile.scrcpy;
 
 import android.view.MotionEvent;
 
-import java.util.ArrayList;
-import java.util.List;
-
+/**
+ * State of the active pointers, stored in parallel arrays so that the injection of multi-touch events allocates nothing.
+ * <p>
+ * The pointers are kept in order of arrival: the index of a pointer is its index in the injected motion event.
+ */
 public class PointersState {
 
     public static final int MAX_POINTERS = 10;
 
-    private final List<Pointer> pointers = new ArrayList<>();
+    private static final int ALL_LOCAL_IDS = (1 << MAX_POINTERS) - 1;
+
+    /**
+     * Pointer ids as received from the client.
+     */
+    private final long[] ids = new long[MAX_POINTERS];
+
+    /**
+     * Local pointer ids, using the lowest possible values to fill the {@link MotionEvent.PointerProperties PointerProperties}.
+     */
+    private final int[] localIds = new int[MAX_POINTERS];
+
+    private final float[] xs = new float[MAX_POINTERS];
+    private final float[] ys = new float[MAX_POINTERS];
+    private final float[] pressures = new float[MAX_POINTERS];
+    private final boolean[] ups = new boolean[MAX_POINTERS];
+
+    private int count;
+    // bit i is set if the local id i is used
+    private int usedLocalIds;
 
     private int indexOf(long id) {
-        for (int i = 0; i < pointers.size(); ++i) {
-            Pointer pointer = pointers.get(i);
-            if (pointer.getId() == id) {
+        for (int i = 0; i < count; ++i) {
+            if (ids[i] == id) {
                 return i;
             }
         }
         return -1;
     }
 
-    private boolean isLocalIdAvailable(int localId) {
-        for (int i = 0; i < pointers.size(); ++i) {
-            Pointer pointer = pointers.get(i);
-            if (pointer.getLocalId() == localId) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     private int nextUnusedLocalId() {
-        for (int localId = 0; localId < MAX_POINTERS; ++localId) {
-            if (isLocalIdAvailable(localId)) {
-                return localId;
-            }
-        }
-        return -1;
-    }
-
-    public Pointer get(int index) {
-        return pointers.get(index);
+        int free = ~usedLocalIds & ALL_LOCAL_IDS;
+        return free == 0 ? -1 : Integer.numberOfTrailingZeros(free);
     }
 
     public int getPointerIndex(long id) {
@@ -50,19 +52,107 @@ public class PointersState {
             // already exists, return it
             return index;
         }
-        if (pointers.size() >= MAX_POINTERS) {
+        if (count >= MAX_POINTERS) {
             // it's full
             return -1;
         }
-        // id 0 is reserved for mouse events
         int localId = nextUnusedLocalId();
         if (localId == -1) {
-            throw new AssertionError("pointers.size() < maxFingers implies that a local id is available");
+            throw new AssertionError("count < MAX_POINTERS implies that a local id is available");
+        }
+        usedLocalIds |= 1 << localId;
+        index = count++;
+        ids[index] = id;
+        localIds[index] = localId;
+        xs[index] = 0;
+        ys[index] = 0;
+        pressures[index] = 0;
+        ups[index] = false;
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getId(int index) {
+        return ids[index];
+    }
+
+    public int getLocalId(int index) {
+        return localIds[index];
+    }
+
+    public float getX(int index) {
+        return xs[index];
+    }
+
+    public float getY(int index) {
+        return ys[index];
+    }
+
+    public void setPoint(int index, float x, float y) {
+        xs[index] = x;
+        ys[index] = y;
+    }
+
+    public float getPressure(int index) {
+        return pressures[index];
+    }
+
+    public void setPressure(int index, float pressure) {
+        pressures[index] = pressure;
+    }
+
+    public boolean isUp(int index) {
+        return ups[index];
+    }
+
+    public void setUp(int index, boolean up) {
+        ups[index] = up;
+    }
+
+    /**
+     * Record a touch event of a pointer, then initialize the motion event parameters.
+     * <p>
+     * A pointer which is up is still part of the motion event, it is removed afterwards.
+     *
+     * @param index  the pointer index, from {@link #getPointerIndex(long)}
+     * @param up     whether the pointer is released ({@link MotionEvent#ACTION_UP})
+     * @param props  the pointer properties
+     * @param coords the pointer coordinates
+     * @return The number of pointers of the motion event.
+     */
+    public int touch(int index, float x, float y, float pressure, boolean up, MotionEvent.PointerProperties[] props,
+            MotionEvent.PointerCoords[] coords) {
+        setPoint(index, x, y);
+        setPressure(index, pressure);
+        setUp(index, up);
+        return update(props, coords);
+    }
+
+    /**
+     * Compute the action of the motion event to inject for a touch event.
+     * <p>
+     * When other pointers are down, {@link MotionEvent#ACTION_DOWN} and {@link MotionEvent#ACTION_UP} become
+     * {@link MotionEvent#ACTION_POINTER_DOWN} and {@link MotionEvent#ACTION_POINTER_UP}, ORed with the pointer index.
+     *
+     * @param action       the action received from the client
+     * @param pointerIndex the index of the pointer
+     * @param pointerCount the number of pointers of the motion event
+     * @return the action of the motion event
+     */
+    public static int getMotionAction(int action, int pointerIndex, int pointerCount) {
+        if (pointerCount == 1) {
+            return action;
         }
-        Pointer pointer = new Pointer(id, localId);
-        pointers.add(pointer);
-        // return the index of the pointer
-        return pointers.size() - 1;
+        if (action == MotionEvent.ACTION_UP) {
+            return MotionEvent.ACTION_POINTER_UP | (pointerIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+        }
+        if (action == MotionEvent.ACTION_DOWN) {
+            return MotionEvent.ACTION_POINTER_DOWN | (pointerIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+        }
+        return action;
     }
 
     /**
@@ -73,31 +163,39 @@ public class PointersState {
      * @return The number of items initialized (the number of pointers).
      */
     public int update(MotionEvent.PointerProperties[] props, MotionEvent.PointerCoords[] coords) {
-        int count = pointers.size();
-        for (int i = 0; i < count; ++i) {
-            Pointer pointer = pointers.get(i);
-
-            // id 0 is reserved for mouse events
-            props[i].id = pointer.getLocalId();
+        int n = count;
+        for (int i = 0; i < n; ++i) {
+            props[i].id = localIds[i];
 
-            Point point = pointer.getPoint();
-            coords[i].x = point.getX();
-            coords[i].y = point.getY();
-            coords[i].pressure = pointer.getPressure();
+            MotionEvent.PointerCoords c = coords[i];
+            c.x = xs[i];
+            c.y = ys[i];
+            c.pressure = pressures[i];
         }
         cleanUp();
-        return count;
+        return n;
     }
 
     /**
-     * Remove all pointers which are UP.
+     * Remove all pointers which are UP, keeping the others in order.
      */
-    private void cleanUp() {
-        for (int i = pointers.size() - 1; i >= 0; --i) {
-            Pointer pointer = pointers.get(i);
-            if (pointer.isUp()) {
-                pointers.remove(i);
+    void cleanUp() {
+        int j = 0;
+        for (int i = 0; i < count; ++i) {
+            if (ups[i]) {
+                usedLocalIds &= ~(1 << localIds[i]);
+                continue;
+            }
+            if (i != j) {
+                ids[j] = ids[i];
+                localIds[j] = localIds[i];
+                xs[j] = xs[i];
+                ys[j] = ys[i];
+                pressures[j] = pressures[i];
+                ups[j] = false;
             }
+            ++j;
         }
+        count = j;
     }
 }
@@ -0,0 +1,127 @@
+package com.genymobile.scrcpy;
+
+/**
+ * Mapping of the positions of the events received from the client (relative to the video) to the device physical coordinates.
+ * <p>
+ * The reverse video rotation and the scale/offset of the (possibly cropped) content are precomputed, so that mapping a position only takes a
+ * few multiply-adds, without any allocation.
+ * <p>
+ * This class is immutable.
+ */
+public final class PositionMapper {
+
+    // the video size expected from the client, in the locked video orientation
+    private final int clientWidth;
+    private final int clientHeight;
+
+    // the position in the unlocked video: (xx * x + xy * y + x0, yx * x + yy * y + y0)
+    private final int xx;
+    private final int xy;
+    private final int x0;
+    private final int yx;
+    private final int yy;
+    private final int y0;
+
+    // the unlocked video is scaled to the content rectangle
+    private final int left;
+    private final int top;
+    private final int contentWidth;
+    private final int contentHeight;
+    private final int videoWidth;
+    private final int videoHeight;
+
+    /**
+     * @param left                 the content rectangle left, in device coordinates
+     * @param top                  the content rectangle top, in device coordinates
+     * @param contentWidth         the content rectangle width
+     * @param contentHeight        the content rectangle height
+     * @param unlockedVideoSize    the video size, as if the video orientation was not locked
+     * @param reverseVideoRotation the rotation to apply to the client positions to get the device rotation (0, 1, 2 or 3)
+     */
+    public PositionMapper(int left, int top, int contentWidth, int contentHeight, Size unlockedVideoSize, int reverseVideoRotation) {
+        this.left = left;
+        this.top = top;
+        this.contentWidth = contentWidth;
+        this.contentHeight = contentHeight;
+        videoWidth = unlockedVideoSize.getWidth();
+        videoHeight = unlockedVideoSize.getHeight();
+
+        // same transformation as Position.rotate()
+        switch (reverseVideoRotation) {
+            case 1:
+                clientWidth = videoHeight;
+                clientHeight = videoWidth;
+                xx = 0;
+                xy = -1;
+                x0 = clientHeight;
+                yx = 1;
+                yy = 0;
+                y0 = 0;
+                break;
+            case 2:
+                clientWidth = videoWidth;
+                clientHeight = videoHeight;
+                xx = -1;
+                xy = 0;
+                x0 = clientWidth;
+                yx = 0;
+                yy = -1;
+                y0 = clientHeight;
+                break;
+            case 3:
+                clientWidth = videoHeight;
+                clientHeight = videoWidth;
+                xx = 0;
+                xy = 1;
+                x0 = 0;
+                yx = -1;
+                yy = 0;
+                y0 = clientWidth;
+                break;
+            default:
+                clientWidth = videoWidth;
+                clientHeight = videoHeight;
+                xx = 1;
+                xy = 0;
+                x0 = 0;
+                yx = 0;
+                yy = 1;
+                y0 = 0;
+                break;
+        }
+    }
+
+    /**
+     * Tell whether the event has been generated for the current video size.
+     * <p>
+     * If not, the device may have been rotated since the event was generated, so it must be ignored.
+     *
+     * @param screenSize the video size of the event
+     * @return {@code true} if the event position can be mapped
+     */
+    public boolean accepts(Size screenSize) {
+        return screenSize.getWidth() == clientWidth && screenSize.getHeight() == clientHeight;
+    }
+
+    public int mapX(int x, int y) {
+        return left + (xx * x + xy * y + x0) * contentWidth / videoWidth;
+    }
+
+    public int mapY(int x, int y) {
+        return top + (yx * x + yy * y + y0) * contentHeight / videoHeight;
+    }
+
+    /**
+     * Map a position to a new point.
+     *
+     * @param position the position of the event
+     * @return the point in device coordinates, or {@code null} if the event was generated for a different video size
+     */
+    public Point map(Position position) {
+        if (!accepts(position.getScreenSize())) {
+            return null;
+        }
+        Point point = position.getPoint();
+        return new Point(mapX(point.getX(), point.getY()), mapY(point.getX(), point.getY()));
+    }
+}
@@ -8,6 +8,7 @@ import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.view.Surface;
 
@@ -27,16 +28,37 @@ public class ScreenEncoder implements Connection.StreamInvalidateListener, Runna
 
     private static final int NO_PTS = -1;
 
+    // PTS (8 bytes) and packet size (4 bytes)
+    private static final int FRAME_META_LENGTH = 12;
+    // sequence number (4 bytes), capture, dequeue and send-enqueue times (8 bytes each, in us)
+    private static final int LATENCY_PROBE_LENGTH = 28;
+
+    private static final Metrics.Counter FRAMES = Metrics.counter("encoder.frames");
+    private static final Metrics.Counter BYTES = Metrics.counter("encoder.bytes");
+    private static final Metrics.Counter RESTARTS = Metrics.counter("encoder.restarts");
+    private static final Metrics.Histogram DEQUEUE_WAIT = Metrics.histogram("encoder.dequeue_wait_us");
+    private static final Metrics.Histogram CAPTURE_TO_DEQUEUE = Metrics.histogram("latency.encode_us");
+
     private final AtomicBoolean streamIsInvalide = new AtomicBoolean();
-    private final ByteBuffer headerBuffer = ByteBuffer.allocate(12);
+    private final AtomicBoolean syncFrameRequested = new AtomicBoolean();
+    private final AtomicBoolean bitRateChanged = new AtomicBoolean();
+    private final AtomicBoolean maxFpsChanged = new AtomicBoolean();
+    private final AtomicBoolean projectionChanged = new AtomicBoolean();
+    // the bit rate set at runtime, overriding the one from the video settings (0 if none)
+    private volatile int liveBitRate;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(FRAME_META_LENGTH + LATENCY_PROBE_LENGTH);
+    // sequence number of the next packet, for the latency probe
+    private int sequence;
     private Thread selectorThread;
 
     private long ptsOrigin;
     private Device device;
     private Connection connection;
+    // the sender stage, only used from the encoder thread
+    private VideoPacketSender packetSender;
     private VideoSettings videoSettings;
     private MediaFormat format;
-    private int timeout = -1;
+    private volatile int timeout = -1;
 
     public ScreenEncoder(VideoSettings videoSettings) {
         this.videoSettings = videoSettings;
@@ -68,10 +90,51 @@ public class ScreenEncoder implements Connection.StreamInvalidateListener, Runna
         updateFormat();
     }
 
+    @Override
+    public void onVideoSettingsChanged(VideoSettingsDiff diff) {
+        if (diff.contains(VideoSettingsDiff.BIT_RATE)) {
+            // applied live, or used by the next encoder
+            setBitRate(videoSettings.getBitRate());
+        }
+        if (diff.requiresRestart()) {
+            onStreamInvalidate();
+            return;
+        }
+        if (diff.contains(VideoSettingsDiff.MAX_FPS)) {
+            // for the next restart and the dequeue timeout
+            updateFormat();
+            maxFpsChanged.set(true);
+        }
+        if (diff.hasProjectionChanges()) {
+            projectionChanged.set(true);
+        }
+    }
+
     public boolean consumeStreamInvalidation() {
         return streamIsInvalide.getAndSet(false);
     }
 
+    /**
+     * Request the running encoder to produce a key frame as soon as possible, without restarting it.
+     * <p>
+     * Several requests before the next key frame result in a single key frame.
+     */
+    public void requestSyncFrame() {
+        syncFrameRequested.set(true);
+    }
+
+    /**
+     * Change the bit rate of the running encoder, without restarting it.
+     * <p>
+     * The bit rate is kept if the encoder is restarted (for example on rotation).
+     *
+     * @param bitRate the bit rate, in bits per second (0 to restore the one from the video settings on the next restart)
+     */
+    public void setBitRate(int bitRate) {
+        liveBitRate = bitRate;
+        bitRateChanged.set(bitRate > 0);
+    }
+
     public boolean isAlive() {
         return selectorThread != null && selectorThread.isAlive();
     }
@@ -94,11 +157,22 @@ public class ScreenEncoder implements Connection.StreamInvalidateListener, Runna
     private void internalStreamScreen() throws IOException {
         updateFormat();
         connection.setStreamInvalidateListener(this);
+        packetSender = new VideoPacketSender(connection);
+        packetSender.start();
         boolean alive = true;
+        boolean restart = false;
         try {
             do {
+                if (restart) {
+                    RESTARTS.inc();
+                }
+                restart = true;
                 MediaCodec codec = createCodec(videoSettings.getEncoderName());
                 IBinder display = createDisplay();
+                // the new encoder is configured with the current settings
+                bitRateChanged.set(false);
+                maxFpsChanged.set(false);
+                projectionChanged.set(false);
                 ScreenInfo screenInfo = device.getScreenInfo();
                 Rect contentRect = screenInfo.getContentRect();
                 // include the locked video orientation
@@ -109,12 +183,14 @@ public class ScreenEncoder implements Connection.StreamInvalidateListener, Runna
                 int layerStack = device.getLayerStack();
 
                 setSize(format, videoRect.width(), videoRect.height());
+                int bitRate = liveBitRate;
+                format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate > 0 ? bitRate : videoSettings.getBitRate());
                 configure(codec, format);
                 Surface surface = codec.createInputSurface();
                 setDisplaySurface(display, surface, videoRotation, contentRect, unlockedVideoRect, layerStack);
                 codec.start();
                 try {
-                    alive = encode(codec);
+                    alive = encode(codec, display, screenInfo.getVideoSize());
                     // do not call stop() on exception, it would trigger an IllegalStateException
                     codec.stop();
                 }  catch (Exception e) {
@@ -129,14 +205,74 @@ public class ScreenEncoder implements Connection.StreamInvalidateListener, Runna
             } while (alive);
         } finally {
             connection.setStreamInvalidateListener(null);
+            packetSender.stop();
         }
     }
 
-    private boolean encode(MediaCodec codec) throws IOException {
+    private static void requestSyncFrame(MediaCodec codec) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        codec.setParameters(params);
+    }
+
+    private static void setBitRate(MediaCodec codec, int bitRate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        codec.setParameters(params);
+    }
+
+    private static void setMaxFps(MediaCodec codec, int maxFps) {
+        Bundle params = new Bundle();
+        // a non-positive value removes the limit
+        params.putFloat(KEY_MAX_FPS_TO_ENCODER, maxFps > 0 ? maxFps : -1);
+        codec.setParameters(params);
+    }
+
+    /**
+     * Apply the new crop to the running display, if it does not change the video size.
+     *
+     * @return {@code true} if the projection has been updated, {@code false} if the encoder must be restarted
+     */
+    private boolean updateProjection(IBinder display, Size videoSize) {
+        ScreenInfo screenInfo = device.getScreenInfo();
+        if (!screenInfo.getVideoSize().equals(videoSize)) {
+            return false;
+        }
+        Rect contentRect = screenInfo.getContentRect();
+        Rect unlockedVideoRect = screenInfo.getUnlockedVideoSize().toRect();
+        SurfaceControl.openTransaction();
+        try {
+            SurfaceControl.setDisplayProjection(display, screenInfo.getVideoRotation(), contentRect, unlockedVideoRect);
+        } finally {
+            SurfaceControl.closeTransaction();
+        }
+        return true;
+    }
+
+    private boolean encode(MediaCodec codec, IBinder display, Size videoSize) {
         boolean eof = false;
+        boolean syncFrameRequestSent = false;
         MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
 
         while (!consumeStreamInvalidation() && !eof && connection.hasConnections()) {
+            if (!syncFrameRequestSent && syncFrameRequested.get()) {
+                requestSyncFrame(codec);
+                syncFrameRequestSent = true;
+            }
+            if (bitRateChanged.getAndSet(false)) {
+                int bitRate = liveBitRate;
+                Ln.d("Set encoder bit rate to " + bitRate);
+                setBitRate(codec, bitRate);
+            }
+            if (maxFpsChanged.getAndSet(false)) {
+                // some encoders only apply it on restart
+                setMaxFps(codec, videoSettings.getMaxFps());
+            }
+            if (projectionChanged.getAndSet(false) && !updateProjection(display, videoSize)) {
+                Ln.d("Video size changed, restart the encoder");
+                break;
+            }
+            long dequeueStartNanos = System.nanoTime();
             int outputBufferId = codec.dequeueOutputBuffer(bufferInfo, timeout);
             eof = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
             try {
@@ -145,13 +281,33 @@ public class ScreenEncoder implements Connection.StreamInvalidateListener, Runna
                     break;
                 }
                 if (outputBufferId >= 0) {
+                    long dequeuedNanos = System.nanoTime();
+                    DEQUEUE_WAIT.record((dequeuedNanos - dequeueStartNanos) / 1000);
                     ByteBuffer codecBuffer = codec.getOutputBuffer(outputBufferId);
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                        FRAMES.inc();
+                    }
+                    BYTES.add(codecBuffer.remaining());
 
-                    if (videoSettings.getSendFrameMeta()) {
-                        writeFrameMeta(bufferInfo, codecBuffer.remaining());
+                    if (syncFrameRequestSent && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                        syncFrameRequested.set(false);
+                        syncFrameRequestSent = false;
                     }
 
-                    connection.send(codecBuffer);
+                    // Copy the packet, so that the codec buffer is released immediately: the network is handled by the sender stage,
+                    // a network stall must not starve the encoder
+                    boolean latencyProbe = videoSettings.getLatencyProbe();
+                    ByteBuffer frameMeta = null;
+                    if (latencyProbe) {
+                        frameMeta = createLatencyProbeFrameMeta(bufferInfo, codecBuffer.remaining(), dequeuedNanos);
+                    } else if (videoSettings.getSendFrameMeta()) {
+                        frameMeta = createFrameMeta(bufferInfo, codecBuffer.remaining());
+                    }
+                    VideoPacket packet = VideoPacket.copyOf(frameMeta, codecBuffer, bufferInfo.flags);
+                    if (latencyProbe) {
+                        packet.setLatencyProbe(sequence++, bufferInfo.presentationTimeUs);
+                    }
+                    packetSender.send(packet);
                 }
             } finally {
                 if (outputBufferId >= 0) {
@@ -163,9 +319,38 @@ public class ScreenEncoder implements Connection.StreamInvalidateListener, Runna
         return !eof && connection.hasConnections();
     }
 
-    private void writeFrameMeta(MediaCodec.BufferInfo bufferInfo, int packetSize) throws IOException {
+    private ByteBuffer createFrameMeta(MediaCodec.BufferInfo bufferInfo, int packetSize) {
+        headerBuffer.clear();
+        writeFrameMeta(bufferInfo, packetSize);
+        headerBuffer.flip();
+        return headerBuffer;
+    }
+
+    /**
+     * Create the frame meta followed by the latency probe: the sequence number of the packet, then the time when the frame was captured
+     * (its surface timestamp), dequeued from the encoder and enqueued to the senders, in microseconds in the {@link System#nanoTime()}
+     * timebase.
+     * <p>
+     * The client may compute the duration of each server stage, and echo the sequence number with its own timestamps (see
+     * {@link ControlMessage#TYPE_LATENCY_ECHO}).
+     */
+    private ByteBuffer createLatencyProbeFrameMeta(MediaCodec.BufferInfo bufferInfo, int packetSize, long dequeuedNanos) {
         headerBuffer.clear();
+        writeFrameMeta(bufferInfo, packetSize);
+        long captureUs = bufferInfo.presentationTimeUs;
+        long dequeuedUs = dequeuedNanos / 1000;
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            CAPTURE_TO_DEQUEUE.record(dequeuedUs - captureUs);
+        }
+        headerBuffer.putInt(sequence);
+        headerBuffer.putLong(captureUs);
+        headerBuffer.putLong(dequeuedUs);
+        headerBuffer.putLong(System.nanoTime() / 1000);
+        headerBuffer.flip();
+        return headerBuffer;
+    }
 
+    private void writeFrameMeta(MediaCodec.BufferInfo bufferInfo, int packetSize) {
         long pts;
         if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
             pts = NO_PTS; // non-media data packet
@@ -178,8 +363,6 @@ public class ScreenEncoder implements Connection.StreamInvalidateListener, Runna
 
         headerBuffer.putLong(pts);
         headerBuffer.putInt(packetSize);
-        headerBuffer.flip();
-        connection.send(headerBuffer);
     }
 
     public static MediaCodecInfo[] listEncoders() {
@@ -27,11 +27,18 @@ public final class ScreenInfo {
      */
     private final int lockedVideoOrientation;
 
+    /**
+     * Precomputed mapping of the client positions to the device coordinates (package-private, so that it is not serialized)
+     */
+    private final PositionMapper positionMapper;
+
     public ScreenInfo(Rect contentRect, Size unlockedVideoSize, int deviceRotation, int lockedVideoOrientation) {
         this.contentRect = contentRect;
         this.unlockedVideoSize = unlockedVideoSize;
         this.deviceRotation = deviceRotation;
         this.lockedVideoOrientation = lockedVideoOrientation;
+        positionMapper = new PositionMapper(contentRect.left, contentRect.top, contentRect.width(), contentRect.height(), unlockedVideoSize,
+                getReverseVideoRotation());
     }
 
     public Rect getContentRect() {
@@ -60,6 +67,10 @@ public final class ScreenInfo {
         return unlockedVideoSize.rotate();
     }
 
+    PositionMapper getPositionMapper() {
+        return positionMapper;
+    }
+
     public int getDeviceRotation() {
         return deviceRotation;
     }
@@ -5,6 +5,9 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.os.Build;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 public final class Server {
@@ -39,6 +42,10 @@ public final class Server {
                 boolean listenOnAllInterfaces = Boolean.parseBoolean(args[4]);
                 options.setListenOnAllInterfaces(listenOnAllInterfaces);
             }
+            // the following arguments are optional, in the form key=value
+            for (int i = 5; i < args.length; ++i) {
+                parseWebSocketOption(options, args[i]);
+            }
             return;
         }
 
@@ -71,8 +78,11 @@ public final class Server {
         Rect crop = parseCrop(args[7]);
         videoSettings.setCrop(crop);
 
-        boolean sendFrameMeta = Boolean.parseBoolean(args[8]);
+        // "probe" also sends the extended frame meta of the latency probe
+        boolean latencyProbe = "probe".equals(args[8]);
+        boolean sendFrameMeta = latencyProbe || Boolean.parseBoolean(args[8]);
         videoSettings.setSendFrameMeta(sendFrameMeta);
+        videoSettings.setLatencyProbe(latencyProbe);
 
         boolean control = Boolean.parseBoolean(args[9]);
         options.setControl(control);
@@ -97,6 +107,55 @@ public final class Server {
         options.setPowerOffScreenOnClose(powerOffScreenOnClose);
     }
 
+    private static void parseWebSocketOption(Options options, String arg) {
+        int equalSignIndex = arg.indexOf('=');
+        if (equalSignIndex == -1) {
+            throw new IllegalArgumentException("Invalid option (expecting key=value): \"" + arg + "\"");
+        }
+        String key = arg.substring(0, equalSignIndex);
+        String value = arg.substring(equalSignIndex + 1);
+        switch (key) {
+            case "gop_cache_size":
+                options.setGopCacheSize(Integer.parseInt(value));
+                break;
+            case "max_renditions":
+                options.setMaxRenditions(Integer.parseInt(value));
+                break;
+            case "adaptive_bitrate":
+                options.setAdaptiveBitRate(Boolean.parseBoolean(value));
+                break;
+            case "min_bitrate":
+                options.setMinBitRate(Integer.parseInt(value));
+                break;
+            case "max_bitrate":
+                options.setMaxBitRate(Integer.parseInt(value));
+                break;
+            case "bitrate_step":
+                options.setBitRateStep(Integer.parseInt(value));
+                break;
+            case "pull_roots":
+                options.setPullRoots(parsePullRoots(value));
+                break;
+            default:
+                Ln.w("Unknown server option: " + key);
+                break;
+        }
+    }
+
+    private static List<File> parsePullRoots(String value) {
+        // input format: "/sdcard/Download:/sdcard/DCIM"
+        List<File> roots = new ArrayList<>();
+        for (String path : value.split(":")) {
+            if (!path.isEmpty()) {
+                if (!path.startsWith("/")) {
+                    throw new IllegalArgumentException("Pull roots must be absolute paths: \"" + path + "\"");
+                }
+                roots.add(new File(path));
+            }
+        }
+        return roots;
+    }
+
     private static Rect parseCrop(String crop) {
         if ("-".equals(crop)) {
             return null;
@@ -158,6 +217,8 @@ public final class Server {
         VideoSettings videoSettings = new VideoSettings();
         parseArguments(options, videoSettings, args);
         Ln.initLogLevel(options.getLogLevel());
+        Ln.startAsyncAppender();
+        Device.resolveHiddenMethods();
         if (options.getServerType() == Options.TYPE_LOCAL_SOCKET) {
             new DesktopConnection(options, videoSettings);
         } else if (options.getServerType() == Options.TYPE_WEB_SOCKET) {
@@ -0,0 +1,355 @@
+package com.genymobile.scrcpy;
+
+import org.java_websocket.WebSocket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The client sessions of the websocket server and the streams (renditions) they watch.
+ * <p>
+ * The sessions are opened, closed and moved between the streams by the websocket threads, concurrently:
+ * <ul>
+ * <li>the client ids are allocated in O(1) from a lock-free free-list, so that two live sessions never share an id;</li>
+ * <li>each stream counts its viewers: the last one to leave closes it, and a closed stream is never joined again (a new one is created
+ * instead), so a client never joins a stream which is being released;</li>
+ * <li>joining an existing stream is lock-free; only the creation or the reconfiguration of a stream is serialized.</li>
+ * </ul>
+ * The operations on a single session are serialized, so that a session closed by one thread cannot join a stream from another one.
+ *
+ * @param <S> the type of the streams
+ */
+public final class SessionRegistry<S> {
+
+    public static final int MAX_SESSIONS = Short.MAX_VALUE;
+
+    public static final int UNCHANGED = 0;
+    public static final int JOINED = 1;
+    // the client was alone on its stream, which has been reconfigured in place
+    public static final int RECONFIGURED = 2;
+    public static final int REJECTED = 3;
+
+    /**
+     * The operations on the streams, called by the registry on the thread of the session.
+     */
+    public interface Renditions<S> {
+        S create(VideoSettings videoSettings);
+
+        /**
+         * Apply new settings to a stream watched by a single client.
+         *
+         * @return the settings of the stream, after the change
+         */
+        VideoSettings reconfigure(S stream, VideoSettings videoSettings);
+
+        /**
+         * Find the stream to join when no more streams may be created.
+         *
+         * @param candidates the settings of the existing streams with the same frame format (see {@link VideoSettings#hasSameFrameFormat})
+         * @return one of the candidates, or {@code null} to reject the client
+         */
+        VideoSettings findNearest(VideoSettings videoSettings, Collection<VideoSettings> candidates);
+
+        void join(S stream, WebSocket webSocket);
+
+        void leave(S stream, WebSocket webSocket);
+
+        /**
+         * Release a stream after its last client has left.
+         */
+        void release(S stream);
+    }
+
+    public static class Session<S> {
+        private final short id;
+        private final WebSocket webSocket;
+        // written under the session lock, read by any thread
+        private volatile Rendition<S> rendition;
+        private boolean closed;
+
+        public Session(short id, WebSocket webSocket) {
+            this.id = id;
+            this.webSocket = webSocket;
+        }
+
+        public short getId() {
+            return id;
+        }
+
+        public WebSocket getWebSocket() {
+            return webSocket;
+        }
+
+        /**
+         * @return the stream watched by the client, or {@code null}
+         */
+        public S getStream() {
+            Rendition<S> r = rendition;
+            return r != null ? r.stream : null;
+        }
+    }
+
+    private static final class Rendition<S> {
+        private static final int CLOSED = -1;
+        // the single viewer is reconfiguring the stream
+        private static final int LOCKED = -2;
+
+        private final S stream;
+        // a private copy, never modified (replaced on reconfiguration, under the streams lock)
+        private volatile VideoSettings key;
+        private final AtomicInteger viewers = new AtomicInteger(1);
+
+        Rendition(S stream, VideoSettings key) {
+            this.stream = stream;
+            this.key = key;
+        }
+
+        boolean acquire() {
+            while (true) {
+                int count = viewers.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (viewers.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return {@code true} if the last viewer has left, the rendition is then closed
+         */
+        boolean release() {
+            while (true) {
+                int count = viewers.get();
+                int newCount = count == 1 ? CLOSED : count - 1;
+                if (viewers.compareAndSet(count, newCount)) {
+                    return newCount == CLOSED;
+                }
+            }
+        }
+
+        boolean lockIfAlone() {
+            return viewers.compareAndSet(1, LOCKED);
+        }
+
+        void unlock() {
+            viewers.set(1);
+        }
+
+        boolean isClosed() {
+            return viewers.get() == CLOSED;
+        }
+    }
+
+    private final Renditions<S> renditions;
+    private final int maxRenditions;
+    private final ConcurrentHashMap<VideoSettings, Rendition<S>> streams = new ConcurrentHashMap<>();
+    // serializes the creation and the reconfiguration of the streams
+    private final Object streamsLock = new Object();
+
+    // Free-list of the client ids: nextFreeIds[id] is the id following id in the list, 0 ends the list. The head holds the first id in its
+    // low 32 bits, and a version in its high 32 bits which is incremented on every change, so that a compare-and-set can not succeed on a
+    // head which has been popped and pushed back in between (ABA).
+    private final AtomicIntegerArray nextFreeIds;
+    private final AtomicLong freeIdsHead;
+
+    public SessionRegistry(Renditions<S> renditions, int maxRenditions) {
+        this(renditions, maxRenditions, MAX_SESSIONS);
+    }
+
+    SessionRegistry(Renditions<S> renditions, int maxRenditions, int maxSessions) {
+        if (maxSessions < 1 || maxSessions > MAX_SESSIONS) {
+            throw new IllegalArgumentException("Invalid max sessions: " + maxSessions);
+        }
+        this.renditions = renditions;
+        this.maxRenditions = maxRenditions;
+        nextFreeIds = new AtomicIntegerArray(maxSessions + 1);
+        for (int id = 1; id < maxSessions; ++id) {
+            nextFreeIds.set(id, id + 1);
+        }
+        freeIdsHead = new AtomicLong(1);
+    }
+
+    /**
+     * Allocate the id of a new session.
+     *
+     * @return the id, or -1 if too many sessions are open
+     */
+    public short acquireId() {
+        while (true) {
+            long head = freeIdsHead.get();
+            int id = (int) head;
+            if (id == 0) {
+                return -1;
+            }
+            long newHead = nextVersion(head) | nextFreeIds.get(id);
+            if (freeIdsHead.compareAndSet(head, newHead)) {
+                return (short) id;
+            }
+        }
+    }
+
+    private void releaseId(short id) {
+        while (true) {
+            long head = freeIdsHead.get();
+            nextFreeIds.set(id, (int) head);
+            if (freeIdsHead.compareAndSet(head, nextVersion(head) | id)) {
+                return;
+            }
+        }
+    }
+
+    private static long nextVersion(long head) {
+        return ((head >>> 32) + 1) << 32;
+    }
+
+    /**
+     * Make the client watch the stream with the requested settings.
+     * <p>
+     * Clients requesting the same settings share the same stream. Otherwise, a new stream is created, unless the maximum number of streams
+     * is reached: in that case, the client joins the nearest one.
+     *
+     * @return {@link #UNCHANGED}, {@link #JOINED}, {@link #RECONFIGURED} or {@link #REJECTED}
+     */
+    public int join(Session<S> session, VideoSettings videoSettings) {
+        synchronized (session) {
+            if (session.closed) {
+                return UNCHANGED;
+            }
+            Rendition<S> current = session.rendition;
+            Rendition<S> target = streams.get(videoSettings);
+            if (target != null && target == current) {
+                return UNCHANGED;
+            }
+            if (target == null || !target.acquire()) {
+                synchronized (streamsLock) {
+                    target = streams.get(videoSettings);
+                    if (target != null && target == current) {
+                        return UNCHANGED;
+                    }
+                    if (target == null || !target.acquire()) {
+                        if (current != null && current.lockIfAlone()) {
+                            reconfigure(current, videoSettings);
+                            return RECONFIGURED;
+                        }
+                        target = acquireNewOrNearest(videoSettings);
+                        if (target == null) {
+                            return REJECTED;
+                        }
+                        if (target == current) {
+                            // the nearest stream is the one already watched: the client still holds it, so this never closes it
+                            target.release();
+                            return UNCHANGED;
+                        }
+                    }
+                }
+            }
+            if (current != null) {
+                leave(session, current);
+            }
+            session.rendition = target;
+            renditions.join(target.stream, session.webSocket);
+            return JOINED;
+        }
+    }
+
+    private void reconfigure(Rendition<S> rendition, VideoSettings videoSettings) {
+        // not joinable meanwhile: the other clients requesting these settings wait for the streams lock
+        VideoSettings key = rendition.key;
+        streams.remove(key, rendition);
+        try {
+            key = renditions.reconfigure(rendition.stream, videoSettings).copy();
+        } finally {
+            rendition.key = key;
+            streams.put(key, rendition);
+            rendition.unlock();
+        }
+    }
+
+    // called with the streams lock held
+    private Rendition<S> acquireNewOrNearest(VideoSettings videoSettings) {
+        removeClosed();
+        if (streams.size() < maxRenditions) {
+            VideoSettings key = videoSettings.copy();
+            Rendition<S> rendition = new Rendition<>(renditions.create(videoSettings), key);
+            streams.put(key, rendition);
+            return rendition;
+        }
+        List<VideoSettings> candidates = new ArrayList<>();
+        for (VideoSettings key : streams.keySet()) {
+            // never change the packets format of a client
+            if (key.hasSameFrameFormat(videoSettings)) {
+                candidates.add(key);
+            }
+        }
+        VideoSettings nearest = candidates.isEmpty() ? null : renditions.findNearest(videoSettings, candidates);
+        if (nearest == null) {
+            return null;
+        }
+        Rendition<S> rendition = streams.get(nearest);
+        if (rendition == null || !rendition.acquire()) {
+            // closed meanwhile
+            return null;
+        }
+        return rendition;
+    }
+
+    private void removeClosed() {
+        // a closed stream is removed by its last client right after, but it must not count against the limit meanwhile
+        for (Rendition<S> rendition : streams.values()) {
+            if (rendition.isClosed()) {
+                streams.remove(rendition.key, rendition);
+            }
+        }
+    }
+
+    // called with the session lock held
+    private void leave(Session<S> session, Rendition<S> rendition) {
+        renditions.leave(rendition.stream, session.webSocket);
+        if (rendition.release()) {
+            streams.remove(rendition.key, rendition);
+            renditions.release(rendition.stream);
+        }
+    }
+
+    /**
+     * Close a session: leave its stream and release its id. Closing a session several times has no effect.
+     */
+    public void close(Session<S> session) {
+        synchronized (session) {
+            if (session.closed) {
+                return;
+            }
+            session.closed = true;
+            Rendition<S> current = session.rendition;
+            if (current != null) {
+                session.rendition = null;
+                leave(session, current);
+            }
+        }
+        releaseId(session.id);
+    }
+
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * @return a snapshot of the streams which are not closed
+     */
+    public List<S> getStreams() {
+        List<S> list = new ArrayList<>();
+        for (Rendition<S> rendition : streams.values()) {
+            if (!rendition.isClosed()) {
+                list.add(rendition.stream);
+            }
+        }
+        return list;
+    }
+}
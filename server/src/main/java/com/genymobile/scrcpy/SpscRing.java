@@ -0,0 +1,99 @@
+package com.genymobile.scrcpy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * <p>
+ * Each side only writes its own index, and caches the index of the other side, so that it reads it (a cache miss) only when the ring looks
+ * full (for the producer) or empty (for the consumer).
+ *
+ * @param <E> the type of the elements
+ */
+public final class SpscRing<E> {
+
+    private final Object[] elements;
+    private final int mask;
+
+    // next index to read, written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    // next index to write, written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+
+    // the last head read by the producer
+    private long cachedHead;
+    // the last tail read by the consumer
+    private long cachedTail;
+
+    /**
+     * @param capacity the capacity, a power of two
+     */
+    public SpscRing(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        elements = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Add an element (from the producer thread only).
+     *
+     * @param element the element, not null
+     * @return {@code true} if the element has been added, {@code false} if the ring is full
+     */
+    public boolean offer(E element) {
+        long t = tail.get();
+        if (t - cachedHead >= elements.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= elements.length) {
+                return false;
+            }
+        }
+        elements[(int) (t & mask)] = element;
+        // volatile write (not lazySet()), so that a consumer checking the ring before parking cannot miss it
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest element (from the consumer thread only).
+     *
+     * @return the element, or {@code null} if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail) {
+                return null;
+            }
+        }
+        int index = (int) (h & mask);
+        E element = (E) elements[index];
+        elements[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    /**
+     * Return the number of elements, from any thread (the value may be outdated as soon as it is returned).
+     *
+     * @return the number of elements
+     */
+    public int size() {
+        // read head first, so that the size is never negative
+        long h = head.get();
+        long t = tail.get();
+        return (int) (t - h);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return elements.length;
+    }
+}
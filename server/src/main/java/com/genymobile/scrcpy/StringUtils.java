@@ -1,5 +1,8 @@
 package com.genymobile.scrcpy;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 public final class StringUtils {
     private StringUtils() {
         // not instantiable
@@ -19,4 +22,29 @@ public final class StringUtils {
         }
         return len;
     }
+
+    /**
+     * Decode {@code length} UTF-8 bytes from the buffer position, and advance the position.
+     * <p>
+     * The bytes of a heap buffer are decoded in place, without any intermediate copy.
+     *
+     * @param buffer the buffer
+     * @param length the number of bytes to decode
+     * @return the decoded string
+     */
+    public static String decodeUtf8(ByteBuffer buffer, int length) {
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Not enough bytes: " + buffer.remaining() + " < " + length);
+        }
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
 }
@@ -0,0 +1,243 @@
+package com.genymobile.scrcpy;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Encoded video packet, shared between all the clients of a stream.
+ * <p>
+ * The data is copied once out of the codec output buffer (so that it can be released immediately), directly as a websocket binary frame.
+ * That way, the very same bytes are written to every client, instead of being framed (and copied) once per socket.
+ * <p>
+ * The packet is reference-counted: each holder must call {@link #release()} once it does not need it anymore. The last release returns the
+ * buffer to its pool, so no view of the packet may be used after its release.
+ */
+public final class VideoPacket {
+
+    private static final int OPCODE_BINARY_FIN = 0x82;
+    private static final int PAYLOAD_LENGTH_16 = 126;
+    private static final int PAYLOAD_LENGTH_64 = 127;
+
+    private static final BufferPool DEFAULT_POOL = new BufferPool(true);
+
+    static {
+        Metrics.gauge("video.pool.allocations", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return DEFAULT_POOL.getAllocations();
+            }
+        });
+        Metrics.gauge("video.pool.reuses", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return DEFAULT_POOL.getReuses();
+            }
+        });
+        Metrics.gauge("video.pool.free_bytes", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return DEFAULT_POOL.getFreeBytes();
+            }
+        });
+    }
+
+    // avoid an AtomicInteger allocation per packet
+    private static final AtomicIntegerFieldUpdater<VideoPacket> REF_COUNT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(VideoPacket.class,
+            "refCount");
+
+    // the writable buffer, to be returned to the pool
+    private final ByteBuffer buffer;
+    private final BufferPool pool;
+    private final ByteBuffer frame;
+    private final int headerLength;
+    private final int flags;
+    private final long timestampNanos = System.nanoTime();
+    // the latency probe, set by the producer before the packet is published (-1 if none)
+    private int sequence = -1;
+    private long captureUs;
+    private volatile int refCount = 1;
+    private volatile boolean detached;
+
+    private VideoPacket(ByteBuffer buffer, BufferPool pool, int headerLength, int flags) {
+        this.buffer = buffer;
+        this.pool = pool;
+        this.frame = buffer.asReadOnlyBuffer();
+        this.headerLength = headerLength;
+        this.flags = flags;
+    }
+
+    /**
+     * Copy the remaining bytes of {@code source}.
+     * <p>
+     * The returned packet has a reference count of 1.
+     *
+     * @param source the packet data
+     * @param flags  the {@code MediaCodec.BUFFER_FLAG_*} flags of the packet
+     * @return the packet
+     */
+    public static VideoPacket copyOf(ByteBuffer source, int flags) {
+        return copyOf(null, source, flags);
+    }
+
+    /**
+     * Copy the remaining bytes of {@code prefix} (typically the frame meta), followed by the remaining bytes of {@code source}.
+     * <p>
+     * The returned packet has a reference count of 1.
+     *
+     * @param prefix the data to write before the packet data (may be null)
+     * @param source the packet data
+     * @param flags  the {@code MediaCodec.BUFFER_FLAG_*} flags of the packet
+     * @return the packet
+     */
+    public static VideoPacket copyOf(ByteBuffer prefix, ByteBuffer source, int flags) {
+        return copyOf(prefix, source, flags, DEFAULT_POOL);
+    }
+
+    /**
+     * Same as {@link #copyOf(ByteBuffer, ByteBuffer, int)}, with a specific buffer pool.
+     *
+     * @param pool the pool to acquire the buffer from, or {@code null} to allocate a new heap buffer
+     */
+    public static VideoPacket copyOf(ByteBuffer prefix, ByteBuffer source, int flags, BufferPool pool) {
+        int payloadLength = source.remaining();
+        if (prefix != null) {
+            payloadLength += prefix.remaining();
+        }
+        int headerLength = getFrameHeaderLength(payloadLength);
+        int frameLength = headerLength + payloadLength;
+        ByteBuffer buffer = pool != null ? pool.acquire(frameLength) : ByteBuffer.allocate(frameLength);
+        writeFrameHeader(buffer, payloadLength);
+        if (prefix != null) {
+            buffer.put(prefix);
+        }
+        buffer.put(source);
+        buffer.flip();
+        return new VideoPacket(buffer, pool, headerLength, flags);
+    }
+
+    static int getFrameHeaderLength(int payloadLength) {
+        if (payloadLength < PAYLOAD_LENGTH_16) {
+            return 2;
+        }
+        if (payloadLength <= 0xffff) {
+            return 4;
+        }
+        return 10;
+    }
+
+    /**
+     * Write a server-to-client (so unmasked) websocket binary frame header, as defined in RFC 6455 section 5.2.
+     */
+    static void writeFrameHeader(ByteBuffer buffer, int payloadLength) {
+        buffer.put((byte) OPCODE_BINARY_FIN);
+        if (payloadLength < PAYLOAD_LENGTH_16) {
+            buffer.put((byte) payloadLength);
+        } else if (payloadLength <= 0xffff) {
+            buffer.put((byte) PAYLOAD_LENGTH_16);
+            buffer.putShort((short) payloadLength);
+        } else {
+            buffer.put((byte) PAYLOAD_LENGTH_64);
+            buffer.putLong(payloadLength);
+        }
+    }
+
+    /**
+     * Return a new view of the packet as a complete websocket binary frame, so that each reader has its own position.
+     *
+     * @return the read-only frame
+     */
+    public ByteBuffer getFrame() {
+        return frame.duplicate();
+    }
+
+    /**
+     * Return a new view of the packet data (the frame payload), so that each reader has its own position.
+     *
+     * @return the read-only packet data
+     */
+    public ByteBuffer getData() {
+        ByteBuffer data = frame.duplicate();
+        data.position(headerLength);
+        return data.slice();
+    }
+
+    public int getSize() {
+        return frame.limit() - headerLength;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Return the time when the packet has been produced, to measure how long it waits before being sent.
+     *
+     * @return the {@link System#nanoTime()} when the packet has been created
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * Attach the latency probe written in the frame meta, so that the senders can track when the frame is sent to each client.
+     * <p>
+     * Must be called before the packet is shared with other threads.
+     *
+     * @param sequence  the sequence number of the frame
+     * @param captureUs the capture time of the frame, in microseconds ({@link System#nanoTime()} timebase)
+     */
+    public void setLatencyProbe(int sequence, long captureUs) {
+        this.sequence = sequence;
+        this.captureUs = captureUs;
+    }
+
+    /**
+     * @return the sequence number of the latency probe, or -1 if the packet has none
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    public long getCaptureUs() {
+        return captureUs;
+    }
+
+    public boolean isConfig() {
+        return (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+    }
+
+    public boolean isKeyFrame() {
+        return (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    public VideoPacket retain() {
+        if (REF_COUNT_UPDATER.getAndIncrement(this) <= 0) {
+            throw new IllegalStateException("Packet already released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int count = REF_COUNT_UPDATER.decrementAndGet(this);
+        if (count < 0) {
+            throw new IllegalStateException("Packet released too many times");
+        }
+        if (count == 0 && pool != null && !detached) {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Never return the buffer to the pool, because a view of the packet may still be read after its release (for example by a socket
+     * which has not finished writing it).
+     */
+    public void detach() {
+        detached = true;
+    }
+
+    public int getRefCount() {
+        return refCount;
+    }
+}
@@ -0,0 +1,186 @@
+package com.genymobile.scrcpy;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sender stage of the encoder pipeline.
+ * <p>
+ * The encoder thread (the drain stage) copies each packet out of the codec output buffer and releases it immediately, then hands the copy
+ * over to this stage through a lock-free ring. The packets are sent to the connection from a separate thread, so that a network stall never
+ * holds codec buffers.
+ * <p>
+ * If the ring is full (the connection is too slow), the drain stage waits for a free slot.
+ */
+public final class VideoPacketSender implements Runnable {
+
+    public static final int DEFAULT_CAPACITY = 64; // packets
+
+    private static final long FULL_RETRY_DELAY_NS = 500_000; // 0.5ms
+
+    private static final Metrics.Histogram HANDOFF = Metrics.histogram("video.handoff_us");
+    private static final Metrics.Counter FULL_WAITS = Metrics.counter("video.sender_full_waits");
+
+    private final Connection connection;
+    private final SpscRing<VideoPacket> ring;
+
+    private Thread thread;
+    private volatile boolean stopped;
+    // set by the consumer before parking, so that the producer knows it must be woken up
+    private volatile boolean consumerParked;
+
+    // statistics, each written by a single thread
+    private volatile int maxOccupancy;
+    private volatile long fullWaits;
+    private volatile long handoffCount;
+    private volatile long handoffTotalNanos;
+    private volatile long handoffMaxNanos;
+
+    public VideoPacketSender(Connection connection) {
+        this(connection, DEFAULT_CAPACITY);
+    }
+
+    public VideoPacketSender(Connection connection, int capacity) {
+        this.connection = connection;
+        this.ring = new SpscRing<>(capacity);
+    }
+
+    public void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Sender already started");
+        }
+        thread = new Thread(this, "video-sender");
+        thread.start();
+    }
+
+    /**
+     * Stop the sender thread and wait for its termination. The packets not sent yet are dropped.
+     */
+    public void stop() {
+        stopped = true;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Ln.d("Video sender stopped: " + getStats());
+    }
+
+    /**
+     * Hand a packet over to the sender thread (from the drain thread only).
+     * <p>
+     * The sender takes ownership of the packet: it releases it once sent.
+     *
+     * @param packet the packet
+     */
+    public void send(VideoPacket packet) {
+        while (!ring.offer(packet)) {
+            if (stopped) {
+                packet.release();
+                return;
+            }
+            ++fullWaits;
+            FULL_WAITS.inc();
+            LockSupport.parkNanos(this, FULL_RETRY_DELAY_NS);
+        }
+        int occupancy = ring.size();
+        if (occupancy > maxOccupancy) {
+            maxOccupancy = occupancy;
+        }
+        if (consumerParked) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private VideoPacket take() {
+        VideoPacket packet = ring.poll();
+        while (packet == null && !stopped) {
+            consumerParked = true;
+            // check again after publishing the flag, the producer may have missed it
+            packet = ring.poll();
+            if (packet == null) {
+                LockSupport.park(this);
+                packet = ring.poll();
+            }
+            consumerParked = false;
+        }
+        return packet;
+    }
+
+    @Override
+    public void run() {
+        try {
+            VideoPacket packet;
+            while (!stopped && (packet = take()) != null) {
+                long handoffNanos = System.nanoTime() - packet.getTimestampNanos();
+                ++handoffCount;
+                HANDOFF.record(handoffNanos / 1000);
+                handoffTotalNanos += handoffNanos;
+                if (handoffNanos > handoffMaxNanos) {
+                    handoffMaxNanos = handoffNanos;
+                }
+                try {
+                    connection.send(packet);
+                } finally {
+                    packet.release();
+                }
+            }
+        } finally {
+            VideoPacket packet;
+            while ((packet = ring.poll()) != null) {
+                packet.release();
+            }
+        }
+    }
+
+    /**
+     * Return the number of packets waiting to be sent.
+     *
+     * @return the ring occupancy
+     */
+    public int getOccupancy() {
+        return ring.size();
+    }
+
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    /**
+     * Return how many times the drain stage had to wait for a free slot.
+     *
+     * @return the number of waits
+     */
+    public long getFullWaits() {
+        return fullWaits;
+    }
+
+    public long getHandoffCount() {
+        return handoffCount;
+    }
+
+    /**
+     * Return the average delay between the copy of a packet and its dequeue by the sender thread.
+     *
+     * @return the average handoff latency, in nanoseconds
+     */
+    public long getAverageHandoffNanos() {
+        long count = handoffCount;
+        return count == 0 ? 0 : handoffTotalNanos / count;
+    }
+
+    public long getMaxHandoffNanos() {
+        return handoffMaxNanos;
+    }
+
+    public String getStats() {
+        return "packets=" + handoffCount
+                + ", occupancy=" + getOccupancy() + "/" + ring.capacity()
+                + ", maxOccupancy=" + maxOccupancy
+                + ", fullWaits=" + fullWaits
+                + ", avgHandoff=" + getAverageHandoffNanos() / 1000 + "us"
+                + ", maxHandoff=" + handoffMaxNanos / 1000 + "us";
+    }
+}
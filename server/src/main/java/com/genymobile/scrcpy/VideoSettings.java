@@ -12,6 +12,10 @@ public class VideoSettings {
     private static final byte DEFAULT_MAX_FPS = 60;
     private static final byte DEFAULT_I_FRAME_INTERVAL = 10; // seconds
 
+    // bits of the frame meta byte of the serialized settings (a boolean for older clients)
+    private static final int FRAME_META_FLAG = 1;
+    private static final int LATENCY_PROBE_FLAG = 1 << 1;
+
     private Size bounds;
     private int bitRate = DEFAULT_BIT_RATE;
     private int maxFps;
@@ -19,6 +23,7 @@ public class VideoSettings {
     private byte iFrameInterval = DEFAULT_I_FRAME_INTERVAL;
     private Rect crop;
     private boolean sendFrameMeta; // send PTS so that the client may record properly
+    private boolean latencyProbe; // extend the frame meta with the timestamps of the pipeline stages
     private int displayId;
     private String codecOptionsString;
     private List<CodecOption> codecOptions;
@@ -56,6 +61,20 @@ public class VideoSettings {
         this.sendFrameMeta = sendFrameMeta;
     }
 
+    /**
+     * Tell whether each packet is prefixed by the extended frame meta, with the capture, dequeue and send-enqueue timestamps and the
+     * sequence number of the frame (whatever {@link #getSendFrameMeta()}).
+     *
+     * @return {@code true} if the latency probe is enabled
+     */
+    public boolean getLatencyProbe() {
+        return latencyProbe;
+    }
+
+    public void setLatencyProbe(boolean latencyProbe) {
+        this.latencyProbe = latencyProbe;
+    }
+
     public int getDisplayId() {
         return displayId;
     }
@@ -157,7 +176,7 @@ public class VideoSettings {
         temp.putShort((short) top);
         temp.putShort((short) right);
         temp.putShort((short) bottom);
-        temp.put((byte) (sendFrameMeta ? 1 : 0));
+        temp.put((byte) ((sendFrameMeta ? FRAME_META_FLAG : 0) | (latencyProbe ? LATENCY_PROBE_FLAG : 0)));
         temp.put((byte) lockedVideoOrientation);
         temp.putInt(displayId);
         temp.putInt(codeOptionsBytes.length);
@@ -171,7 +190,92 @@ public class VideoSettings {
         return temp.array();
     }
 
-    public void merge(VideoSettings source) {
+    public VideoSettings copy() {
+        VideoSettings copy = new VideoSettings();
+        copy.merge(this);
+        return copy;
+    }
+
+    /**
+     * Estimate how different the streams encoded with these settings and {@code other} would look, to pick the nearest one when a stream
+     * with the exact settings is not available.
+     * <p>
+     * The distance is the sum of the (absolute, log2) ratios of the video sizes and of the bit rates: for example, half the video area
+     * counts as much as half the bit rate.
+     *
+     * @param other       the settings to compare with, on the same display
+     * @param displaySize the display size, the actual video size when no bounds are set
+     * @return the distance, 0 if the videos would be identical
+     */
+    public double distanceTo(VideoSettings other, Size displaySize) {
+        double areaRatio = (double) getArea(bounds, displaySize) / getArea(other.bounds, displaySize);
+        double bitRateRatio = (double) bitRate / other.bitRate;
+        return Math.abs(Math.log(areaRatio)) / Math.log(2) + Math.abs(Math.log(bitRateRatio)) / Math.log(2);
+    }
+
+    /**
+     * Whether the packets of the streams encoded with these settings and {@code other} have the same format: the frame meta (and the
+     * latency probe) are part of the packets sent to each client, a client must not receive a format it did not request.
+     *
+     * @param other the settings to compare with
+     * @return {@code true} if the frame meta and the latency probe flags are the same
+     */
+    public boolean hasSameFrameFormat(VideoSettings other) {
+        return sendFrameMeta == other.sendFrameMeta && latencyProbe == other.latencyProbe;
+    }
+
+    private static long getArea(Size bounds, Size displaySize) {
+        int width = displaySize.getWidth();
+        int height = displaySize.getHeight();
+        if (bounds != null) {
+            width = Math.min(width, bounds.getWidth());
+            height = Math.min(height, bounds.getHeight());
+        }
+        return Math.max(1L, (long) width * height);
+    }
+
+    /**
+     * Copy the values of {@code source}.
+     *
+     * @param source the settings to copy
+     * @return the fields which changed
+     */
+    public VideoSettingsDiff merge(VideoSettings source) {
+        int changes = 0;
+        if (bitRate != source.bitRate) {
+            changes |= VideoSettingsDiff.BIT_RATE;
+        }
+        if (maxFps != source.maxFps) {
+            changes |= VideoSettingsDiff.MAX_FPS;
+        }
+        if (sendFrameMeta != source.sendFrameMeta) {
+            changes |= VideoSettingsDiff.SEND_FRAME_META;
+        }
+        if (latencyProbe != source.latencyProbe) {
+            changes |= VideoSettingsDiff.LATENCY_PROBE;
+        }
+        if (!Objects.equals(crop, source.crop)) {
+            changes |= VideoSettingsDiff.CROP;
+        }
+        if (!Objects.equals(bounds, source.bounds)) {
+            changes |= VideoSettingsDiff.BOUNDS;
+        }
+        if (iFrameInterval != source.iFrameInterval) {
+            changes |= VideoSettingsDiff.I_FRAME_INTERVAL;
+        }
+        if (!Objects.equals(codecOptionsString, source.codecOptionsString)) {
+            changes |= VideoSettingsDiff.CODEC_OPTIONS;
+        }
+        if (!Objects.equals(encoderName, source.encoderName)) {
+            changes |= VideoSettingsDiff.ENCODER_NAME;
+        }
+        if (lockedVideoOrientation != source.lockedVideoOrientation) {
+            changes |= VideoSettingsDiff.LOCKED_VIDEO_ORIENTATION;
+        }
+        if (displayId != source.displayId) {
+            changes |= VideoSettingsDiff.DISPLAY_ID;
+        }
+
         codecOptions = source.codecOptions;
         codecOptionsString = source.codecOptionsString;
         encoderName = source.encoderName;
@@ -181,18 +285,33 @@ public class VideoSettings {
         bounds = source.bounds;
         crop = source.crop;
         sendFrameMeta = source.sendFrameMeta;
+        latencyProbe = source.latencyProbe;
         lockedVideoOrientation = source.lockedVideoOrientation;
         displayId = source.displayId;
+        return new VideoSettingsDiff(changes);
     }
 
     public static VideoSettings fromByteArray(byte[] bytes) {
+        return fromByteBuffer(ByteBuffer.wrap(bytes));
+    }
+
+    public static void mergeFromByteArray(VideoSettings videoSettings, byte[] bytes) {
+        mergeFromByteBuffer(videoSettings, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Read settings serialized by {@link #toByteArray()}, from the buffer position to its limit.
+     *
+     * @param data the buffer, its position is advanced
+     * @return new video settings
+     */
+    public static VideoSettings fromByteBuffer(ByteBuffer data) {
         VideoSettings videoSettings = new VideoSettings();
-        mergeFromByteArray(videoSettings, bytes);
+        mergeFromByteBuffer(videoSettings, data);
         return videoSettings;
     }
 
-    public static void mergeFromByteArray(VideoSettings videoSettings, byte[] bytes) {
-        ByteBuffer data = ByteBuffer.wrap(bytes);
+    public static void mergeFromByteBuffer(VideoSettings videoSettings, ByteBuffer data) {
         int bitRate = data.getInt();
         int maxFps = data.getInt();
         byte iFrameInterval = data.get();
@@ -202,15 +321,13 @@ public class VideoSettings {
         int top = data.getShort();
         int right = data.getShort();
         int bottom = data.getShort();
-        boolean sendMetaFrame = data.get() != 0;
+        int frameMetaFlags = data.get();
         int lockedVideoOrientation = data.get();
         int displayId = data.getInt();
         if (data.remaining() > 0) {
             int codecOptionsLength = data.getInt();
             if (codecOptionsLength > 0) {
-                byte[] textBuffer = new byte[codecOptionsLength];
-                data.get(textBuffer, 0, codecOptionsLength);
-                String codecOptions = new String(textBuffer, 0, codecOptionsLength, StandardCharsets.UTF_8);
+                String codecOptions = StringUtils.decodeUtf8(data, codecOptionsLength);
                 if (!codecOptions.isEmpty()) {
                     videoSettings.setCodecOptions(codecOptions);
                 }
@@ -219,9 +336,7 @@ public class VideoSettings {
         if (data.remaining() > 0) {
             int encoderNameLength = data.getInt();
             if (encoderNameLength > 0) {
-                byte[] textBuffer = new byte[encoderNameLength];
-                data.get(textBuffer, 0, encoderNameLength);
-                String encoderName = new String(textBuffer, 0, encoderNameLength, StandardCharsets.UTF_8);
+                String encoderName = StringUtils.decodeUtf8(data, encoderNameLength);
                 if (!encoderName.isEmpty()) {
                     videoSettings.setEncoderName(encoderName);
                 }
@@ -236,7 +351,8 @@ public class VideoSettings {
         } else {
             videoSettings.setCrop(new Rect(left, top, right, bottom));
         }
-        videoSettings.setSendFrameMeta(sendMetaFrame);
+        videoSettings.setSendFrameMeta((frameMetaFlags & FRAME_META_FLAG) != 0);
+        videoSettings.setLatencyProbe((frameMetaFlags & LATENCY_PROBE_FLAG) != 0);
         videoSettings.setLockedVideoOrientation(lockedVideoOrientation);
         if (displayId > 0) {
             videoSettings.setDisplayId(displayId);
@@ -254,7 +370,7 @@ public class VideoSettings {
 
         VideoSettings s = (VideoSettings) o;
         if (bitRate != s.bitRate || maxFps != s.maxFps || lockedVideoOrientation != s.lockedVideoOrientation || iFrameInterval != s.iFrameInterval
-                || sendFrameMeta != s.sendFrameMeta || displayId != s.displayId) {
+                || sendFrameMeta != s.sendFrameMeta || latencyProbe != s.latencyProbe || displayId != s.displayId) {
             return false;
         }
         if (!Objects.equals(codecOptionsString, s.codecOptionsString) || !Objects.equals(encoderName, s.encoderName)
@@ -266,7 +382,7 @@ public class VideoSettings {
 
     @Override
     public int hashCode() {
-        return Objects.hash(bitRate, maxFps, lockedVideoOrientation, iFrameInterval, sendFrameMeta,
+        return Objects.hash(bitRate, maxFps, lockedVideoOrientation, iFrameInterval, sendFrameMeta, latencyProbe,
                 displayId, Objects.hashCode(codecOptionsString), Objects.hashCode(encoderName),
                 Objects.hashCode(bounds), Objects.hashCode(crop));
     }
@@ -280,6 +396,7 @@ public class VideoSettings {
                 + ", bounds=" + bounds
                 + ", crop=" + crop
                 + ", metaFrame=" + sendFrameMeta
+                + ", latencyProbe=" + latencyProbe
                 + ", lockedVideoOrientation=" + lockedVideoOrientation
                 + ", displayId=" + displayId
                 + ", codecOptions=" + (this.codecOptionsString == null ? "-" : this.codecOptionsString)
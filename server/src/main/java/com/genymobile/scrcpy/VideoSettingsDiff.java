@@ -0,0 +1,78 @@
+package com.genymobile.scrcpy;
+
+/**
+ * The fields changed by {@link VideoSettings#merge(VideoSettings)}, sorted by how they can be applied to a running stream:
+ * <ul>
+ *     <li>live: applied to the running encoder;</li>
+ *     <li>projection: applied to the display projection, as long as the video size does not change;</li>
+ *     <li>restart: the encoder must be rebuilt.</li>
+ * </ul>
+ */
+public final class VideoSettingsDiff {
+
+    public static final int BIT_RATE = 1;
+    public static final int MAX_FPS = 1 << 1;
+    public static final int SEND_FRAME_META = 1 << 2;
+    public static final int CROP = 1 << 3;
+    public static final int BOUNDS = 1 << 4;
+    public static final int I_FRAME_INTERVAL = 1 << 5;
+    public static final int CODEC_OPTIONS = 1 << 6;
+    public static final int ENCODER_NAME = 1 << 7;
+    public static final int LOCKED_VIDEO_ORIENTATION = 1 << 8;
+    public static final int DISPLAY_ID = 1 << 9;
+    public static final int LATENCY_PROBE = 1 << 10;
+
+    // change the header of the packets: the encoder is restarted, so that the codec config is sent again in the new format
+    private static final int FRAME_FORMAT = SEND_FRAME_META | LATENCY_PROBE;
+    private static final int LIVE = BIT_RATE | MAX_FPS;
+    private static final int PROJECTION = CROP;
+
+    private final int changes;
+
+    VideoSettingsDiff(int changes) {
+        this.changes = changes;
+    }
+
+    public boolean isEmpty() {
+        return changes == 0;
+    }
+
+    /**
+     * Tell whether some of the given fields changed.
+     *
+     * @param fields a combination of the field flags
+     * @return {@code true} if at least one of the fields changed
+     */
+    public boolean contains(int fields) {
+        return (changes & fields) != 0;
+    }
+
+    public boolean hasLiveChanges() {
+        return contains(LIVE);
+    }
+
+    /**
+     * Tell whether the header of the packets changed, so that the packets already sent have another format.
+     */
+    public boolean hasFrameFormatChanges() {
+        return contains(FRAME_FORMAT);
+    }
+
+    public boolean hasProjectionChanges() {
+        return contains(PROJECTION);
+    }
+
+    public boolean requiresRestart() {
+        return contains(~(LIVE | PROJECTION));
+    }
+
+    @Override
+    public String toString() {
+        return "VideoSettingsDiff{"
+                + "changes=0x" + Integer.toHexString(changes)
+                + ", live=" + hasLiveChanges()
+                + ", projection=" + hasProjectionChanges()
+                + ", restart=" + requiresRestart()
+                + "}";
+    }
+}
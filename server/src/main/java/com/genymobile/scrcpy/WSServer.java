@@ -1,11 +1,15 @@
 package com.genymobile.scrcpy;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
+import android.hardware.display.IDisplayManagerCallback;
 
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
 import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
 import org.java_websocket.server.WebSocketServer;
 
 import java.io.File;
@@ -15,72 +19,147 @@ import java.net.BindException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 public class WSServer extends WebSocketServer {
     private static final String PID_FILE_PATH = "/data/local/tmp/ws_scrcpy.pid";
+    private static final Ln.RateLimiter INVALID_MESSAGE_LOG_LIMITER = new Ln.RateLimiter(1000);
 
-    public static final class SocketInfo {
-        private static final HashSet<Short> INSTANCES_BY_ID = new HashSet<>();
-        private final short id;
-        private WebSocketConnection connection;
+    /**
+     * Subprotocol (Sec-WebSocket-Protocol) of the clients which receive the device messages in the binary format of
+     * {@link DeviceMessage}.
+     * <p>
+     * By default, or with {@link #PROTOCOL_JSON}, the device messages are sent as JSON. In both cases, the control messages may be sent
+     * either as JSON (text frames) or in the binary format of {@link ControlMessageReader} (binary frames, one message per frame), which
+     * is much more compact and cheaper to parse.
+     */
+    public static final String PROTOCOL_BINARY = "scrcpy-binary";
+    public static final String PROTOCOL_JSON = "scrcpy-json";
+    private static final String DEVICE_INFO_DELTA_PARAMETER = "deviceInfo=delta";
 
-        SocketInfo(short id) {
-            this.id = id;
-            INSTANCES_BY_ID.add(id);
-        }
-
-        public static short getNextClientId() {
-            short nextClientId = 0;
-            while (INSTANCES_BY_ID.contains(++nextClientId)) {
-                if (nextClientId == Short.MAX_VALUE) {
-                    return -1;
-                }
-            }
-            return nextClientId;
-        }
+    public static final class SocketInfo extends SessionRegistry.Session<WebSocketConnection> {
+        private final boolean binaryProtocol;
+        private final boolean deviceInfoDelta;
 
-        public short getId() {
-            return id;
+        SocketInfo(short id, WebSocket webSocket, boolean binaryProtocol, boolean deviceInfoDelta) {
+            super(id, webSocket);
+            this.binaryProtocol = binaryProtocol;
+            this.deviceInfoDelta = deviceInfoDelta;
         }
 
-        public WebSocketConnection getConnection() {
-            return this.connection;
+        public boolean isBinaryProtocol() {
+            return binaryProtocol;
         }
 
-        public void setConnection(WebSocketConnection connection) {
-            this.connection = connection;
+        /**
+         * @return whether the client receives the changes of the device info as {@link DeviceInfoCache#MESSAGE_DELTA}
+         */
+        public boolean isDeviceInfoDelta() {
+            return deviceInfoDelta;
         }
 
-        public void release() {
-            INSTANCES_BY_ID.remove(id);
+        public WebSocketConnection getConnection() {
+            return getStream();
         }
     }
 
     protected final ControlMessageReaderJson reader = new ControlMessageReaderJson();
+    // only used to parse complete frames, which does not depend on its state
+    private final ControlMessageReader binaryReader = new ControlMessageReader();
+    private final FilePushHandler filePushHandler = new FilePushHandler(new File(FilePushHandler.PUSH_PATH));
+    private final FilePullHandler filePullHandler;
     private final Options options;
-    private static final HashMap<Integer, WebSocketConnection> STREAM_BY_DISPLAY_ID = new HashMap<>();
+    // one stream (rendition) per distinct video settings
+    private final SessionRegistry<WebSocketConnection> sessions;
+    private final DeviceInfoCache deviceInfo = new DeviceInfoCache(new DeviceInfoCache.Source() {
+        @Override
+        public List<DisplayInfo> getDisplays() {
+            List<DisplayInfo> displays = new ArrayList<>();
+            for (int displayId : Device.getDisplayIds()) {
+                displays.add(Device.getDisplayInfo(displayId));
+            }
+            return displays;
+        }
+
+        @Override
+        public List<?> getEncoders() {
+            return Arrays.asList(ScreenEncoder.listEncoders());
+        }
+    }, WebSocketConnection.MAPPER);
 
     public WSServer(Options options) {
-        super(new InetSocketAddress(options.getListenOnAllInterfaces() ? "0.0.0.0" : "127.0.0.1", options.getPortNumber()));
+        super(new InetSocketAddress(options.getListenOnAllInterfaces() ? "0.0.0.0" : "127.0.0.1", options.getPortNumber()), createDrafts());
         this.options = options;
+        filePullHandler = new FilePullHandler(options.getPullRoots());
+        sessions = new SessionRegistry<>(new StreamRenditions(), options.getMaxRenditions());
         unlinkPidFile();
+        registerGauges();
+        registerDisplayCallback();
+    }
+
+    private void registerGauges() {
+        Metrics.gauge("ws.clients", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getConnections().size();
+            }
+        });
+        Metrics.gauge("ws.streams", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return sessions.getStreamCount();
+            }
+        });
+    }
+
+    private static List<Draft> createDrafts() {
+        // in order of preference; the empty protocol accepts the clients which do not request any
+        List<IProtocol> protocols = Arrays.<IProtocol>asList(new Protocol(PROTOCOL_BINARY), new Protocol(PROTOCOL_JSON), new Protocol(""));
+        return Collections.<Draft>singletonList(new Draft_6455(Collections.<IExtension>emptyList(), protocols));
+    }
+
+    private static boolean isBinaryProtocol(WebSocket webSocket) {
+        Draft draft = webSocket.getDraft();
+        if (!(draft instanceof Draft_6455)) {
+            return false;
+        }
+        IProtocol protocol = ((Draft_6455) draft).getProtocol();
+        return protocol != null && PROTOCOL_BINARY.equals(protocol.getProvidedProtocol());
+    }
+
+    /**
+     * The clients opt in for the device info deltas with a query parameter of the websocket URL: {@code ws://host:port/?deviceInfo=delta}.
+     */
+    static boolean isDeviceInfoDeltaRequested(ClientHandshake handshake) {
+        String descriptor = handshake.getResourceDescriptor();
+        int queryIndex = descriptor != null ? descriptor.indexOf('?') : -1;
+        if (queryIndex == -1) {
+            return false;
+        }
+        for (String parameter : descriptor.substring(queryIndex + 1).split("&")) {
+            if (DEVICE_INFO_DELTA_PARAMETER.equals(parameter)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public void onOpen(WebSocket webSocket, ClientHandshake handshake) {
         if (webSocket.isOpen()) {
-            short clientId = SocketInfo.getNextClientId();
+            short clientId = sessions.acquireId();
             if (clientId == -1) {
                 webSocket.close(CloseFrame.TRY_AGAIN_LATER);
                 return;
             }
-            SocketInfo info = new SocketInfo(clientId);
+            SocketInfo info = new SocketInfo(clientId, webSocket, isBinaryProtocol(webSocket), isDeviceInfoDeltaRequested(handshake));
             webSocket.setAttachment(info);
-            //WebSocketConnection.sendInitialInfo(WebSocketConnection.getInitialInfo(), webSocket, clientId);
             Ln.d("Client entered the room!");
         }
     }
@@ -88,46 +167,42 @@ public class WSServer extends WebSocketServer {
     @Override
     public void onClose(WebSocket webSocket, int code, String reason, boolean remote) {
         Ln.d("Client has left the room!");
-        //FilePushHandler.cancelAllForConnection(webSocket);
+        filePushHandler.cancelAllForConnection(webSocket);
+        filePullHandler.cancelAllForConnection(webSocket);
         SocketInfo socketInfo = webSocket.getAttachment();
         if (socketInfo != null) {
-            WebSocketConnection connection = socketInfo.getConnection();
-            if (connection != null) {
-                connection.leave(webSocket);
-            }
-            socketInfo.release();
+            sessions.close(socketInfo);
         }
     }
 
     @Override
     public void onMessage(WebSocket webSocket, String message) {
+        long receivedNanos = System.nanoTime();
         String address = webSocket.getRemoteSocketAddress().getAddress().getHostAddress();
         SocketInfo socketInfo = webSocket.getAttachment();
         if (socketInfo == null) {
             Ln.e("No info attached to connection");
             return;
         }
-        Ln.i(message);
+        Ln.v(message);
         WebSocketConnection connection = socketInfo.getConnection();
-        ObjectReader objectReader = new ObjectMapper().readerFor(Map.class);
         try {
-            Map<String, String> parseMessage = objectReader.readValue(message);
-            if (parseMessage.get("message") != null && parseMessage.get("message").equals("start")) {
-                VideoSettings videoSettings = new VideoSettings();
-                videoSettings.setDisplayId(0);
-                videoSettings.setSendFrameMeta(false);
-                videoSettings.setBounds(new Size(800, 800));
-                joinStreamForDisplayId(webSocket, videoSettings, options, videoSettings.getDisplayId(), this);
-                   return;
-            } else {
-                ControlMessage controlMessage = reader.parseEvent(parseMessage);
+            ControlMessage controlMessage = reader.parseEvent(message);
+            if (controlMessage == null) {
+                return;
+            }
+            if (controlMessage.getType() == ControlMessage.TYPE_CHANGE_STREAM_PARAMETERS) {
+                joinStream(webSocket, controlMessage.getVideoSettings());
+            } else if (controlMessage.getType() == ControlMessage.TYPE_GET_METRICS) {
+                sendMetrics(webSocket);
+            } else if (controlMessage.getType() == ControlMessage.TYPE_LATENCY_ECHO) {
                 if (connection != null) {
-                    Controller controller = connection.getController();
-                    controller.handleEvent(controlMessage);
+                    connection.onLatencyEcho(webSocket, controlMessage, receivedNanos);
                 }
+            } else if (connection != null) {
+                // never block the websocket thread on the injection
+                connection.getController().submit(controlMessage);
             }
-
-
         } catch (Exception e) {
             Ln.e(e.getMessage(), e);
         }
@@ -135,37 +210,52 @@ public class WSServer extends WebSocketServer {
 
     @Override
     public void onMessage(WebSocket webSocket, ByteBuffer message) {
-//        SocketInfo socketInfo = webSocket.getAttachment();
-//        if (socketInfo == null) {
-//            Ln.e("No info attached to connection");
-//            return;
-//        }
-//        WebSocketConnection connection = socketInfo.getConnection();
-//        String address = webSocket.getRemoteSocketAddress().getAddress().getHostAddress();
-//        ControlMessage controlMessage = reader.parseEvent(message);
-//        if (controlMessage != null) {
-//            if (controlMessage.getType() == ControlMessage.TYPE_PUSH_FILE) {
-//                FilePushHandler.handlePush(webSocket, controlMessage);
-//                return;
-//            }
-//            if (controlMessage.getType() == ControlMessage.TYPE_CHANGE_STREAM_PARAMETERS) {
-//                VideoSettings videoSettings = controlMessage.getVideoSettings();
-//                int displayId = videoSettings.getDisplayId();
-//                if (connection != null) {
-//                    if (connection.getVideoSettings().getDisplayId() != displayId) {
-//                        connection.leave(webSocket);
-//                    }
-//                }
-//                joinStreamForDisplayId(webSocket, videoSettings, options, displayId, this);
-//                return;
-//            }
-//            if (connection != null) {
-//                Controller controller = connection.getController();
-//                controller.handleEvent(controlMessage);
-//            }
-//        } else {
-//            Ln.w("?  Client from " + address + " sends bytes: " + message);
-//        }
+        long receivedNanos = System.nanoTime();
+        SocketInfo socketInfo = webSocket.getAttachment();
+        if (socketInfo == null) {
+            Ln.e("No info attached to connection");
+            return;
+        }
+        WebSocketConnection connection = socketInfo.getConnection();
+        try {
+            // parsed in place: the frame payload is not reused by the websocket
+            ControlMessage controlMessage = binaryReader.parseEvent(message);
+            if (controlMessage == null) {
+                // constant, so that the suppressed messages cost nothing
+                Ln.w(INVALID_MESSAGE_LOG_LIMITER, "Invalid binary message");
+                return;
+            }
+            switch (controlMessage.getType()) {
+                case ControlMessage.TYPE_CHANGE_STREAM_PARAMETERS:
+                    joinStream(webSocket, controlMessage.getVideoSettings());
+                    break;
+                case ControlMessage.TYPE_PUSH_FILE:
+                    filePushHandler.handlePush(webSocket, controlMessage);
+                    break;
+                case ControlMessage.TYPE_PULL_FILE:
+                    filePullHandler.handlePull(webSocket, controlMessage);
+                    break;
+                case ControlMessage.TYPE_LIST_DIRECTORY:
+                    filePullHandler.handleListDirectory(webSocket, controlMessage);
+                    break;
+                case ControlMessage.TYPE_GET_METRICS:
+                    sendMetrics(webSocket);
+                    break;
+                case ControlMessage.TYPE_LATENCY_ECHO:
+                    // handled immediately, the arrival time is part of the measure
+                    if (connection != null) {
+                        connection.onLatencyEcho(webSocket, controlMessage, receivedNanos);
+                    }
+                    break;
+                default:
+                    if (connection != null) {
+                        connection.getController().submit(controlMessage);
+                    }
+                    break;
+            }
+        } catch (Exception e) {
+            Ln.e(e.getMessage(), e);
+        }
     }
 
     @Override
@@ -173,7 +263,8 @@ public class WSServer extends WebSocketServer {
         Ln.e("WebSocket error", ex);
         if (webSocket != null) {
             // some errors like port binding failed may not be assignable to a specific websocket
-            FilePushHandler.cancelAllForConnection(webSocket);
+            filePushHandler.cancelAllForConnection(webSocket);
+            filePullHandler.cancelAllForConnection(webSocket);
         }
         if (ex instanceof BindException) {
             System.exit(1);
@@ -188,16 +279,104 @@ public class WSServer extends WebSocketServer {
         writePidFile();
     }
 
-    private static void joinStreamForDisplayId(
-            WebSocket webSocket, VideoSettings videoSettings, Options options, int displayId, WSServer wsServer) {
+    /**
+     * Make the client watch the stream encoded with the requested settings.
+     * <p>
+     * Clients requesting the same settings share the same encoder. Otherwise, a new rendition of the display is encoded, unless the maximum
+     * number of renditions is reached: in that case, the client joins the nearest rendition of the same display.
+     */
+    private void joinStream(WebSocket webSocket, VideoSettings videoSettings) {
         SocketInfo socketInfo = webSocket.getAttachment();
-        WebSocketConnection connection = STREAM_BY_DISPLAY_ID.get(displayId);
-        if (connection == null) {
-            connection = new WebSocketConnection(options, videoSettings, wsServer);
-            STREAM_BY_DISPLAY_ID.put(displayId, connection);
+        switch (sessions.join(socketInfo, videoSettings)) {
+            case SessionRegistry.RECONFIGURED:
+                // the screen info has changed, not the displays
+                broadcastDeviceInfo(socketInfo.getConnection(), false);
+                break;
+            case SessionRegistry.REJECTED:
+                Ln.w("Too many renditions (" + sessions.getStreamCount() + "), cannot stream display " + videoSettings.getDisplayId());
+                webSocket.close(CloseFrame.TRY_AGAIN_LATER);
+                break;
+            default:
+                break;
         }
-        socketInfo.setConnection(connection);
-        connection.join(webSocket, videoSettings);
+    }
+
+    private final class StreamRenditions implements SessionRegistry.Renditions<WebSocketConnection> {
+        @Override
+        public WebSocketConnection create(VideoSettings videoSettings) {
+            return new WebSocketConnection(options, videoSettings, WSServer.this);
+        }
+
+        @Override
+        public VideoSettings reconfigure(WebSocketConnection connection, VideoSettings videoSettings) {
+            connection.setVideoSettings(videoSettings);
+            return connection.getVideoSettings();
+        }
+
+        @Override
+        public VideoSettings findNearest(VideoSettings videoSettings, Collection<VideoSettings> candidates) {
+            VideoSettings nearest = findNearestStream(videoSettings, candidates);
+            if (nearest != null) {
+                Ln.i("Too many renditions (" + candidates.size() + "), join the nearest one: " + nearest);
+            }
+            return nearest;
+        }
+
+        @Override
+        public void join(WebSocketConnection connection, WebSocket webSocket) {
+            connection.join(webSocket);
+        }
+
+        @Override
+        public void leave(WebSocketConnection connection, WebSocket webSocket) {
+            connection.leave(webSocket);
+        }
+
+        @Override
+        public void release(WebSocketConnection connection) {
+            Ln.d("Last client has left");
+            connection.release();
+        }
+    }
+
+    /**
+     * Send the server metrics and the state of each stream, as a JSON text message (whatever the protocol of the client), so that they can
+     * be scraped by any websocket client.
+     */
+    private void sendMetrics(WebSocket webSocket) throws IOException {
+        List<Map<String, Object>> streams = new ArrayList<>();
+        for (WebSocketConnection connection : sessions.getStreams()) {
+            streams.add(connection.getMetrics());
+        }
+        Map<String, Object> data = new HashMap<>();
+        data.put("metrics", Metrics.snapshot());
+        data.put("streams", streams);
+        Map<String, Object> msg = new HashMap<>();
+        msg.put("message", "metrics");
+        msg.put("data", data);
+        webSocket.send(WebSocketConnection.MAPPER.writeValueAsString(msg));
+    }
+
+    private static VideoSettings findNearestStream(VideoSettings videoSettings, Collection<VideoSettings> candidates) {
+        int displayId = videoSettings.getDisplayId();
+        DisplayInfo displayInfo = Device.getDisplayInfo(displayId);
+        if (displayInfo == null) {
+            return null;
+        }
+        Size displaySize = displayInfo.getSize();
+        VideoSettings nearest = null;
+        double nearestDistance = Double.MAX_VALUE;
+        for (VideoSettings candidate : candidates) {
+            if (candidate.getDisplayId() != displayId) {
+                continue;
+            }
+            double distance = videoSettings.distanceTo(candidate, displaySize);
+            if (distance < nearestDistance) {
+                nearest = candidate;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
     }
 
     private static void unlinkPidFile() {
@@ -225,27 +404,77 @@ public class WSServer extends WebSocketServer {
         }
     }
 
-    public static WebSocketConnection getConnectionForDisplay(int displayId) {
-        return STREAM_BY_DISPLAY_ID.get(displayId);
+    /**
+     * Send the whole device info to a client, when it joins a stream.
+     */
+    public void sendDeviceInfo(WebSocket webSocket) {
+        SocketInfo socketInfo = webSocket.getAttachment();
+        if (socketInfo == null) {
+            return;
+        }
+        try {
+            WebSocketConnection connection = socketInfo.getConnection();
+            String screenInfoJson = connection != null ? connection.getScreenInfoJson() : null;
+            webSocket.send(deviceInfo.getFullMessage(socketInfo.getId(), screenInfoJson));
+        } catch (Exception e) {
+            Ln.e("Could not send the device info", e);
+        }
     }
 
-    public static void releaseConnectionForDisplay(int displayId) {
-        STREAM_BY_DISPLAY_ID.get(displayId).getDevice().release();
-        STREAM_BY_DISPLAY_ID.remove(displayId);
+    /**
+     * Notify the clients of a rotation of the display of a stream: its screen info and the displays have changed.
+     */
+    public void onDeviceInfoChanged(WebSocketConnection stream) {
+        broadcastDeviceInfo(stream, true);
     }
 
-    public void sendInitialInfoToAll() {
+    /**
+     * Send the changes of the device info to the clients concerned: a delta to those which requested it, or the whole document.
+     *
+     * @param stream         the stream which screen info changed, or {@code null}
+     * @param reloadDisplays whether the displays may have changed
+     */
+    private void broadcastDeviceInfo(WebSocketConnection stream, boolean reloadDisplays) {
         Collection<WebSocket> webSockets = this.getConnections();
-        if (webSockets.isEmpty()) {
-            return;
-        }
-        HashMap<String, Object> initialInfo = WebSocketConnection.getInitialInfo();
-        for (WebSocket webSocket : webSockets) {
-            SocketInfo socketInfo = webSocket.getAttachment();
-            if (socketInfo == null) {
-                continue;
+        try {
+            boolean displaysChanged = reloadDisplays && deviceInfo.reloadDisplays();
+            if (webSockets.isEmpty() || (stream == null && !displaysChanged)) {
+                return;
             }
-            WebSocketConnection.sendInitialInfo(initialInfo, webSocket, socketInfo.getId());
+            String displaysJson = displaysChanged ? deviceInfo.getDisplaysJson() : null;
+            // built once, for the clients which only need the displays
+            String displaysDelta = displaysChanged ? DeviceInfoCache.getDeltaMessage(displaysJson, null) : null;
+            for (WebSocket webSocket : webSockets) {
+                SocketInfo socketInfo = webSocket.getAttachment();
+                if (socketInfo == null || !webSocket.isOpen()) {
+                    continue;
+                }
+                WebSocketConnection connection = socketInfo.getConnection();
+                boolean screenInfoChanged = stream != null && connection == stream;
+                if (!screenInfoChanged && !displaysChanged) {
+                    continue;
+                }
+                if (!socketInfo.isDeviceInfoDelta()) {
+                    String screenInfoJson = connection != null ? connection.getScreenInfoJson() : null;
+                    webSocket.send(deviceInfo.getFullMessage(socketInfo.getId(), screenInfoJson));
+                } else if (screenInfoChanged) {
+                    webSocket.send(DeviceInfoCache.getDeltaMessage(displaysJson, stream.getScreenInfoJson()));
+                } else {
+                    webSocket.send(displaysDelta);
+                }
+            }
+        } catch (Exception e) {
+            Ln.e("Could not send the device info", e);
         }
     }
+
+    private void registerDisplayCallback() {
+        Device.registerDisplayCallback(new IDisplayManagerCallback.Stub() {
+            @Override
+            public void onDisplayEvent(int displayId, int event) {
+                // a display has been added, changed or removed; nothing is sent if the displays are actually unchanged
+                broadcastDeviceInfo(null, true);
+            }
+        });
+    }
 }
@@ -1,120 +1,215 @@
 package com.genymobile.scrcpy;
 
-import android.media.MediaCodecInfo;
-
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.java_websocket.WebSocket;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
 public class WebSocketConnection extends Connection {
     private static final byte[] MAGIC_BYTES_INITIAL = "scrcpy_initial".getBytes(StandardCharsets.UTF_8);
-    private static final byte[] MAGIC_BYTES_MESSAGE = "scrcpy_message".getBytes(StandardCharsets.UTF_8);
     private static final byte[] DEVICE_NAME_BYTES = Device.getDeviceName().getBytes(StandardCharsets.UTF_8);
+    private static final long BIT_RATE_SAMPLE_INTERVAL_NS = 500_000_000; // 500ms
+    // thread-safe, and expensive to create
+    static final ObjectMapper MAPPER = new ObjectMapper();
     private final WSServer wsServer;
-    private final HashSet<WebSocket> sockets = new HashSet<>();
-    private ScreenEncoder screenEncoder;
+    private final HashMap<WebSocket, WebSocketSender> senders = new HashMap<>();
+    private volatile ScreenEncoder screenEncoder;
+    // the packets required by a new client to start decoding
+    private final GopCache gopCache;
+    // null if the bit rate is not adaptive
+    private BitrateController bitrateController;
+    private long lastBitRateSampleNanos;
+    private volatile SerializedScreenInfo serializedScreenInfo;
+
+    private static final class SerializedScreenInfo {
+        private final ScreenInfo screenInfo;
+        private final String json;
+
+        SerializedScreenInfo(ScreenInfo screenInfo, String json) {
+            this.screenInfo = screenInfo;
+            this.json = json;
+        }
+    }
 
     public WebSocketConnection(Options options, VideoSettings videoSettings, WSServer wsServer) {
         super(options, videoSettings);
         this.wsServer = wsServer;
+        gopCache = new GopCache(options.getGopCacheSize());
+        if (options.getAdaptiveBitRate()) {
+            bitrateController = createBitrateController(options, videoSettings);
+        }
+    }
+
+    private static BitrateController createBitrateController(Options options, VideoSettings videoSettings) {
+        int maxBitRate = options.getMaxBitRate() > 0 ? options.getMaxBitRate() : videoSettings.getBitRate();
+        int minBitRate = Math.min(options.getMinBitRate(), maxBitRate);
+        return new AimdBitrateController(videoSettings.getBitRate(), minBitRate, maxBitRate, options.getBitRateStep());
     }
 
-    public void join(WebSocket webSocket, VideoSettings videoSettings) {
-        sockets.add(webSocket);
-        boolean changed = setVideoSettings(videoSettings);
-        wsServer.sendInitialInfoToAll();
+    public void join(WebSocket webSocket) {
+        boolean replayed = false;
+        synchronized (senders) {
+            if (!senders.containsKey(webSocket)) {
+                WebSocketSender sender = new WebSocketSender(webSocket);
+                // replay the cache before any live packet (under the same lock as send())
+                sender.replay(gopCache.getPackets());
+                replayed = gopCache.hasKeyFrame();
+                senders.put(webSocket, sender);
+                sender.start();
+            }
+        }
+        wsServer.sendDeviceInfo(webSocket);
         if (!Device.isScreenOn()) {
             controller.turnScreenOn();
         }
+        startEncoder(replayed);
+    }
+
+    // clients may join concurrently, only one of them must start the encoder
+    private synchronized void startEncoder(boolean replayed) {
         if (screenEncoder == null || !screenEncoder.isAlive()) {
             Ln.d("First connection. Start new encoder.");
             device.setRotationListener(this);
-            screenEncoder = new ScreenEncoder(videoSettings);
-            screenEncoder.start(device, this);
-        } else {
-            if (!changed) {
-                if (this.streamInvalidateListener != null) {
-                    streamInvalidateListener.onStreamInvalidate();
+            synchronized (senders) {
+                if (bitrateController != null) {
+                    bitrateController.reset(videoSettings.getBitRate());
                 }
             }
+            screenEncoder = new ScreenEncoder(videoSettings);
+            screenEncoder.start(device, this);
+        } else if (!replayed) {
+            // The stream is already running: restarting the encoder would stall all the other clients. The codec config has been
+            // replayed from the cache, but not the current GOP (too big), so request a key frame from which the client can start decoding.
+            screenEncoder.requestSyncFrame();
         }
     }
 
+    /**
+     * Remove a client. The stream is released by the {@link SessionRegistry} once its last client has left.
+     */
     public void leave(WebSocket webSocket) {
-        sockets.remove(webSocket);
-        if (sockets.isEmpty()) {
-            Ln.d("Last client has left");
-            this.release();
+        synchronized (senders) {
+            WebSocketSender sender = senders.remove(webSocket);
+            if (sender != null) {
+                sender.stop();
+            }
         }
         //wsServer.sendInitialInfoToAll();
     }
 
     public static ByteBuffer deviceMessageToByteBuffer(DeviceMessage msg) {
-        ByteBuffer buffer = ByteBuffer.wrap(msg.writeToByteArray(MAGIC_BYTES_MESSAGE.length));
-        buffer.put(MAGIC_BYTES_MESSAGE);
-        buffer.rewind();
-        return buffer;
+        return msg.toWebSocketBuffer();
     }
 
 
     @Override
     public void send(DeviceMessage msg) {
-        if (sockets.isEmpty()) {
-            return;
-        }
-        synchronized (sockets) {
-            for (WebSocket webSocket : sockets) {
+        // serialized (at most) once per format for all the clients
+        String json = null;
+        ByteBuffer binary = null;
+        synchronized (senders) {
+            for (WebSocket webSocket : senders.keySet()) {
                 WSServer.SocketInfo info = webSocket.getAttachment();
                 if (!webSocket.isOpen() || info == null) {
                     continue;
                 }
-                ObjectMapper mapper = new ObjectMapper();
                 try {
-                    String json = mapper.writeValueAsString(msg);
-                    webSocket.send(json);
+                    if (info.isBinaryProtocol()) {
+                        if (binary == null) {
+                            binary = deviceMessageToByteBuffer(msg);
+                        }
+                        webSocket.send(binary.duplicate());
+                    } else {
+                        if (json == null) {
+                            json = MAPPER.writeValueAsString(msg);
+                        }
+                        webSocket.send(json);
+                    }
                 } catch (Exception e) {
                     Ln.e(e.getMessage());
                 }
-
             }
         }
     }
 
     @Override
     void send(ByteBuffer data) {
-        if (sockets.isEmpty()) {
-            return;
-        }
-        synchronized (sockets) {
-            for (WebSocket webSocket : sockets) {
+        VideoPacket packet = VideoPacket.copyOf(data, 0);
+        send(packet);
+        packet.release();
+    }
+
+    @Override
+    void send(VideoPacket packet) {
+        synchronized (senders) {
+            if (senders.isEmpty()) {
+                return;
+            }
+            // the packet is already framed, it is shared by all the clients
+            gopCache.add(packet);
+            boolean keyFrameNeeded = false;
+            for (WebSocketSender sender : senders.values()) {
+                WebSocket webSocket = sender.getWebSocket();
                 WSServer.SocketInfo info = webSocket.getAttachment();
                 if (!webSocket.isOpen() || info == null) {
                     continue;
                 }
-                webSocket.send(data);
+                if (!sender.offer(packet) && sender.isWaitingForKeyFrame()) {
+                    keyFrameNeeded = true;
+                }
             }
+            if (keyFrameNeeded && screenEncoder != null) {
+                // a lagging client should not wait for the next periodic key frame to recover
+                screenEncoder.requestSyncFrame();
+            }
+            if (bitrateController != null) {
+                updateBitRate();
+            }
+        }
+    }
+
+    // must be called with the senders lock held
+    private void updateBitRate() {
+        long now = System.nanoTime();
+        if (now - lastBitRateSampleNanos < BIT_RATE_SAMPLE_INTERVAL_NS) {
+            return;
+        }
+        lastBitRateSampleNanos = now;
+
+        // the encoder is shared, so adapt to the most lagging client
+        long bufferedBytes = 0;
+        long sendLatencyMs = 0;
+        for (WebSocketSender sender : senders.values()) {
+            bufferedBytes = Math.max(bufferedBytes, sender.getBufferedBytes());
+            sendLatencyMs = Math.max(sendLatencyMs, sender.getSendLatencyMs());
+        }
+        int bitRate = bitrateController.getBitRate();
+        int newBitRate = bitrateController.update(bufferedBytes, sendLatencyMs);
+        if (newBitRate != bitRate && screenEncoder != null) {
+            screenEncoder.setBitRate(newBitRate);
         }
     }
 
-    public static void sendInitialInfo(HashMap initialInfo, WebSocket webSocket, int clientId) {
-        initialInfo.put("clientId", clientId);
-        ObjectMapper mapper = new ObjectMapper();
-        Map<String, Object> msg = new HashMap<String, Object>(){{
-            put("message" , "device_info");
-            put("data", initialInfo);
-        }};
-        try {
-            webSocket.send(mapper.writeValueAsString(msg));
-        } catch (Exception e) {}
+    @Override
+    public boolean setVideoSettings(VideoSettings newSettings) {
+        synchronized (senders) {
+            int bitRate = videoSettings.getBitRate();
+            if (!super.setVideoSettings(newSettings)) {
+                return false;
+            }
+            if (bitrateController != null && videoSettings.getBitRate() != bitRate) {
+                // the requested bit rate (the default ceiling) changed
+                bitrateController = createBitrateController(options, videoSettings);
+            }
+        }
+        return true;
     }
 
     public void sendDeviceMessage(DeviceMessage msg) {
@@ -124,7 +219,68 @@ public class WebSocketConnection extends Connection {
 
     @Override
     public boolean hasConnections() {
-        return sockets.size() > 0;
+        synchronized (senders) {
+            return !senders.isEmpty();
+        }
+    }
+
+    /**
+     * Return the metrics of this stream and of each of its clients.
+     *
+     * @return the values by name, to be serialized as JSON
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("displayId", videoSettings.getDisplayId());
+        InjectionQueue injectionQueue = controller.getInjectionQueue();
+        if (injectionQueue != null) {
+            metrics.put("injectionDepth", injectionQueue.getDepth());
+            metrics.put("injectionMaxDepth", injectionQueue.getMaxDepth());
+            metrics.put("droppedMoves", injectionQueue.getDroppedMoves());
+        }
+        List<Map<String, Object>> clients = new ArrayList<>();
+        synchronized (senders) {
+            if (bitrateController != null) {
+                metrics.put("bitRate", bitrateController.getBitRate());
+            }
+            for (WebSocketSender sender : senders.values()) {
+                WSServer.SocketInfo info = sender.getWebSocket().getAttachment();
+                Map<String, Object> client = new HashMap<>();
+                client.put("clientId", info != null ? info.getId() : -1);
+                client.put("sentBytes", sender.getSentBytes());
+                client.put("droppedPackets", sender.getDroppedPackets());
+                client.put("queueDepth", sender.getQueueSize());
+                client.put("bufferedBytes", sender.getBufferedBytes());
+                client.put("sendLatencyMs", sender.getSendLatencyMs());
+                client.put("latency", sender.getLatencyTracker().getLastBreakdown());
+                clients.add(client);
+            }
+        }
+        metrics.put("clients", clients);
+        return metrics;
+    }
+
+    /**
+     * Handle a latency echo from a client.
+     *
+     * @param webSocket     the client
+     * @param echo          the {@link ControlMessage#TYPE_LATENCY_ECHO} message
+     * @param receivedNanos the {@link System#nanoTime()} when the echo was received
+     */
+    public void onLatencyEcho(WebSocket webSocket, ControlMessage echo, long receivedNanos) {
+        WebSocketSender sender;
+        synchronized (senders) {
+            sender = senders.get(webSocket);
+        }
+        if (sender != null) {
+            sender.getLatencyTracker().onEcho(echo, receivedNanos);
+        }
+    }
+
+    public int getViewerCount() {
+        synchronized (senders) {
+            return senders.size();
+        }
     }
 
     @Override
@@ -144,37 +300,41 @@ public class WebSocketConnection extends Connection {
         return device;
     }
 
-    @SuppressWarnings("checkstyle:MagicNumber")
-    public static HashMap<String, Object> getInitialInfo() {
-
-        HashMap<String, Object> initialInfo = new HashMap<String, Object>();
-        int[] displayIds = Device.getDisplayIds();
-        HashMap<Integer, DisplayInfo> displayInfoHashMap = new HashMap<>();
-        List<DisplayInfo> displays = new ArrayList<>();
-        for (int displayId : displayIds) {
-            DisplayInfo displayInfo = Device.getDisplayInfo(displayId);
-            displayInfoHashMap.put(displayId, displayInfo);
-            displays.add(displayInfo);
-            WebSocketConnection connection = WSServer.getConnectionForDisplay(displayId);
-            if(connection != null) {
-                initialInfo.put("screenInfo", connection.getDevice().getScreenInfo());
-            }
+    /**
+     * Return the screen info of this stream, serialized once per change for the device info messages.
+     *
+     * @return the screen info as JSON
+     */
+    public String getScreenInfoJson() throws IOException {
+        ScreenInfo screenInfo = device.getScreenInfo();
+        SerializedScreenInfo serialized = serializedScreenInfo;
+        // the device replaces its screen info on every change
+        if (serialized == null || serialized.screenInfo != screenInfo) {
+            serialized = new SerializedScreenInfo(screenInfo, MAPPER.writeValueAsString(screenInfo));
+            serializedScreenInfo = serialized;
         }
-        MediaCodecInfo[] encoders = ScreenEncoder.listEncoders();
-        initialInfo.put("displays", displays);
-        initialInfo.put("encoders", Arrays.asList(encoders));
+        return serialized.json;
+    }
 
-        return initialInfo;
+    @Override
+    protected void onVideoSettingsChanged(VideoSettingsDiff diff) {
+        synchronized (senders) {
+            // until the encoder restarts, a new client would be replayed a codec config in the previous format
+            gopCache.onVideoSettingsChanged(diff);
+        }
     }
 
     public void onRotationChanged(int rotation) {
         super.onRotationChanged(rotation);
-        wsServer.sendInitialInfoToAll();
+        wsServer.onDeviceInfoChanged(this);
     }
 
-    private void release() {
-
-        WSServer.releaseConnectionForDisplay(this.videoSettings.getDisplayId());
+    void release() {
+        synchronized (senders) {
+            gopCache.clear();
+        }
+        controller.stop();
+        device.release();
         // encoder will stop itself after checking .hasConnections()
     }
 }
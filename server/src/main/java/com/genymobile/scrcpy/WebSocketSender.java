@@ -0,0 +1,306 @@
+package com.genymobile.scrcpy;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Outbound video queue of a single websocket client, drained by its own thread.
+ * <p>
+ * The encoder only enqueues packets, so a slow client can never delay the encoder nor the other clients of the same stream. When the queue
+ * is full, the client is lagging: its non-key frames are dropped until the next key frame, from which it can decode again. For the same
+ * reason, a new client receives no frame until the first key frame.
+ * <p>
+ * The sender holds a reference to each packet it enqueues, until the packet is dropped or completely written to the socket.
+ */
+public final class WebSocketSender implements Runnable {
+
+    public static final int DEFAULT_CAPACITY = 16; // packets
+
+    private static final int FLUSH_POLL_DELAY_MS = 2;
+    private static final Ln.RateLimiter LAGGING_LOG_LIMITER = new Ln.RateLimiter(1000);
+
+    // for all the clients
+    private static final Metrics.Counter SENT_PACKETS = Metrics.counter("ws.sent_packets");
+    private static final Metrics.Counter SENT_BYTES = Metrics.counter("ws.sent_bytes");
+    private static final Metrics.Counter DROPPED_PACKETS = Metrics.counter("ws.dropped_packets");
+
+    private final WebSocket webSocket;
+    private final int capacity;
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+    private final ArrayDeque<VideoPacket> queue = new ArrayDeque<>();
+    // older packets are replayed, their delay is not representative of the network conditions
+    private final long createdAtNanos = System.nanoTime();
+
+    private boolean waitingForKeyFrame = true;
+    // number of replayed packets at the head of the queue, which do not count in the capacity
+    private int replayBacklog;
+    private boolean stopped;
+    private long droppedPackets;
+    private long queuedBytes;
+    private volatile long sendLatencyNanos;
+    // only written by the sender thread
+    private volatile long sentBytes;
+    private Thread thread;
+
+    // the last packet handed over to the websocket, until it is flushed (only accessed from the sender thread)
+    private VideoPacket inFlight;
+    // the view of the in-flight frame consumed by the websocket, to know how many bytes remain to be written
+    private volatile ByteBuffer inFlightFrame;
+
+    public WebSocketSender(WebSocket webSocket) {
+        this(webSocket, DEFAULT_CAPACITY);
+    }
+
+    public WebSocketSender(WebSocket webSocket, int capacity) {
+        this.webSocket = webSocket;
+        this.capacity = capacity;
+    }
+
+    public WebSocket getWebSocket() {
+        return webSocket;
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    /**
+     * Enqueue a packet, or drop it if the client is lagging.
+     *
+     * @param packet the packet
+     * @return {@code true} if the packet has been enqueued
+     */
+    public synchronized boolean offer(VideoPacket packet) {
+        if (stopped) {
+            return false;
+        }
+        if (packet.isConfig() || packet.isKeyFrame()) {
+            // never dropped: nothing could be decoded without them
+            if (isFull()) {
+                // the pending frames are stale, the client will restart decoding from this packet
+                dropPendingFrames();
+            }
+            if (packet.isKeyFrame()) {
+                waitingForKeyFrame = false;
+            }
+        } else if (waitingForKeyFrame) {
+            ++droppedPackets;
+            DROPPED_PACKETS.inc();
+            return false;
+        } else if (isFull()) {
+            Ln.d(LAGGING_LOG_LIMITER, "Client lagging, drop frames until the next key frame");
+            waitingForKeyFrame = true;
+            ++droppedPackets;
+            DROPPED_PACKETS.inc();
+            return false;
+        }
+        queue.add(packet.retain());
+        queuedBytes += packet.getSize();
+        notify();
+        return true;
+    }
+
+    /**
+     * Enqueue packets already sent to the other clients (typically from a {@link GopCache}), so that a new client can start decoding
+     * immediately.
+     * <p>
+     * Replayed packets do not count in the capacity (their size is bounded by the cache), so that the live packets are not dropped while the
+     * backlog is flushed. Therefore, they must be replayed before any live packet is offered.
+     *
+     * @param packets the packets, in decoding order
+     */
+    public synchronized void replay(List<VideoPacket> packets) {
+        if (stopped) {
+            return;
+        }
+        if (!queue.isEmpty()) {
+            throw new IllegalStateException("Packets must be replayed before any live packet");
+        }
+        for (VideoPacket packet : packets) {
+            if (packet.isKeyFrame()) {
+                waitingForKeyFrame = false;
+            }
+            queue.add(packet.retain());
+            queuedBytes += packet.getSize();
+        }
+        replayBacklog = queue.size();
+        notify();
+    }
+
+    private boolean isFull() {
+        return queue.size() - replayBacklog >= capacity;
+    }
+
+    private void dropPendingFrames() {
+        replayBacklog = 0;
+        Iterator<VideoPacket> it = queue.iterator();
+        while (it.hasNext()) {
+            VideoPacket packet = it.next();
+            if (!packet.isConfig()) {
+                it.remove();
+                queuedBytes -= packet.getSize();
+                packet.release();
+                ++droppedPackets;
+                DROPPED_PACKETS.inc();
+            }
+        }
+    }
+
+    public synchronized boolean isWaitingForKeyFrame() {
+        return waitingForKeyFrame;
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    public synchronized long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * Return the number of bytes waiting to be sent: the queued packets and the part of the last frame not written to the socket yet.
+     *
+     * @return the number of buffered bytes
+     */
+    public synchronized long getBufferedBytes() {
+        long bufferedBytes = queuedBytes;
+        ByteBuffer frame = inFlightFrame;
+        if (frame != null) {
+            bufferedBytes += frame.remaining();
+        }
+        return bufferedBytes;
+    }
+
+    /**
+     * Return how long the last live packet has waited between its production and its handover to the socket.
+     *
+     * @return the send latency, in milliseconds
+     */
+    public long getSendLatencyMs() {
+        return sendLatencyNanos / 1_000_000;
+    }
+
+    /**
+     * Return the number of bytes handed over to the socket.
+     *
+     * @return the number of sent bytes
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Sender already started");
+        }
+        thread = new Thread(this, "ws-sender");
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        for (VideoPacket packet : queue) {
+            packet.release();
+        }
+        queue.clear();
+        queuedBytes = 0;
+        notify();
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private synchronized boolean awaitPacket() throws InterruptedException {
+        while (!stopped && queue.isEmpty()) {
+            wait();
+        }
+        return !stopped;
+    }
+
+    private synchronized VideoPacket poll() {
+        if (replayBacklog > 0) {
+            --replayBacklog;
+        }
+        VideoPacket packet = queue.poll();
+        if (packet != null) {
+            queuedBytes -= packet.getSize();
+        }
+        return packet;
+    }
+
+    private void write(VideoPacket packet) {
+        long now = System.nanoTime();
+        if (packet.getTimestampNanos() >= createdAtNanos) {
+            sendLatencyNanos = now - packet.getTimestampNanos();
+        }
+        if (packet.getSequence() >= 0) {
+            latencyTracker.onSent(packet.getSequence(), packet.getCaptureUs(), now);
+        }
+        sentBytes += packet.getSize();
+        SENT_PACKETS.inc();
+        SENT_BYTES.add(packet.getSize());
+        if (webSocket instanceof WebSocketImpl) {
+            // The packet is already framed: enqueue the very same bytes for every client, instead of letting each socket frame (so copy)
+            // the payload. A frame is always enqueued as a whole, so it cannot interleave with the messages sent from other threads.
+            WebSocketImpl impl = (WebSocketImpl) webSocket;
+            ByteBuffer frame = packet.getFrame();
+            inFlightFrame = frame;
+            impl.outQueue.add(frame);
+            impl.getWebSocketListener().onWriteDemand(impl);
+            // keep the packet until it is flushed
+            inFlight = packet;
+        } else {
+            // the data is copied synchronously
+            webSocket.send(packet.getData());
+            packet.release();
+        }
+    }
+
+    private void releaseInFlight() {
+        if (inFlight != null) {
+            if (webSocket.hasBufferedData()) {
+                // The sender is stopped (or the socket closed) before the frame is completely written: the socket may still read it, so
+                // its buffer must not be recycled (the client may have only switched to another stream on the same socket)
+                inFlight.detach();
+            }
+            inFlightFrame = null;
+            inFlight.release();
+            inFlight = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (awaitPacket()) {
+                // Do not hand over a new packet until the previous ones are written to the socket, so that the backlog of a slow client
+                // accumulates in this bounded queue (where the drop policy applies) rather than in the websocket unbounded output queue
+                while (webSocket.hasBufferedData() && webSocket.isOpen()) {
+                    Thread.sleep(FLUSH_POLL_DELAY_MS);
+                }
+                releaseInFlight();
+                VideoPacket packet = poll();
+                if (packet != null) {
+                    if (webSocket.isOpen()) {
+                        write(packet);
+                    } else {
+                        packet.release();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (RuntimeException e) {
+            // the socket has been closed concurrently
+            Ln.d("Sender stopped: " + e.getMessage());
+        } finally {
+            releaseInFlight();
+        }
+    }
+}
@@ -1,30 +1,59 @@
 package com.genymobile.scrcpy.wrappers;
 
 import com.genymobile.scrcpy.DisplayInfo;
+import com.genymobile.scrcpy.Ln;
 import com.genymobile.scrcpy.Size;
 
+import android.annotation.SuppressLint;
+import android.hardware.display.IDisplayManagerCallback;
 import android.os.IInterface;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+@SuppressLint("PrivateApi,DiscouragedPrivateApi")
 public final class DisplayManager {
     private final IInterface manager;
 
+    // resolved once, the display info is retrieved on every encoder (re)start and rotation
+    private final Method getDisplayInfoMethod;
+    private final Method getDisplayIdsMethod;
+    private final Method registerCallbackMethod;
+    private final Field logicalWidthField;
+    private final Field logicalHeightField;
+    private final Field rotationField;
+    private final Field layerStackField;
+    private final Field flagsField;
+
     public DisplayManager(IInterface manager) {
         this.manager = manager;
+        getDisplayInfoMethod = HiddenMethods.find(manager.getClass(), "getDisplayInfo", int.class);
+        getDisplayIdsMethod = HiddenMethods.find(manager.getClass(), "getDisplayIds");
+        registerCallbackMethod = HiddenMethods.find(manager.getClass(), "registerCallback", IDisplayManagerCallback.class);
+        try {
+            Class<?> cls = Class.forName("android.view.DisplayInfo");
+            logicalWidthField = cls.getDeclaredField("logicalWidth");
+            logicalHeightField = cls.getDeclaredField("logicalHeight");
+            rotationField = cls.getDeclaredField("rotation");
+            layerStackField = cls.getDeclaredField("layerStack");
+            flagsField = cls.getDeclaredField("flags");
+        } catch (ClassNotFoundException | NoSuchFieldException e) {
+            throw new AssertionError(e);
+        }
     }
 
     public DisplayInfo getDisplayInfo(int displayId) {
         try {
-            Object displayInfo = manager.getClass().getMethod("getDisplayInfo", int.class).invoke(manager, displayId);
+            Object displayInfo = HiddenMethods.require(getDisplayInfoMethod, "getDisplayInfo").invoke(manager, displayId);
             if (displayInfo == null) {
                 return null;
             }
-            Class<?> cls = displayInfo.getClass();
             // width and height already take the rotation into account
-            int width = cls.getDeclaredField("logicalWidth").getInt(displayInfo);
-            int height = cls.getDeclaredField("logicalHeight").getInt(displayInfo);
-            int rotation = cls.getDeclaredField("rotation").getInt(displayInfo);
-            int layerStack = cls.getDeclaredField("layerStack").getInt(displayInfo);
-            int flags = cls.getDeclaredField("flags").getInt(displayInfo);
+            int width = logicalWidthField.getInt(displayInfo);
+            int height = logicalHeightField.getInt(displayInfo);
+            int rotation = rotationField.getInt(displayInfo);
+            int layerStack = layerStackField.getInt(displayInfo);
+            int flags = flagsField.getInt(displayInfo);
             return new DisplayInfo(displayId, new Size(width, height), rotation, layerStack, flags);
         } catch (Exception e) {
             throw new AssertionError(e);
@@ -33,9 +62,26 @@ public final class DisplayManager {
 
     public int[] getDisplayIds() {
         try {
-            return (int[]) manager.getClass().getMethod("getDisplayIds").invoke(manager);
+            return (int[]) HiddenMethods.require(getDisplayIdsMethod, "getDisplayIds").invoke(manager);
         } catch (Exception e) {
             throw new AssertionError(e);
         }
     }
+
+    /**
+     * Register a callback notified when a display is added, changed or removed.
+     * <p>
+     * The display manager accepts a single callback per process.
+     *
+     * @return {@code true} if the callback is registered
+     */
+    public boolean registerCallback(IDisplayManagerCallback callback) {
+        try {
+            HiddenMethods.require(registerCallbackMethod, "registerCallback").invoke(manager, callback);
+            return true;
+        } catch (Exception e) {
+            Ln.w("Could not register the display callback: " + e.getMessage());
+            return false;
+        }
+    }
 }
@@ -0,0 +1,59 @@
+package com.genymobile.scrcpy.wrappers;
+
+import com.genymobile.scrcpy.Ln;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resolution of the hidden methods called by reflection.
+ * <p>
+ * The wrappers of the hot paths resolve their methods once, when they are initialized, instead of looking them up on every call. A method
+ * which cannot be resolved is reported immediately, rather than on its first call (typically in the middle of a stream).
+ */
+public final class HiddenMethods {
+
+    private static final List<String> MISSING = new ArrayList<>();
+
+    private HiddenMethods() {
+        // not instantiable
+    }
+
+    /**
+     * Resolve a public method.
+     *
+     * @return the method, or {@code null} if it does not exist
+     */
+    static Method find(Class<?> cls, String name, Class<?>... parameterTypes) {
+        try {
+            return cls.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            String signature = cls.getName() + "." + name + Arrays.toString(parameterTypes);
+            Ln.w("Hidden method not found: " + signature);
+            synchronized (MISSING) {
+                MISSING.add(signature);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Return the signatures of the methods which could not be resolved so far.
+     *
+     * @return the missing methods
+     */
+    public static List<String> getMissing() {
+        synchronized (MISSING) {
+            return new ArrayList<>(MISSING);
+        }
+    }
+
+    static Method require(Method method, String name) throws NoSuchMethodException {
+        if (method == null) {
+            throw new NoSuchMethodException(name);
+        }
+        return method;
+    }
+}
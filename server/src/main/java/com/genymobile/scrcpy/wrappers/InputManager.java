@@ -15,24 +15,20 @@ public final class InputManager {
     public static final int INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH = 2;
 
     private final IInterface manager;
-    private Method injectInputEventMethod;
+    // resolved once, it is called for every injected event
+    private final Method injectInputEventMethod;
 
+    // only available on recent Android versions, only needed for secondary displays
     private static Method setDisplayIdMethod;
 
     public InputManager(IInterface manager) {
         this.manager = manager;
-    }
-
-    private Method getInjectInputEventMethod() throws NoSuchMethodException {
-        if (injectInputEventMethod == null) {
-            injectInputEventMethod = manager.getClass().getMethod("injectInputEvent", InputEvent.class, int.class);
-        }
-        return injectInputEventMethod;
+        injectInputEventMethod = HiddenMethods.find(manager.getClass(), "injectInputEvent", InputEvent.class, int.class);
     }
 
     public boolean injectInputEvent(InputEvent inputEvent, int mode) {
         try {
-            Method method = getInjectInputEventMethod();
+            Method method = HiddenMethods.require(injectInputEventMethod, "injectInputEvent");
             return (boolean) method.invoke(manager, inputEvent, mode);
         } catch (InvocationTargetException | IllegalAccessException | NoSuchMethodException e) {
             Ln.e("Could not invoke method", e);
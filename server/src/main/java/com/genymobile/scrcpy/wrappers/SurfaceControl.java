@@ -20,12 +20,28 @@ public final class SurfaceControl {
     public static final int POWER_MODE_OFF = 0;
     public static final int POWER_MODE_NORMAL = 2;
 
+    // resolved once, they are called on every encoder (re)start
+    private static final Method OPEN_TRANSACTION_METHOD;
+    private static final Method CLOSE_TRANSACTION_METHOD;
+    private static final Method SET_DISPLAY_PROJECTION_METHOD;
+    private static final Method SET_DISPLAY_LAYER_STACK_METHOD;
+    private static final Method SET_DISPLAY_SURFACE_METHOD;
+    private static final Method CREATE_DISPLAY_METHOD;
+    private static final Method DESTROY_DISPLAY_METHOD;
+
     static {
         try {
             CLASS = Class.forName("android.view.SurfaceControl");
         } catch (ClassNotFoundException e) {
             throw new AssertionError(e);
         }
+        OPEN_TRANSACTION_METHOD = HiddenMethods.find(CLASS, "openTransaction");
+        CLOSE_TRANSACTION_METHOD = HiddenMethods.find(CLASS, "closeTransaction");
+        SET_DISPLAY_PROJECTION_METHOD = HiddenMethods.find(CLASS, "setDisplayProjection", IBinder.class, int.class, Rect.class, Rect.class);
+        SET_DISPLAY_LAYER_STACK_METHOD = HiddenMethods.find(CLASS, "setDisplayLayerStack", IBinder.class, int.class);
+        SET_DISPLAY_SURFACE_METHOD = HiddenMethods.find(CLASS, "setDisplaySurface", IBinder.class, Surface.class);
+        CREATE_DISPLAY_METHOD = HiddenMethods.find(CLASS, "createDisplay", String.class, boolean.class);
+        DESTROY_DISPLAY_METHOD = HiddenMethods.find(CLASS, "destroyDisplay", IBinder.class);
     }
 
     private static Method getBuiltInDisplayMethod;
@@ -35,9 +51,16 @@ public final class SurfaceControl {
         // only static methods
     }
 
+    /**
+     * Resolve the hidden methods (if not already done), so that the missing ones are reported immediately.
+     */
+    public static void resolveMethods() {
+        // the methods are resolved by the static initializer
+    }
+
     public static void openTransaction() {
         try {
-            CLASS.getMethod("openTransaction").invoke(null);
+            HiddenMethods.require(OPEN_TRANSACTION_METHOD, "openTransaction").invoke(null);
         } catch (Exception e) {
             throw new AssertionError(e);
         }
@@ -45,7 +68,7 @@ public final class SurfaceControl {
 
     public static void closeTransaction() {
         try {
-            CLASS.getMethod("closeTransaction").invoke(null);
+            HiddenMethods.require(CLOSE_TRANSACTION_METHOD, "closeTransaction").invoke(null);
         } catch (Exception e) {
             throw new AssertionError(e);
         }
@@ -53,7 +76,7 @@ public final class SurfaceControl {
 
     public static void setDisplayProjection(IBinder displayToken, int orientation, Rect layerStackRect, Rect displayRect) {
         try {
-            CLASS.getMethod("setDisplayProjection", IBinder.class, int.class, Rect.class, Rect.class)
+            HiddenMethods.require(SET_DISPLAY_PROJECTION_METHOD, "setDisplayProjection")
                     .invoke(null, displayToken, orientation, layerStackRect, displayRect);
         } catch (Exception e) {
             throw new AssertionError(e);
@@ -62,7 +85,7 @@ public final class SurfaceControl {
 
     public static void setDisplayLayerStack(IBinder displayToken, int layerStack) {
         try {
-            CLASS.getMethod("setDisplayLayerStack", IBinder.class, int.class).invoke(null, displayToken, layerStack);
+            HiddenMethods.require(SET_DISPLAY_LAYER_STACK_METHOD, "setDisplayLayerStack").invoke(null, displayToken, layerStack);
         } catch (Exception e) {
             throw new AssertionError(e);
         }
@@ -70,7 +93,7 @@ public final class SurfaceControl {
 
     public static void setDisplaySurface(IBinder displayToken, Surface surface) {
         try {
-            CLASS.getMethod("setDisplaySurface", IBinder.class, Surface.class).invoke(null, displayToken, surface);
+            HiddenMethods.require(SET_DISPLAY_SURFACE_METHOD, "setDisplaySurface").invoke(null, displayToken, surface);
         } catch (Exception e) {
             throw new AssertionError(e);
         }
@@ -78,7 +101,7 @@ public final class SurfaceControl {
 
     public static IBinder createDisplay(String name, boolean secure) {
         try {
-            return (IBinder) CLASS.getMethod("createDisplay", String.class, boolean.class).invoke(null, name, secure);
+            return (IBinder) HiddenMethods.require(CREATE_DISPLAY_METHOD, "createDisplay").invoke(null, name, secure);
         } catch (Exception e) {
             throw new AssertionError(e);
         }
@@ -134,7 +157,7 @@ public final class SurfaceControl {
 
     public static void destroyDisplay(IBinder displayToken) {
         try {
-            CLASS.getMethod("destroyDisplay", IBinder.class).invoke(null, displayToken);
+            HiddenMethods.require(DESTROY_DISPLAY_METHOD, "destroyDisplay").invoke(null, displayToken);
         } catch (Exception e) {
             throw new AssertionError(e);
         }
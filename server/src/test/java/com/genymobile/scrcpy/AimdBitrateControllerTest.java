@@ -0,0 +1,136 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AimdBitrateControllerTest {
+
+    private static final int MIN = 1_000_000;
+    private static final int MAX = 8_000_000;
+    private static final int STEP = 500_000;
+
+    // bytes buffered for the given delay at the given bit rate
+    private static long buffered(int bitRate, int delayMs) {
+        return (long) bitRate / 8 * delayMs / 1000;
+    }
+
+    @Test
+    public void testInitialBitRateClamped() {
+        Assert.assertEquals(MAX, new AimdBitrateController(20_000_000, MIN, MAX, STEP).getBitRate());
+        Assert.assertEquals(MIN, new AimdBitrateController(100_000, MIN, MAX, STEP).getBitRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRange() {
+        new AimdBitrateController(MIN, MAX, MIN, STEP);
+    }
+
+    @Test
+    public void testNoCongestionIncreasesToCeiling() {
+        BitrateController controller = new AimdBitrateController(4_000_000, MIN, MAX, STEP);
+        int previous = controller.getBitRate();
+        for (int i = 0; i < 100; ++i) {
+            int bitRate = controller.update(0, 5);
+            Assert.assertTrue(bitRate >= previous);
+            Assert.assertTrue(bitRate - previous <= STEP);
+            previous = bitRate;
+        }
+        Assert.assertEquals(MAX, controller.getBitRate());
+    }
+
+    @Test
+    public void testIncreaseOnlyAfterSeveralCleanSamples() {
+        BitrateController controller = new AimdBitrateController(4_000_000, MIN, MAX, STEP);
+        for (int i = 0; i < AimdBitrateController.INCREASE_SAMPLES - 1; ++i) {
+            Assert.assertEquals(4_000_000, controller.update(0, 0));
+        }
+        Assert.assertEquals(4_000_000 + STEP, controller.update(0, 0));
+    }
+
+    @Test
+    public void testSustainedCongestionDecreasesToFloor() {
+        BitrateController controller = new AimdBitrateController(MAX, MIN, MAX, STEP);
+        for (int i = 0; i < 100; ++i) {
+            controller.update(buffered(controller.getBitRate(), 1000), 1000);
+        }
+        Assert.assertEquals(MIN, controller.getBitRate());
+    }
+
+    @Test
+    public void testDecreaseOnBufferedBytes() {
+        BitrateController controller = new AimdBitrateController(MAX, MIN, MAX, STEP);
+        // below the threshold
+        Assert.assertEquals(MAX, controller.update(buffered(MAX, AimdBitrateController.CONGESTION_DELAY_MS / 2), 0));
+        // above the threshold
+        int bitRate = controller.update(buffered(MAX, AimdBitrateController.CONGESTION_DELAY_MS * 2), 0);
+        Assert.assertEquals((int) (MAX * AimdBitrateController.DECREASE_FACTOR), bitRate);
+    }
+
+    @Test
+    public void testDecreaseOnLatency() {
+        BitrateController controller = new AimdBitrateController(MAX, MIN, MAX, STEP);
+        int bitRate = controller.update(0, AimdBitrateController.CONGESTION_DELAY_MS + 1);
+        Assert.assertEquals((int) (MAX * AimdBitrateController.DECREASE_FACTOR), bitRate);
+    }
+
+    @Test
+    public void testHoldAfterDecrease() {
+        BitrateController controller = new AimdBitrateController(MAX, MIN, MAX, STEP);
+        int bitRate = controller.update(0, 1000);
+        // the backlog is still draining, do not decrease again immediately
+        for (int i = 0; i < AimdBitrateController.HOLD_SAMPLES; ++i) {
+            Assert.assertEquals(bitRate, controller.update(0, 1000));
+        }
+        Assert.assertTrue(controller.update(0, 1000) < bitRate);
+    }
+
+    @Test
+    public void testRecoverAfterCongestionSpike() {
+        BitrateController controller = new AimdBitrateController(MAX, MIN, MAX, STEP);
+        // the bandwidth drops for 5 samples
+        for (int i = 0; i < 5; ++i) {
+            controller.update(buffered(controller.getBitRate(), 500), 500);
+        }
+        int congested = controller.getBitRate();
+        Assert.assertTrue(congested < MAX);
+
+        // then the network recovers
+        for (int i = 0; i < 200; ++i) {
+            controller.update(0, 10);
+        }
+        Assert.assertEquals(MAX, controller.getBitRate());
+    }
+
+    @Test
+    public void testConvergeToLinkCapacity() {
+        // simulate a link which can send 3 Mbps: the backlog grows when the bit rate exceeds the capacity
+        int capacity = 3_000_000;
+        BitrateController controller = new AimdBitrateController(MAX, MIN, MAX, STEP);
+        long backlog = 0; // bits
+        int sampleMs = 500;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int i = 0; i < 400; ++i) {
+            int bitRate = controller.getBitRate();
+            backlog = Math.max(0, backlog + (long) (bitRate - capacity) * sampleMs / 1000);
+            controller.update(backlog / 8, 0);
+            if (i >= 200) {
+                min = Math.min(min, controller.getBitRate());
+                max = Math.max(max, controller.getBitRate());
+            }
+        }
+        // the bit rate oscillates around the capacity, never at the extremes
+        Assert.assertTrue("min=" + min, min > MIN);
+        Assert.assertTrue("max=" + max, max < capacity + 2 * STEP);
+    }
+
+    @Test
+    public void testReset() {
+        BitrateController controller = new AimdBitrateController(MAX, MIN, MAX, STEP);
+        controller.update(0, 1000);
+        controller.reset(2_000_000);
+        Assert.assertEquals(2_000_000, controller.getBitRate());
+        // not on hold anymore
+        Assert.assertTrue(controller.update(0, 1000) < 2_000_000);
+    }
+}
@@ -0,0 +1,82 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        Assert.assertEquals(10, BufferPool.getSizeShift(0));
+        Assert.assertEquals(10, BufferPool.getSizeShift(1024));
+        Assert.assertEquals(11, BufferPool.getSizeShift(1025));
+        Assert.assertEquals(11, BufferPool.getSizeShift(2048));
+        Assert.assertEquals(17, BufferPool.getSizeShift(100_000));
+    }
+
+    @Test
+    public void testAcquire() {
+        BufferPool pool = new BufferPool(true);
+        ByteBuffer buffer = pool.acquire(1500);
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(2048, buffer.capacity());
+        Assert.assertEquals(0, buffer.position());
+        Assert.assertEquals(1500, buffer.limit());
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(false);
+        ByteBuffer buffer = pool.acquire(1500);
+        buffer.position(42);
+        pool.release(buffer);
+
+        // same size class
+        ByteBuffer reused = pool.acquire(2000);
+        Assert.assertSame(buffer, reused);
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(2000, reused.limit());
+        Assert.assertEquals(1, pool.getAllocations());
+        Assert.assertEquals(1, pool.getReuses());
+
+        // another size class
+        Assert.assertNotSame(buffer, pool.acquire(500));
+        Assert.assertEquals(2, pool.getAllocations());
+    }
+
+    @Test
+    public void testOversizedNotPooled() {
+        BufferPool pool = new BufferPool(false, 12, 1 << 20);
+        ByteBuffer buffer = pool.acquire(5000);
+        Assert.assertEquals(5000, buffer.capacity());
+        pool.release(buffer);
+        Assert.assertEquals(0, pool.getFreeBytes());
+    }
+
+    @Test
+    public void testForeignBuffersIgnored() {
+        BufferPool pool = new BufferPool(true);
+        pool.release(ByteBuffer.allocate(1024)); // not direct
+        pool.release(ByteBuffer.allocateDirect(1000)); // not a size class
+        pool.release(ByteBuffer.allocateDirect(1024).asReadOnlyBuffer());
+        Assert.assertEquals(0, pool.getFreeBytes());
+    }
+
+    @Test
+    public void testMaxFreeBytes() {
+        BufferPool pool = new BufferPool(false, 20, 4096);
+        ByteBuffer a = pool.acquire(2048);
+        ByteBuffer b = pool.acquire(2048);
+        ByteBuffer c = pool.acquire(2048);
+        pool.release(a);
+        pool.release(b);
+        // the pool is full, c is left to the garbage collector
+        pool.release(c);
+        Assert.assertEquals(4096, pool.getFreeBytes());
+
+        pool.acquire(2048);
+        Assert.assertEquals(2048, pool.getFreeBytes());
+    }
+}
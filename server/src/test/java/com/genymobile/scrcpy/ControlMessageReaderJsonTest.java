@@ -0,0 +1,181 @@
+package com.genymobile.scrcpy;
+
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class ControlMessageReaderJsonTest {
+
+    @Test
+    public void testParseKeycodeEvent() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+
+        ControlMessage event = reader.parseEvent("{\"type\":\"0\",\"action\":\"" + KeyEvent.ACTION_UP + "\",\"keycode\":\"" + KeyEvent.KEYCODE_ENTER
+                + "\",\"repeat\":\"5\",\"metaState\":\"" + KeyEvent.META_CTRL_ON + "\"}");
+
+        Assert.assertEquals(ControlMessage.TYPE_INJECT_KEYCODE, event.getType());
+        Assert.assertEquals(KeyEvent.ACTION_UP, event.getAction());
+        Assert.assertEquals(KeyEvent.KEYCODE_ENTER, event.getKeycode());
+        Assert.assertEquals(5, event.getRepeat());
+        Assert.assertEquals(KeyEvent.META_CTRL_ON, event.getMetaState());
+    }
+
+    @Test
+    public void testParseTouchEvent() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+
+        ControlMessage event = reader.parseEvent("{\"type\":\"2\",\"action\":\"" + MotionEvent.ACTION_DOWN + "\",\"pointerId\":\"-42\","
+                + "\"positionX\":\"100\",\"positionY\":\"200\",\"width\":\"1080\",\"height\":\"1920\",\"pressure\":\"65535\","
+                + "\"buttons\":\"" + MotionEvent.BUTTON_PRIMARY + "\"}");
+
+        Assert.assertEquals(ControlMessage.TYPE_INJECT_TOUCH_EVENT, event.getType());
+        Assert.assertEquals(MotionEvent.ACTION_DOWN, event.getAction());
+        Assert.assertEquals(-42, event.getPointerId());
+        Assert.assertEquals(100, event.getPosition().getPoint().getX());
+        Assert.assertEquals(200, event.getPosition().getPoint().getY());
+        Assert.assertEquals(1080, event.getPosition().getScreenSize().getWidth());
+        Assert.assertEquals(1920, event.getPosition().getScreenSize().getHeight());
+        Assert.assertEquals(1f, event.getPressure(), 0f); // must be exact
+        Assert.assertEquals(MotionEvent.BUTTON_PRIMARY, event.getButtons());
+    }
+
+    @Test
+    public void testParseNumericValues() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+
+        // the values may also be sent as JSON numbers, in any order
+        ControlMessage event = reader.parseEvent("{\"positionX\":-3,\"positionY\":4,\"width\":1080,\"height\":1920,\"type\":3,"
+                + "\"hScroll\":1,\"vScroll\":-1}");
+
+        Assert.assertEquals(ControlMessage.TYPE_INJECT_SCROLL_EVENT, event.getType());
+        Assert.assertEquals(-3, event.getPosition().getPoint().getX());
+        Assert.assertEquals(4, event.getPosition().getPoint().getY());
+        Assert.assertEquals(1, event.getHScroll());
+        Assert.assertEquals(-1, event.getVScroll());
+    }
+
+    @Test
+    public void testParseTextEvent() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+
+        ControlMessage event = reader.parseEvent("{\"type\":\"1\",\"text\":\"testé\\n\"}");
+
+        Assert.assertEquals(ControlMessage.TYPE_INJECT_TEXT, event.getType());
+        Assert.assertEquals("testé\n", event.getText());
+    }
+
+    @Test
+    public void testParseSetClipboardEvent() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+
+        ControlMessage event = reader.parseEvent("{\"type\":\"9\",\"text\":\"hello\",\"paste\":\"true\"}");
+        Assert.assertEquals(ControlMessage.TYPE_SET_CLIPBOARD, event.getType());
+        Assert.assertEquals("hello", event.getText());
+        Assert.assertTrue(event.getPaste());
+
+        event = reader.parseEvent("{\"type\":9,\"text\":\"hello\",\"paste\":false}");
+        Assert.assertFalse(event.getPaste());
+    }
+
+    @Test
+    public void testParseStartMessage() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+
+        ControlMessage event = reader.parseEvent("{\"message\":\"start\"}");
+
+        Assert.assertEquals(ControlMessage.TYPE_CHANGE_STREAM_PARAMETERS, event.getType());
+        Assert.assertEquals(ControlMessageReaderJson.createDefaultVideoSettings(), event.getVideoSettings());
+    }
+
+    @Test
+    public void testParseStartMessageWithLatencyProbe() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+
+        ControlMessage event = reader.parseEvent("{\"message\":\"start\",\"latencyProbe\":true}");
+
+        Assert.assertEquals(ControlMessage.TYPE_CHANGE_STREAM_PARAMETERS, event.getType());
+        Assert.assertTrue(event.getVideoSettings().getLatencyProbe());
+
+        event = reader.parseEvent("{\"message\":\"start\",\"latencyProbe\":\"false\"}");
+        Assert.assertFalse(event.getVideoSettings().getLatencyProbe());
+    }
+
+    @Test
+    public void testParseMetricsMessage() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+
+        ControlMessage event = reader.parseEvent("{\"message\":\"metrics\"}");
+
+        Assert.assertEquals(ControlMessage.TYPE_GET_METRICS, event.getType());
+    }
+
+    @Test
+    public void testParseLatencyEcho() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+
+        ControlMessage event = reader.parseEvent(
+                "{\"type\":104,\"sequence\":42,\"receivedUs\":1000,\"decodedUs\":\"3000\",\"displayedUs\":8000}");
+
+        Assert.assertEquals(ControlMessage.TYPE_LATENCY_ECHO, event.getType());
+        Assert.assertEquals(42, event.getSequence());
+        Assert.assertEquals(1000, event.getReceivedUs());
+        Assert.assertEquals(3000, event.getDecodedUs());
+        Assert.assertEquals(8000, event.getDisplayedUs());
+    }
+
+    @Test
+    public void testIgnoreUnknownFields() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+
+        ControlMessage event = reader.parseEvent("{\"extra\":{\"a\":[1,2,{\"b\":3}]},\"type\":\"4\",\"action\":\"1\"}");
+
+        Assert.assertEquals(ControlMessage.TYPE_BACK_OR_SCREEN_ON, event.getType());
+        Assert.assertEquals(1, event.getAction());
+    }
+
+    @Test
+    public void testMissingType() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+
+        Assert.assertNull(reader.parseEvent("{\"action\":\"1\"}"));
+        Assert.assertNull(reader.parseEvent("{\"message\":\"stop\"}"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidInteger() throws IOException {
+        ControlMessageReaderJson reader = new ControlMessageReaderJson();
+        reader.parseEvent("{\"type\":\"2\",\"action\":\"1a\"}");
+    }
+
+    @Test
+    public void testParseLong() throws IOException {
+        Assert.assertEquals(0, parseLong("0"));
+        Assert.assertEquals(-42, parseLong("-42"));
+        Assert.assertEquals(42, parseLong("+42"));
+        Assert.assertEquals(Long.MAX_VALUE, parseLong(String.valueOf(Long.MAX_VALUE)));
+        Assert.assertEquals(Long.MIN_VALUE, parseLong(String.valueOf(Long.MIN_VALUE)));
+        assertInvalid("");
+        assertInvalid("-");
+        assertInvalid("1.5");
+        assertInvalid("9223372036854775808");
+        assertInvalid("-9223372036854775809");
+    }
+
+    private static long parseLong(String s) throws IOException {
+        char[] chars = ("xx" + s + "yy").toCharArray();
+        return ControlMessageReaderJson.parseLong(chars, 2, s.length());
+    }
+
+    private static void assertInvalid(String s) {
+        try {
+            parseLong(s);
+            Assert.fail("Expected an IOException for \"" + s + "\"");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
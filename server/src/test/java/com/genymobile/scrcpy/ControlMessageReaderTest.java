@@ -10,6 +10,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -395,4 +396,182 @@ public class ControlMessageReaderTest {
         Assert.assertEquals(5, event.getRepeat());
         Assert.assertEquals(KeyEvent.META_CTRL_ON, event.getMetaState());
     }
+
+    @Test
+    public void testParseTouchEventInPlace() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(0xdeadbeef); // not part of the message
+        dos.writeByte(ControlMessage.TYPE_INJECT_TOUCH_EVENT);
+        dos.writeByte(MotionEvent.ACTION_DOWN);
+        dos.writeLong(-42); // pointerId
+        dos.writeInt(100);
+        dos.writeInt(200);
+        dos.writeShort(1080);
+        dos.writeShort(1920);
+        dos.writeShort(0xffff); // pressure
+        dos.writeInt(MotionEvent.BUTTON_PRIMARY);
+
+        // like a websocket frame payload
+        ByteBuffer buffer = ByteBuffer.wrap(bos.toByteArray());
+        buffer.position(4);
+        ControlMessage event = reader.parseEvent(buffer.slice());
+
+        Assert.assertEquals(ControlMessage.TYPE_INJECT_TOUCH_EVENT, event.getType());
+        Assert.assertEquals(MotionEvent.ACTION_DOWN, event.getAction());
+        Assert.assertEquals(-42, event.getPointerId());
+        Assert.assertEquals(100, event.getPosition().getPoint().getX());
+        Assert.assertEquals(200, event.getPosition().getPoint().getY());
+        Assert.assertEquals(1080, event.getPosition().getScreenSize().getWidth());
+        Assert.assertEquals(1920, event.getPosition().getScreenSize().getHeight());
+        Assert.assertEquals(1f, event.getPressure(), 0f); // must be exact
+        Assert.assertEquals(MotionEvent.BUTTON_PRIMARY, event.getButtons());
+    }
+
+    @Test
+    public void testParseChangeStreamParameters() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        VideoSettings videoSettings = new VideoSettings();
+        videoSettings.setBitRate(2000000);
+        videoSettings.setMaxFps(30);
+        videoSettings.setBounds(1280, 720);
+        videoSettings.setDisplayId(1);
+        videoSettings.setEncoderName("OMX.test.encoder");
+        byte[] settings = videoSettings.toByteArray();
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 + settings.length);
+        buffer.put((byte) ControlMessage.TYPE_CHANGE_STREAM_PARAMETERS);
+        buffer.put(settings);
+        buffer.flip();
+        ControlMessage event = reader.parseEvent(buffer);
+
+        Assert.assertEquals(ControlMessage.TYPE_CHANGE_STREAM_PARAMETERS, event.getType());
+        Assert.assertEquals(videoSettings, event.getVideoSettings());
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testParsePushFileAppendWithoutCopy() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(ControlMessage.TYPE_PUSH_FILE);
+        dos.writeShort(7); // pushId
+        dos.writeByte(ControlMessage.PUSH_STATE_APPEND);
+        dos.writeInt(3); // chunk size
+        dos.write(new byte[] {1, 2, 3});
+
+        byte[] packet = bos.toByteArray();
+        ControlMessage event = reader.parseEvent(ByteBuffer.wrap(packet));
+
+        Assert.assertEquals(ControlMessage.TYPE_PUSH_FILE, event.getType());
+        Assert.assertEquals(7, event.getPushId());
+        Assert.assertEquals(ControlMessage.PUSH_STATE_APPEND, event.getPushState());
+        ByteBuffer chunk = event.getPushChunk();
+        Assert.assertEquals(3, chunk.remaining());
+        // the chunk is a view of the message
+        Assert.assertSame(packet, chunk.array());
+        Assert.assertEquals(1, chunk.get(0));
+        Assert.assertEquals(3, chunk.get(2));
+    }
+
+    @Test
+    public void testParsePushFileStart() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(ControlMessage.TYPE_PUSH_FILE);
+        dos.writeShort(7); // pushId
+        dos.writeByte(ControlMessage.PUSH_STATE_START);
+        dos.writeInt(1234); // file size
+        byte[] name = "testé.apk".getBytes(StandardCharsets.UTF_8);
+        dos.writeShort(name.length);
+        dos.write(name);
+
+        ControlMessage event = reader.parseEvent(ByteBuffer.wrap(bos.toByteArray()));
+
+        Assert.assertEquals(ControlMessage.PUSH_STATE_START, event.getPushState());
+        Assert.assertEquals(1234, event.getFileSize());
+        Assert.assertEquals("testé.apk", event.getFileName());
+    }
+
+    @Test
+    public void testParseLatencyEcho() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(ControlMessage.TYPE_LATENCY_ECHO);
+        dos.writeInt(42); // sequence
+        dos.writeLong(1000); // received
+        dos.writeLong(3000); // decoded
+        dos.writeLong(8000); // displayed
+        byte[] packet = bos.toByteArray();
+
+        // the message type byte does not count
+        Assert.assertEquals(ControlMessageReader.LATENCY_ECHO_PAYLOAD_LENGTH, packet.length - 1);
+
+        ControlMessage event = reader.parseEvent(ByteBuffer.wrap(packet));
+
+        Assert.assertEquals(ControlMessage.TYPE_LATENCY_ECHO, event.getType());
+        Assert.assertEquals(42, event.getSequence());
+        Assert.assertEquals(1000, event.getReceivedUs());
+        Assert.assertEquals(3000, event.getDecodedUs());
+        Assert.assertEquals(8000, event.getDisplayedUs());
+    }
+
+    @Test
+    public void testParsePullFile() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(ControlMessage.TYPE_PULL_FILE);
+        dos.writeShort(3); // pull id
+        dos.writeByte(ControlMessage.PULL_STATE_START);
+        dos.writeLong(1024); // offset
+        dos.writeInt(1 << 20); // window
+        byte[] path = "/sdcard/screenshot.png".getBytes(StandardCharsets.UTF_8);
+        dos.writeShort(path.length);
+        dos.write(path);
+        byte[] packet = bos.toByteArray();
+
+        ControlMessage event = reader.parseEvent(ByteBuffer.wrap(packet));
+
+        Assert.assertEquals(ControlMessage.TYPE_PULL_FILE, event.getType());
+        Assert.assertEquals(3, event.getPullId());
+        Assert.assertEquals(ControlMessage.PULL_STATE_START, event.getPullState());
+        Assert.assertEquals(1024, event.getPullOffset());
+        Assert.assertEquals(1 << 20, event.getPullWindow());
+        Assert.assertEquals("/sdcard/screenshot.png", event.getPath());
+    }
+
+    @Test
+    public void testParseListDirectory() throws IOException {
+        ControlMessageReader reader = new ControlMessageReader();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeByte(ControlMessage.TYPE_LIST_DIRECTORY);
+        dos.writeShort(4); // list id
+        dos.writeInt(100); // start
+        dos.writeInt(50); // count
+        byte[] path = "/sdcard".getBytes(StandardCharsets.UTF_8);
+        dos.writeShort(path.length);
+        dos.write(path);
+        byte[] packet = bos.toByteArray();
+
+        ControlMessage event = reader.parseEvent(ByteBuffer.wrap(packet));
+
+        Assert.assertEquals(ControlMessage.TYPE_LIST_DIRECTORY, event.getType());
+        Assert.assertEquals(4, event.getListId());
+        Assert.assertEquals(100, event.getListStart());
+        Assert.assertEquals(50, event.getListCount());
+        Assert.assertEquals("/sdcard", event.getPath());
+    }
 }
@@ -0,0 +1,111 @@
+package com.genymobile.scrcpy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.java_websocket.handshake.HandshakeImpl1Client;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DeviceInfoCacheTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final class TestSource implements DeviceInfoCache.Source {
+        private int displayQueries;
+        private int encoderQueries;
+        private int rotation;
+
+        @Override
+        public List<DisplayInfo> getDisplays() {
+            ++displayQueries;
+            List<DisplayInfo> displays = new ArrayList<>();
+            Size size = rotation % 2 == 0 ? new Size(1080, 1920) : new Size(1920, 1080);
+            displays.add(new DisplayInfo(0, size, rotation, 0, 0));
+            return displays;
+        }
+
+        @Override
+        public List<?> getEncoders() {
+            ++encoderQueries;
+            return Arrays.asList("OMX.google.h264.encoder", "c2.android.avc.encoder");
+        }
+    }
+
+    @Test
+    public void testQueryOnce() throws Exception {
+        TestSource source = new TestSource();
+        DeviceInfoCache cache = new DeviceInfoCache(source, MAPPER);
+
+        String first = cache.getFullMessage(1, null);
+        String second = cache.getFullMessage(2, "{}");
+        Assert.assertNotEquals(first, second);
+        Assert.assertEquals(1, source.displayQueries);
+        Assert.assertEquals(1, source.encoderQueries);
+    }
+
+    @Test
+    public void testReloadDisplays() throws Exception {
+        TestSource source = new TestSource();
+        DeviceInfoCache cache = new DeviceInfoCache(source, MAPPER);
+        String displays = cache.getDisplaysJson();
+
+        Assert.assertFalse(cache.reloadDisplays());
+        Assert.assertEquals(2, source.displayQueries);
+        Assert.assertSame(displays, cache.getDisplaysJson());
+
+        source.rotation = 1;
+        Assert.assertTrue(cache.reloadDisplays());
+        Assert.assertNotEquals(displays, cache.getDisplaysJson());
+        Assert.assertEquals(1920, MAPPER.readTree(cache.getDisplaysJson()).get(0).get("size").get("width").asInt());
+        Assert.assertEquals(0, source.encoderQueries);
+    }
+
+    @Test
+    public void testFullMessage() throws Exception {
+        DeviceInfoCache cache = new DeviceInfoCache(new TestSource(), MAPPER);
+
+        JsonNode msg = MAPPER.readTree(cache.getFullMessage(42, "{\"deviceRotation\":1}"));
+        Assert.assertEquals(DeviceInfoCache.MESSAGE_FULL, msg.get("message").asText());
+        JsonNode data = msg.get("data");
+        Assert.assertEquals(42, data.get("clientId").asInt());
+        Assert.assertEquals(1, data.get("screenInfo").get("deviceRotation").asInt());
+        Assert.assertEquals(1, data.get("displays").size());
+        Assert.assertEquals(0, data.get("displays").get(0).get("displayId").asInt());
+        Assert.assertEquals(2, data.get("encoders").size());
+
+        data = MAPPER.readTree(cache.getFullMessage(43, null)).get("data");
+        Assert.assertFalse(data.has("screenInfo"));
+    }
+
+    @Test
+    public void testDeltaMessage() throws Exception {
+        JsonNode msg = MAPPER.readTree(DeviceInfoCache.getDeltaMessage("[]", null));
+        Assert.assertEquals(DeviceInfoCache.MESSAGE_DELTA, msg.get("message").asText());
+        Assert.assertTrue(msg.get("data").has("displays"));
+        Assert.assertFalse(msg.get("data").has("screenInfo"));
+
+        JsonNode data = MAPPER.readTree(DeviceInfoCache.getDeltaMessage(null, "{\"deviceRotation\":3}")).get("data");
+        Assert.assertFalse(data.has("displays"));
+        Assert.assertEquals(3, data.get("screenInfo").get("deviceRotation").asInt());
+
+        data = MAPPER.readTree(DeviceInfoCache.getDeltaMessage("[]", "{}")).get("data");
+        Assert.assertTrue(data.has("displays"));
+        Assert.assertTrue(data.has("screenInfo"));
+    }
+
+    @Test
+    public void testDeltaRequest() {
+        HandshakeImpl1Client handshake = new HandshakeImpl1Client();
+        handshake.setResourceDescriptor("/");
+        Assert.assertFalse(WSServer.isDeviceInfoDeltaRequested(handshake));
+        handshake.setResourceDescriptor("/?action=stream&deviceInfo=delta");
+        Assert.assertTrue(WSServer.isDeviceInfoDeltaRequested(handshake));
+        handshake.setResourceDescriptor("/?deviceInfo=full");
+        Assert.assertFalse(WSServer.isDeviceInfoDeltaRequested(handshake));
+    }
+}
@@ -0,0 +1,117 @@
+package com.genymobile.scrcpy;
+
+import org.java_websocket.WebSocket;
+import org.junit.Assert;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory {@link WebSocket} recording the binary messages sent to it, optionally simulating a slow consumer.
+ */
+public final class FakeWebSocket implements InvocationHandler {
+
+    private final long sendDelayMs;
+    private final List<byte[]> received = new ArrayList<>();
+    private final List<Long> receptionTimes = new ArrayList<>();
+    private final WebSocket webSocket;
+    private volatile boolean open = true;
+    private volatile Object attachment;
+
+    public FakeWebSocket() {
+        this(0);
+    }
+
+    public FakeWebSocket(long sendDelayMs) {
+        this.sendDelayMs = sendDelayMs;
+        webSocket = (WebSocket) Proxy.newProxyInstance(WebSocket.class.getClassLoader(), new Class<?>[]{WebSocket.class}, this);
+    }
+
+    public WebSocket get() {
+        return webSocket;
+    }
+
+    public synchronized List<byte[]> getReceived() {
+        return new ArrayList<>(received);
+    }
+
+    /**
+     * Wait for a device message, sent asynchronously.
+     *
+     * @param index the index of the message among the binary messages received
+     * @return the message, positioned after its magic prefix
+     */
+    public ByteBuffer awaitMessage(int index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        List<byte[]> messages = getReceived();
+        while (messages.size() <= index) {
+            Assert.assertTrue("Timeout", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+            messages = getReceived();
+        }
+        byte[] message = messages.get(index);
+        byte[] magic = DeviceMessage.MAGIC_BYTES_MESSAGE;
+        Assert.assertArrayEquals(magic, Arrays.copyOf(message, magic.length));
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        buffer.position(magic.length);
+        return buffer;
+    }
+
+    public synchronized List<Long> getReceptionTimes() {
+        return new ArrayList<>(receptionTimes);
+    }
+
+    private void onSend(ByteBuffer data) throws InterruptedException {
+        if (sendDelayMs > 0) {
+            Thread.sleep(sendDelayMs);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        synchronized (this) {
+            received.add(bytes);
+            receptionTimes.add(System.nanoTime());
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "send":
+                if (args[0] instanceof ByteBuffer) {
+                    onSend((ByteBuffer) args[0]);
+                } else if (args[0] instanceof byte[]) {
+                    onSend(ByteBuffer.wrap((byte[]) args[0]));
+                }
+                return null;
+            case "isOpen":
+                return open;
+            case "isClosed":
+                return !open;
+            case "close":
+                open = false;
+                return null;
+            case "hasBufferedData":
+            case "isClosing":
+            case "isFlushAndClose":
+                return false;
+            case "getAttachment":
+                return attachment;
+            case "setAttachment":
+                attachment = args[0];
+                return null;
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "FakeWebSocket@" + Integer.toHexString(System.identityHashCode(proxy));
+            default:
+                return null;
+        }
+    }
+}
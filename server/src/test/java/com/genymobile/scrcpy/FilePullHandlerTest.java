@@ -0,0 +1,231 @@
+package com.genymobile.scrcpy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+public class FilePullHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FilePullHandler handler;
+
+    @Before
+    public void setUp() {
+        handler = new FilePullHandler(Collections.singletonList(folder.getRoot()), 2);
+    }
+
+    @After
+    public void tearDown() {
+        handler.stop();
+    }
+
+    private static ControlMessage createStart(short pullId, long offset, int window, String path) {
+        byte[] raw = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(17 + raw.length);
+        buffer.putShort(pullId);
+        buffer.put((byte) ControlMessage.PULL_STATE_START);
+        buffer.putLong(offset);
+        buffer.putInt(window);
+        buffer.putShort((short) raw.length);
+        buffer.put(raw);
+        buffer.flip();
+        return ControlMessage.createFilePull(buffer);
+    }
+
+    private static ControlMessage createAck(short pullId, long offset) {
+        ByteBuffer buffer = ByteBuffer.allocate(11);
+        buffer.putShort(pullId);
+        buffer.put((byte) ControlMessage.PULL_STATE_ACK);
+        buffer.putLong(offset);
+        buffer.flip();
+        return ControlMessage.createFilePull(buffer);
+    }
+
+    private File createFile(String name, int length) throws Exception {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) (i * 7);
+        }
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static void assertResponse(FakeWebSocket webSocket, int index, short pullId, int result, long fileSize)
+            throws InterruptedException {
+        ByteBuffer buffer = webSocket.awaitMessage(index);
+        Assert.assertEquals(DeviceMessage.TYPE_PULL_RESPONSE, buffer.get());
+        Assert.assertEquals(pullId, buffer.getShort());
+        Assert.assertEquals(result, buffer.get());
+        Assert.assertEquals(fileSize, buffer.getLong());
+    }
+
+    /**
+     * Append the data of a chunk message to {@code out}.
+     *
+     * @return the end offset of the chunk
+     */
+    private static long readChunk(FakeWebSocket webSocket, int index, short pullId, ByteArrayOutputStream out) throws InterruptedException {
+        ByteBuffer buffer = webSocket.awaitMessage(index);
+        Assert.assertEquals(DeviceMessage.TYPE_PULL_CHUNK, buffer.get());
+        Assert.assertEquals(pullId, buffer.getShort());
+        long offset = buffer.getLong();
+        int length = buffer.getInt();
+        Assert.assertEquals(length, buffer.remaining());
+        out.write(buffer.array(), buffer.position(), length);
+        return offset + length;
+    }
+
+    @Test
+    public void testPullWithFlowControl() throws Exception {
+        File file = createFile("file.bin", 2 * FilePullHandler.CHUNK_SIZE + 100);
+        FakeWebSocket webSocket = new FakeWebSocket();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // one chunk in flight
+        handler.handlePull(webSocket.get(), createStart((short) 1, 0, FilePullHandler.CHUNK_SIZE, file.getPath()));
+        assertResponse(webSocket, 0, (short) 1, FilePushHandler.NO_ERROR, file.length());
+        long end = readChunk(webSocket, 1, (short) 1, out);
+        Assert.assertEquals(FilePullHandler.CHUNK_SIZE, end);
+
+        Thread.sleep(50);
+        // nothing more until acked
+        Assert.assertEquals(2, webSocket.getReceived().size());
+
+        handler.handlePull(webSocket.get(), createAck((short) 1, end));
+        end = readChunk(webSocket, 2, (short) 1, out);
+        handler.handlePull(webSocket.get(), createAck((short) 1, end));
+        end = readChunk(webSocket, 3, (short) 1, out);
+        Assert.assertEquals(file.length(), end);
+        handler.handlePull(webSocket.get(), createAck((short) 1, end));
+
+        Assert.assertArrayEquals(Files.readAllBytes(file.toPath()), out.toByteArray());
+    }
+
+    @Test
+    public void testResumeFromOffset() throws Exception {
+        File file = createFile("file.bin", 1000);
+        FakeWebSocket webSocket = new FakeWebSocket();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        handler.handlePull(webSocket.get(), createStart((short) 2, 600, 0, file.getPath()));
+        assertResponse(webSocket, 0, (short) 2, FilePushHandler.NO_ERROR, 1000);
+        Assert.assertEquals(1000, readChunk(webSocket, 1, (short) 2, out));
+
+        byte[] expected = Files.readAllBytes(file.toPath());
+        byte[] actual = out.toByteArray();
+        Assert.assertEquals(400, actual.length);
+        for (int i = 0; i < actual.length; ++i) {
+            Assert.assertEquals(expected[600 + i], actual[i]);
+        }
+    }
+
+    @Test
+    public void testFileNotFound() throws Exception {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        String path = new File(folder.getRoot(), "missing").getPath();
+        handler.handlePull(webSocket.get(), createStart((short) 3, 0, 0, path));
+        assertResponse(webSocket, 0, (short) 3, FilePushHandler.ERROR_FILE_NOT_FOUND, 0);
+
+        handler.handlePull(webSocket.get(), createStart((short) 4, 0, 0, "relative"));
+        assertResponse(webSocket, 1, (short) 4, FilePushHandler.ERROR_INVALID_NAME, 0);
+    }
+
+    @Test
+    public void testListDirectory() throws Exception {
+        createFile("b", 20);
+        createFile("a", 10);
+        createFile("c", 30);
+        Assert.assertTrue(new File(folder.getRoot(), "d").mkdir());
+
+        DeviceMessage msg = handler.listDirectory((short) 5, folder.getRoot().getPath(), 1, 2);
+        ByteBuffer buffer = ByteBuffer.wrap(msg.writeToByteArray(0));
+        Assert.assertEquals(DeviceMessage.TYPE_DIRECTORY_LISTING, buffer.get());
+        Assert.assertEquals(5, buffer.getShort());
+        Assert.assertEquals(FilePushHandler.NO_ERROR, buffer.get());
+        Assert.assertEquals(4, buffer.getInt()); // total
+        Assert.assertEquals(1, buffer.getInt()); // start
+        Assert.assertEquals(2, buffer.getShort()); // count
+
+        String[] names = {"b", "c"};
+        long[] sizes = {20, 30};
+        for (int i = 0; i < 2; ++i) {
+            Assert.assertEquals(DeviceMessage.ENTRY_FILE, buffer.get());
+            Assert.assertEquals(sizes[i], buffer.getLong());
+            buffer.getLong(); // last modified
+            short nameLength = buffer.getShort();
+            Assert.assertEquals(names[i], StringUtils.decodeUtf8(buffer, nameLength));
+        }
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testPullOutOfRoots() throws Exception {
+        File root = folder.newFolder("root");
+        File inside = new File(root, "file.bin");
+        Files.write(inside.toPath(), new byte[10]);
+        File outside = createFile("secret.bin", 10);
+        FilePullHandler rootHandler = new FilePullHandler(Collections.singletonList(root), 1);
+        try {
+            Assert.assertEquals(inside.getCanonicalFile(), rootHandler.resolve(inside.getPath()));
+            Assert.assertEquals(root.getCanonicalFile(), rootHandler.resolve(root.getPath()));
+            Assert.assertNull(rootHandler.resolve(root.getPath() + "/../secret.bin"));
+            Assert.assertNull(rootHandler.resolve(outside.getPath()));
+            Assert.assertNull(rootHandler.resolve("/"));
+            Assert.assertNull(rootHandler.resolve("file.bin"));
+            // a directory whose name starts with the name of the root
+            Assert.assertTrue(new File(root.getPath() + "2").mkdir());
+            Assert.assertNull(rootHandler.resolve(root.getPath() + "2"));
+
+            // a link to a file out of the roots
+            File link = new File(root, "link");
+            Files.createSymbolicLink(link.toPath(), outside.toPath());
+            Assert.assertNull(rootHandler.resolve(link.getPath()));
+
+            FakeWebSocket webSocket = new FakeWebSocket();
+            rootHandler.handlePull(webSocket.get(), createStart((short) 7, 0, 0, root.getPath() + "/../secret.bin"));
+            assertResponse(webSocket, 0, (short) 7, FilePullHandler.ERROR_PERMISSION_DENIED, 0);
+
+            DeviceMessage msg = rootHandler.listDirectory((short) 8, root.getPath() + "/..", 0, 10);
+            ByteBuffer buffer = ByteBuffer.wrap(msg.writeToByteArray(0));
+            Assert.assertEquals(DeviceMessage.TYPE_DIRECTORY_LISTING, buffer.get());
+            Assert.assertEquals(8, buffer.getShort());
+            Assert.assertEquals(FilePullHandler.ERROR_PERMISSION_DENIED, buffer.get());
+        } finally {
+            rootHandler.stop();
+        }
+    }
+
+    @Test
+    public void testPullDisabledByDefault() throws Exception {
+        File file = createFile("file.bin", 10);
+        FilePullHandler disabledHandler = new FilePullHandler(Collections.<File>emptyList(), 1);
+        try {
+            Assert.assertNull(disabledHandler.resolve(file.getPath()));
+            Assert.assertNull(disabledHandler.resolve(folder.getRoot().getPath()));
+        } finally {
+            disabledHandler.stop();
+        }
+    }
+
+    @Test
+    public void testListMissingDirectory() {
+        DeviceMessage msg = handler.listDirectory((short) 6, new File(folder.getRoot(), "missing").getPath(), 0, 10);
+        ByteBuffer buffer = ByteBuffer.wrap(msg.writeToByteArray(0));
+        Assert.assertEquals(DeviceMessage.TYPE_DIRECTORY_LISTING, buffer.get());
+        Assert.assertEquals(6, buffer.getShort());
+        Assert.assertEquals(FilePushHandler.ERROR_FILE_NOT_FOUND, buffer.get());
+    }
+}
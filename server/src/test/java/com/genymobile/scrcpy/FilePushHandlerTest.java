@@ -0,0 +1,428 @@
+package com.genymobile.scrcpy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+public class FilePushHandlerTest {
+
+    // like posix_fallocate(), the file has its whole length before any chunk is written
+    private static final FilePushHandler.Allocator ALLOCATOR = new FilePushHandler.Allocator() {
+        @Override
+        public void allocate(RandomAccessFile file, long length) throws IOException {
+            if (file.length() < length) {
+                file.setLength(length);
+            }
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FilePushHandler handler;
+
+    @Before
+    public void setUp() {
+        handler = new FilePushHandler(folder.getRoot(), 2, ALLOCATOR);
+    }
+
+    @After
+    public void tearDown() {
+        handler.stop();
+    }
+
+    private static ControlMessage createStart(short pushId, int state, int fileSize, String fileName, int ackWindow) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(13 + name.length);
+        buffer.putShort(pushId);
+        buffer.put((byte) state);
+        buffer.putInt(fileSize);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        buffer.putInt(ackWindow);
+        buffer.flip();
+        return ControlMessage.createFilePush(buffer);
+    }
+
+    private static ControlMessage createAppend(short pushId, byte[] data, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(7 + length);
+        buffer.putShort(pushId);
+        buffer.put((byte) ControlMessage.PUSH_STATE_APPEND);
+        buffer.putInt(length);
+        buffer.put(data, offset, length);
+        buffer.flip();
+        return ControlMessage.createFilePush(buffer);
+    }
+
+    private static ControlMessage createAppendAt(short pushId, long fileOffset, byte[] data, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(15 + length);
+        buffer.putShort(pushId);
+        buffer.put((byte) ControlMessage.PUSH_STATE_APPEND_AT);
+        buffer.putLong(fileOffset);
+        buffer.putInt(length);
+        buffer.put(data, offset, length);
+        buffer.flip();
+        return ControlMessage.createFilePush(buffer);
+    }
+
+    private static ControlMessage createFinish(short pushId, long checksum) {
+        ByteBuffer buffer = ByteBuffer.allocate(7);
+        buffer.putShort(pushId);
+        buffer.put((byte) ControlMessage.PUSH_STATE_FINISH);
+        buffer.putInt((int) checksum);
+        buffer.flip();
+        return ControlMessage.createFilePush(buffer);
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static long crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private static void assertResponse(FakeWebSocket webSocket, int index, short pushId, int result) throws InterruptedException {
+        ByteBuffer buffer = webSocket.awaitMessage(index);
+        Assert.assertEquals(DeviceMessage.TYPE_PUSH_RESPONSE, buffer.get());
+        Assert.assertEquals(pushId, buffer.getShort());
+        Assert.assertEquals(result, buffer.get());
+    }
+
+    private static void assertProgress(FakeWebSocket webSocket, int index, short pushId, long offset) throws InterruptedException {
+        ByteBuffer buffer = webSocket.awaitMessage(index);
+        Assert.assertEquals(DeviceMessage.TYPE_PUSH_PROGRESS, buffer.get());
+        Assert.assertEquals(pushId, buffer.getShort());
+        Assert.assertEquals(offset, buffer.getLong());
+    }
+
+    private static short newPushId(FilePushHandler handler, FakeWebSocket webSocket, int index) throws InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(3);
+        buffer.putShort((short) 0);
+        buffer.put((byte) ControlMessage.PUSH_STATE_NEW);
+        buffer.flip();
+        handler.handlePush(webSocket.get(), ControlMessage.createFilePush(buffer));
+        ByteBuffer response = webSocket.awaitMessage(index);
+        Assert.assertEquals(DeviceMessage.TYPE_PUSH_RESPONSE, response.get());
+        short pushId = response.getShort();
+        Assert.assertEquals(FilePushHandler.NEW_PUSH_ID, response.get());
+        return pushId;
+    }
+
+    @Test
+    public void testPushWithAckWindow() throws Exception {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        byte[] data = createData(10000);
+
+        short pushId = newPushId(handler, webSocket, 0);
+        handler.handlePush(webSocket.get(), createStart(pushId, ControlMessage.PUSH_STATE_START, data.length, "file.bin", 4000));
+        assertResponse(webSocket, 1, pushId, FilePushHandler.NO_ERROR);
+
+        for (int offset = 0; offset < data.length; offset += 1000) {
+            handler.handlePush(webSocket.get(), createAppend(pushId, data, offset, 1000));
+        }
+        handler.handlePush(webSocket.get(), createFinish(pushId, crc32(data)));
+
+        // one progress message per window, instead of one ack per chunk
+        assertProgress(webSocket, 2, pushId, 4000);
+        assertProgress(webSocket, 3, pushId, 8000);
+        assertResponse(webSocket, 4, pushId, FilePushHandler.NO_ERROR);
+        Assert.assertArrayEquals(data, Files.readAllBytes(new File(folder.getRoot(), "file.bin").toPath()));
+    }
+
+    @Test
+    public void testPushWithoutAckWindow() throws Exception {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        byte[] data = createData(3000);
+
+        short pushId = newPushId(handler, webSocket, 0);
+        handler.handlePush(webSocket.get(), createStart(pushId, ControlMessage.PUSH_STATE_START, data.length, "file.bin", 0));
+        for (int offset = 0; offset < data.length; offset += 1000) {
+            handler.handlePush(webSocket.get(), createAppend(pushId, data, offset, 1000));
+        }
+        handler.handlePush(webSocket.get(), createFinish(pushId, crc32(data)));
+
+        // start, each chunk and finish are acked
+        for (int i = 1; i <= 5; ++i) {
+            assertResponse(webSocket, i, pushId, FilePushHandler.NO_ERROR);
+        }
+        Assert.assertArrayEquals(data, Files.readAllBytes(new File(folder.getRoot(), "file.bin").toPath()));
+    }
+
+    @Test
+    public void testResumeAfterReconnection() throws Exception {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        byte[] data = createData(5000);
+
+        short pushId = newPushId(handler, webSocket, 0);
+        handler.handlePush(webSocket.get(), createStart(pushId, ControlMessage.PUSH_STATE_START, data.length, "file.bin", 1000));
+        handler.handlePush(webSocket.get(), createAppend(pushId, data, 0, 1000));
+        handler.handlePush(webSocket.get(), createAppend(pushId, data, 1000, 1000));
+        assertResponse(webSocket, 1, pushId, FilePushHandler.NO_ERROR);
+        assertProgress(webSocket, 2, pushId, 1000);
+        assertProgress(webSocket, 3, pushId, 2000);
+        handler.cancelAllForConnection(webSocket.get());
+
+        FakeWebSocket newWebSocket = new FakeWebSocket();
+        short newPushId = newPushId(handler, newWebSocket, 0);
+        ControlMessage resume = createStart(newPushId, ControlMessage.PUSH_STATE_RESUME, data.length, "file.bin", 1000);
+        // the name is busy until the previous push is closed
+        int index = 1;
+        while (true) {
+            handler.handlePush(newWebSocket.get(), resume);
+            ByteBuffer buffer = newWebSocket.awaitMessage(index);
+            if (buffer.get() == DeviceMessage.TYPE_PUSH_PROGRESS) {
+                break;
+            }
+            assertResponse(newWebSocket, index++, newPushId, FilePushHandler.ERROR_FILE_IS_BUSY);
+        }
+        assertProgress(newWebSocket, index, newPushId, 2000);
+
+        handler.handlePush(newWebSocket.get(), createAppend(newPushId, data, 2000, 3000));
+        handler.handlePush(newWebSocket.get(), createFinish(newPushId, crc32(data)));
+        assertProgress(newWebSocket, index + 1, newPushId, 5000);
+        assertResponse(newWebSocket, index + 2, newPushId, FilePushHandler.NO_ERROR);
+        Assert.assertArrayEquals(data, Files.readAllBytes(new File(folder.getRoot(), "file.bin").toPath()));
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        byte[] data = createData(1000);
+
+        short pushId = newPushId(handler, webSocket, 0);
+        handler.handlePush(webSocket.get(), createStart(pushId, ControlMessage.PUSH_STATE_START, data.length, "file.bin", 1 << 20));
+        handler.handlePush(webSocket.get(), createAppend(pushId, data, 0, data.length));
+        handler.handlePush(webSocket.get(), createFinish(pushId, crc32(data) ^ 1));
+
+        assertResponse(webSocket, 1, pushId, FilePushHandler.NO_ERROR);
+        assertResponse(webSocket, 2, pushId, FilePushHandler.ERROR_CHECKSUM);
+    }
+
+    @Test
+    public void testRejectTooManyBytes() throws Exception {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        byte[] data = createData(1000);
+
+        short pushId = newPushId(handler, webSocket, 0);
+        handler.handlePush(webSocket.get(), createStart(pushId, ControlMessage.PUSH_STATE_START, 500, "file.bin", 0));
+        handler.handlePush(webSocket.get(), createAppend(pushId, data, 0, data.length));
+
+        assertResponse(webSocket, 1, pushId, FilePushHandler.NO_ERROR);
+        assertResponse(webSocket, 2, pushId, FilePushHandler.ERROR_INCORRECT_SIZE);
+    }
+
+    @Test
+    public void testConcurrentPushes() throws Exception {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        byte[] data = createData(8000);
+
+        short firstId = newPushId(handler, webSocket, 0);
+        short secondId = newPushId(handler, webSocket, 1);
+        Assert.assertNotEquals(firstId, secondId);
+
+        handler.handlePush(webSocket.get(), createStart(firstId, ControlMessage.PUSH_STATE_START, data.length, "first.bin", 1 << 20));
+        handler.handlePush(webSocket.get(), createStart(secondId, ControlMessage.PUSH_STATE_START, data.length, "second.bin", 1 << 20));
+        // the same name cannot be pushed twice at the same time
+        handler.handlePush(webSocket.get(), createStart((short) 1234, ControlMessage.PUSH_STATE_START, data.length, "first.bin", 0));
+        for (int offset = 0; offset < data.length; offset += 1000) {
+            handler.handlePush(webSocket.get(), createAppend(firstId, data, offset, 1000));
+            handler.handlePush(webSocket.get(), createAppend(secondId, data, offset, 1000));
+        }
+        handler.handlePush(webSocket.get(), createFinish(firstId, crc32(data)));
+        handler.handlePush(webSocket.get(), createFinish(secondId, crc32(data)));
+
+        // busy, 2 start and 2 finish responses, in any order
+        int busy = 0;
+        int ok = 0;
+        for (int i = 2; i < 7; ++i) {
+            ByteBuffer buffer = webSocket.awaitMessage(i);
+            Assert.assertEquals(DeviceMessage.TYPE_PUSH_RESPONSE, buffer.get());
+            buffer.getShort();
+            int result = buffer.get();
+            if (result == FilePushHandler.ERROR_FILE_IS_BUSY) {
+                ++busy;
+            } else if (result == FilePushHandler.NO_ERROR) {
+                ++ok;
+            }
+        }
+        Assert.assertEquals(1, busy);
+        Assert.assertEquals(4, ok);
+        Assert.assertArrayEquals(data, Files.readAllBytes(new File(folder.getRoot(), "first.bin").toPath()));
+        Assert.assertArrayEquals(data, Files.readAllBytes(new File(folder.getRoot(), "second.bin").toPath()));
+    }
+
+    @Test
+    public void testOutOfOrderChunks() throws Exception {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        byte[] data = createData(4000);
+
+        short pushId = newPushId(handler, webSocket, 0);
+        handler.handlePush(webSocket.get(), createStart(pushId, ControlMessage.PUSH_STATE_START, data.length, "file.bin", 1000));
+        handler.handlePush(webSocket.get(), createAppendAt(pushId, 3000, data, 3000, 1000));
+        handler.handlePush(webSocket.get(), createAppendAt(pushId, 1000, data, 1000, 1000));
+        handler.handlePush(webSocket.get(), createAppendAt(pushId, 0, data, 0, 1000));
+        handler.handlePush(webSocket.get(), createAppendAt(pushId, 2000, data, 2000, 1000));
+        handler.handlePush(webSocket.get(), createFinish(pushId, crc32(data)));
+
+        assertResponse(webSocket, 1, pushId, FilePushHandler.NO_ERROR);
+        // the progress only counts the bytes written without any hole
+        assertProgress(webSocket, 2, pushId, 2000);
+        assertProgress(webSocket, 3, pushId, 4000);
+        assertResponse(webSocket, 4, pushId, FilePushHandler.NO_ERROR);
+        Assert.assertArrayEquals(data, Files.readAllBytes(new File(folder.getRoot(), "file.bin").toPath()));
+    }
+
+    @Test
+    public void testRejectOverlappingChunks() throws Exception {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        byte[] data = createData(4000);
+
+        short pushId = newPushId(handler, webSocket, 0);
+        handler.handlePush(webSocket.get(), createStart(pushId, ControlMessage.PUSH_STATE_START, data.length, "file.bin", 1 << 20));
+        handler.handlePush(webSocket.get(), createAppendAt(pushId, 2000, data, 2000, 1000));
+        handler.handlePush(webSocket.get(), createAppendAt(pushId, 1500, data, 1500, 1000));
+
+        assertResponse(webSocket, 1, pushId, FilePushHandler.NO_ERROR);
+        assertResponse(webSocket, 2, pushId, FilePushHandler.ERROR_INVALID_STATE);
+    }
+
+    @Test
+    public void testResumeFromContiguousBytes() throws Exception {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        byte[] data = createData(3000);
+
+        short pushId = newPushId(handler, webSocket, 0);
+        handler.handlePush(webSocket.get(), createStart(pushId, ControlMessage.PUSH_STATE_START, data.length, "file.bin", 1000));
+        handler.handlePush(webSocket.get(), createAppendAt(pushId, 0, data, 0, 1000));
+        handler.handlePush(webSocket.get(), createAppendAt(pushId, 2000, data, 2000, 1000));
+        assertResponse(webSocket, 1, pushId, FilePushHandler.NO_ERROR);
+        assertProgress(webSocket, 2, pushId, 1000);
+        handler.cancelAllForConnection(webSocket.get());
+
+        FakeWebSocket newWebSocket = new FakeWebSocket();
+        short newPushId = newPushId(handler, newWebSocket, 0);
+        ControlMessage resume = createStart(newPushId, ControlMessage.PUSH_STATE_RESUME, data.length, "file.bin", 1 << 20);
+        int index = 1;
+        while (true) {
+            handler.handlePush(newWebSocket.get(), resume);
+            ByteBuffer buffer = newWebSocket.awaitMessage(index);
+            if (buffer.get() == DeviceMessage.TYPE_PUSH_PROGRESS) {
+                break;
+            }
+            assertResponse(newWebSocket, index++, newPushId, FilePushHandler.ERROR_FILE_IS_BUSY);
+        }
+        // the chunk written after a hole is lost
+        assertProgress(newWebSocket, index, newPushId, 1000);
+
+        handler.handlePush(newWebSocket.get(), createAppend(newPushId, data, 1000, 2000));
+        handler.handlePush(newWebSocket.get(), createFinish(newPushId, crc32(data)));
+        assertResponse(newWebSocket, index + 1, newPushId, FilePushHandler.NO_ERROR);
+        Assert.assertArrayEquals(data, Files.readAllBytes(new File(folder.getRoot(), "file.bin").toPath()));
+    }
+
+    @Test
+    public void testResumeAfterCrash() throws Exception {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        int window = (int) FilePushHandler.PROGRESS_INTERVAL / 2;
+        byte[] data = createData(6 * window);
+
+        short pushId = newPushId(handler, webSocket, 0);
+        handler.handlePush(webSocket.get(), createStart(pushId, ControlMessage.PUSH_STATE_START, data.length, "file.bin", window));
+        for (int i = 0; i < 3; ++i) {
+            handler.handlePush(webSocket.get(), createAppend(pushId, data, i * window, window));
+        }
+        assertResponse(webSocket, 1, pushId, FilePushHandler.NO_ERROR);
+        assertProgress(webSocket, 4, pushId, 3 * window);
+        File file = new File(folder.getRoot(), "file.bin");
+        // preallocated, it looks complete
+        Assert.assertEquals(data.length, file.length());
+
+        // the server is killed: the file is neither closed nor truncated, a new server resumes it from the recorded progress
+        FilePushHandler newHandler = new FilePushHandler(folder.getRoot(), 2, ALLOCATOR);
+        try {
+            FakeWebSocket newWebSocket = new FakeWebSocket();
+            short newPushId = newPushId(newHandler, newWebSocket, 0);
+            ControlMessage resume = createStart(newPushId, ControlMessage.PUSH_STATE_RESUME, data.length, "file.bin", 1 << 30);
+            newHandler.handlePush(newWebSocket.get(), resume);
+            assertProgress(newWebSocket, 1, newPushId, FilePushHandler.PROGRESS_INTERVAL);
+
+            int offset = (int) FilePushHandler.PROGRESS_INTERVAL;
+            newHandler.handlePush(newWebSocket.get(), createAppend(newPushId, data, offset, data.length - offset));
+            newHandler.handlePush(newWebSocket.get(), createFinish(newPushId, crc32(data)));
+            assertResponse(newWebSocket, 2, newPushId, FilePushHandler.NO_ERROR);
+            Assert.assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+            Assert.assertFalse(new File(folder.getRoot(), "file.bin" + FilePushHandler.PROGRESS_SUFFIX).exists());
+        } finally {
+            newHandler.stop();
+        }
+    }
+
+    @Test
+    public void testTooManyQueuedBytes() throws Exception {
+        final CountDownLatch allocated = new CountDownLatch(1);
+        // the disk is slow: the I/O thread is blocked until all the chunks are received
+        FilePushHandler slowHandler = new FilePushHandler(folder.getRoot(), 1, new FilePushHandler.Allocator() {
+            @Override
+            public void allocate(RandomAccessFile file, long length) throws IOException {
+                try {
+                    allocated.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        try {
+            FakeWebSocket webSocket = new FakeWebSocket();
+            int window = (int) FilePushHandler.MIN_QUEUED_BYTES / 4;
+            byte[] data = createData(6 * window);
+
+            short pushId = newPushId(slowHandler, webSocket, 0);
+            slowHandler.handlePush(webSocket.get(), createStart(pushId, ControlMessage.PUSH_STATE_START, data.length, "file.bin", window));
+            for (int i = 0; i < 6; ++i) {
+                slowHandler.handlePush(webSocket.get(), createAppend(pushId, data, i * window, window));
+            }
+            allocated.countDown();
+
+            // the chunks queued before the limit are written, then the push fails
+            assertResponse(webSocket, 1, pushId, FilePushHandler.NO_ERROR);
+            for (int i = 1; i <= 4; ++i) {
+                assertProgress(webSocket, 1 + i, pushId, i * window);
+            }
+            assertResponse(webSocket, 6, pushId, FilePushHandler.ERROR_INVALID_STATE);
+            Thread.sleep(50);
+            Assert.assertEquals(7, webSocket.getReceived().size());
+        } finally {
+            slowHandler.stop();
+        }
+    }
+
+    @Test
+    public void testInvalidName() throws InterruptedException {
+        FakeWebSocket webSocket = new FakeWebSocket();
+        handler.handlePush(webSocket.get(), createStart((short) 1, ControlMessage.PUSH_STATE_START, 10, "..", 0));
+        assertResponse(webSocket, 0, (short) 1, FilePushHandler.ERROR_INVALID_NAME);
+        // the progress of the pushes must not be overwritten
+        String progressName = "file.bin" + FilePushHandler.PROGRESS_SUFFIX;
+        handler.handlePush(webSocket.get(), createStart((short) 1, ControlMessage.PUSH_STATE_START, 10, progressName, 0));
+        assertResponse(webSocket, 1, (short) 1, FilePushHandler.ERROR_INVALID_NAME);
+    }
+}
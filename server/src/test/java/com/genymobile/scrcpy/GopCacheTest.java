@@ -0,0 +1,149 @@
+package com.genymobile.scrcpy;
+
+import android.media.MediaCodec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+public class GopCacheTest {
+
+    private static VideoPacket createPacket(int size, int flags) {
+        return VideoPacket.copyOf(ByteBuffer.allocate(size), flags);
+    }
+
+    private static VideoPacket createPacket(int headerLength, int size, int flags) {
+        return VideoPacket.copyOf(ByteBuffer.allocate(headerLength), ByteBuffer.allocate(size), flags);
+    }
+
+    @Test
+    public void testCacheLastGop() {
+        GopCache cache = new GopCache(1000);
+
+        VideoPacket config = createPacket(10, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        VideoPacket key1 = createPacket(100, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        VideoPacket p1 = createPacket(10, 0);
+        VideoPacket key2 = createPacket(100, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        VideoPacket p2 = createPacket(10, 0);
+
+        cache.add(config);
+        Assert.assertFalse(cache.hasKeyFrame());
+
+        cache.add(key1);
+        cache.add(p1);
+        Assert.assertTrue(cache.hasKeyFrame());
+        Assert.assertEquals(Arrays.asList(config, key1, p1), cache.getPackets());
+        Assert.assertEquals(110, cache.getGopSize());
+
+        cache.add(key2);
+        cache.add(p2);
+        Assert.assertEquals(Arrays.asList(config, key2, p2), cache.getPackets());
+        // the previous GOP has been released
+        Assert.assertEquals(1, key1.getRefCount());
+        Assert.assertEquals(1, p1.getRefCount());
+        Assert.assertEquals(2, key2.getRefCount());
+
+        cache.clear();
+        Assert.assertTrue(cache.getPackets().isEmpty());
+        Assert.assertEquals(1, config.getRefCount());
+        Assert.assertEquals(1, key2.getRefCount());
+    }
+
+    @Test
+    public void testIgnoreFramesBeforeKeyFrame() {
+        GopCache cache = new GopCache(1000);
+        cache.add(createPacket(10, MediaCodec.BUFFER_FLAG_CODEC_CONFIG));
+        cache.add(createPacket(10, 0));
+        Assert.assertEquals(1, cache.getPackets().size());
+        Assert.assertEquals(0, cache.getGopSize());
+    }
+
+    @Test
+    public void testOverflow() {
+        GopCache cache = new GopCache(250);
+        VideoPacket config = createPacket(10, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        cache.add(config);
+        cache.add(createPacket(100, MediaCodec.BUFFER_FLAG_KEY_FRAME));
+        cache.add(createPacket(100, 0));
+        Assert.assertTrue(cache.hasKeyFrame());
+
+        // too big, the GOP is discarded
+        cache.add(createPacket(100, 0));
+        Assert.assertFalse(cache.hasKeyFrame());
+        Assert.assertEquals(0, cache.getGopSize());
+
+        // until the next key frame
+        cache.add(createPacket(10, 0));
+        Assert.assertEquals(Arrays.asList(config), cache.getPackets());
+
+        VideoPacket key = createPacket(100, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        cache.add(key);
+        Assert.assertEquals(Arrays.asList(config, key), cache.getPackets());
+    }
+
+    @Test
+    public void testNewConfigResetsGop() {
+        GopCache cache = new GopCache(1000);
+        cache.add(createPacket(10, MediaCodec.BUFFER_FLAG_CODEC_CONFIG));
+        cache.add(createPacket(100, MediaCodec.BUFFER_FLAG_KEY_FRAME));
+
+        VideoPacket config = createPacket(10, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        cache.add(config);
+        List<VideoPacket> packets = cache.getPackets();
+        Assert.assertEquals(Arrays.asList(config), packets);
+    }
+
+    @Test
+    public void testFrameFormatChange() throws Exception {
+        // frame meta only, then with the latency probe
+        final int oldHeaderLength = 12;
+        final int newHeaderLength = 40;
+        GopCache cache = new GopCache(1000);
+        VideoSettings videoSettings = new VideoSettings();
+        videoSettings.setSendFrameMeta(true);
+
+        VideoPacket config = createPacket(oldHeaderLength, 10, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        cache.add(config);
+        cache.add(createPacket(oldHeaderLength, 100, MediaCodec.BUFFER_FLAG_KEY_FRAME));
+
+        VideoSettings newSettings = videoSettings.copy();
+        newSettings.setBitRate(2000000);
+        cache.onVideoSettingsChanged(videoSettings.merge(newSettings));
+        Assert.assertTrue(cache.hasKeyFrame());
+
+        // the single client of the stream requests the latency probe
+        newSettings = videoSettings.copy();
+        newSettings.setLatencyProbe(true);
+        cache.onVideoSettingsChanged(videoSettings.merge(newSettings));
+        Assert.assertTrue(cache.getPackets().isEmpty());
+        Assert.assertEquals(1, config.getRefCount());
+
+        // until the encoder restarts, the packets of the previous encoder cannot be decoded without their codec config
+        cache.add(createPacket(newHeaderLength, 10, 0));
+        Assert.assertTrue(cache.getPackets().isEmpty());
+        cache.add(createPacket(newHeaderLength, 10, MediaCodec.BUFFER_FLAG_CODEC_CONFIG));
+        cache.add(createPacket(newHeaderLength, 100, MediaCodec.BUFFER_FLAG_KEY_FRAME));
+
+        // a second client joins the stream: the replayed packets all have the new header
+        FakeWebSocket webSocket = new FakeWebSocket();
+        WebSocketSender sender = new WebSocketSender(webSocket.get());
+        sender.replay(cache.getPackets());
+        sender.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (webSocket.getReceived().size() < 2) {
+                Assert.assertTrue("Timeout", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        } finally {
+            sender.stop();
+        }
+        List<byte[]> received = webSocket.getReceived();
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals(newHeaderLength + 10, received.get(0).length);
+        Assert.assertEquals(newHeaderLength + 100, received.get(1).length);
+    }
+}
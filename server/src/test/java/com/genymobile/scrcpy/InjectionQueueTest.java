@@ -0,0 +1,85 @@
+package com.genymobile.scrcpy;
+
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InjectionQueueTest {
+
+    private static ControlMessage createTouch(int action, int x) {
+        return ControlMessage.createInjectTouchEvent(action, -1, new Position(x, 0, 1080, 1920), 1f, 0);
+    }
+
+    private static ControlMessage createKey(int action) {
+        return ControlMessage.createInjectKeycode(action, KeyEvent.KEYCODE_A, 0, 0);
+    }
+
+    @Test
+    public void testFifo() {
+        InjectionQueue queue = new InjectionQueue(null, 4);
+        // not started, so nothing is consumed
+
+        ControlMessage down = createTouch(MotionEvent.ACTION_DOWN, 0);
+        ControlMessage move = createTouch(MotionEvent.ACTION_MOVE, 1);
+        ControlMessage up = createTouch(MotionEvent.ACTION_UP, 2);
+        Assert.assertTrue(queue.offer(down));
+        Assert.assertTrue(queue.offer(move));
+        Assert.assertTrue(queue.offer(up));
+        Assert.assertEquals(3, queue.getDepth());
+
+        Assert.assertSame(down, queue.poll());
+        Assert.assertSame(move, queue.poll());
+        Assert.assertSame(up, queue.poll());
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(3, queue.getMaxDepth());
+    }
+
+    @Test
+    public void testDropOldestMoveWhenFull() {
+        InjectionQueue queue = new InjectionQueue(null, 4);
+
+        ControlMessage down = createTouch(MotionEvent.ACTION_DOWN, 0);
+        Assert.assertTrue(queue.offer(down));
+        Assert.assertTrue(queue.offer(createTouch(MotionEvent.ACTION_MOVE, 1)));
+        ControlMessage move2 = createTouch(MotionEvent.ACTION_MOVE, 2);
+        Assert.assertTrue(queue.offer(move2));
+        ControlMessage move3 = createTouch(MotionEvent.ACTION_MOVE, 3);
+        Assert.assertTrue(queue.offer(move3));
+
+        // full: the first move is dropped
+        ControlMessage up = createTouch(MotionEvent.ACTION_UP, 4);
+        Assert.assertTrue(queue.offer(up));
+        Assert.assertEquals(1, queue.getDroppedMoves());
+        Assert.assertEquals(4, queue.getDepth());
+
+        Assert.assertSame(down, queue.poll());
+        Assert.assertSame(move2, queue.poll());
+        Assert.assertSame(move3, queue.poll());
+        Assert.assertSame(up, queue.poll());
+    }
+
+    @Test
+    public void testNeverDropOtherEvents() {
+        InjectionQueue queue = new InjectionQueue(null, 2);
+
+        Assert.assertTrue(queue.offer(createKey(KeyEvent.ACTION_DOWN)));
+        Assert.assertTrue(queue.offer(createKey(KeyEvent.ACTION_UP)));
+
+        // full of non-droppable events: a new move is dropped, but not a key event
+        Assert.assertFalse(queue.offer(createTouch(MotionEvent.ACTION_MOVE, 1)));
+        Assert.assertEquals(1, queue.getDroppedMoves());
+        Assert.assertTrue(queue.offer(createKey(KeyEvent.ACTION_DOWN)));
+        Assert.assertEquals(3, queue.getDepth());
+    }
+
+    @Test
+    public void testStopped() {
+        InjectionQueue queue = new InjectionQueue(null, 2);
+        Assert.assertTrue(queue.offer(createKey(KeyEvent.ACTION_DOWN)));
+        queue.stop();
+        Assert.assertEquals(0, queue.getDepth());
+        Assert.assertFalse(queue.offer(createKey(KeyEvent.ACTION_UP)));
+    }
+}
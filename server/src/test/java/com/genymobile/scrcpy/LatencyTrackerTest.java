@@ -0,0 +1,45 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class LatencyTrackerTest {
+
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void testBreakdown() {
+        LatencyTracker tracker = new LatencyTracker();
+
+        // captured at 100ms, sent at 130ms (server clock)
+        tracker.onSent(7, 100_000, 130 * MS);
+        // the client clock is unrelated: received at 5000ms, decoded 4ms later, displayed 10ms later
+        ControlMessage echo = ControlMessage.createLatencyEcho(7, 5_000_000, 5_004_000, 5_010_000);
+        // echo received at 170ms: 40ms round trip, minus 10ms in the client
+        Assert.assertTrue(tracker.onEcho(echo, 170 * MS));
+
+        Map<String, Object> breakdown = tracker.getLastBreakdown();
+        Assert.assertEquals(30_000L, breakdown.get("serverUs"));
+        Assert.assertEquals(15_000L, breakdown.get("networkUs"));
+        Assert.assertEquals(4_000L, breakdown.get("decodeUs"));
+        Assert.assertEquals(6_000L, breakdown.get("displayUs"));
+        Assert.assertEquals(55_000L, breakdown.get("glassToGlassUs"));
+
+        // only once per frame
+        Assert.assertFalse(tracker.onEcho(echo, 171 * MS));
+    }
+
+    @Test
+    public void testUnknownFrame() {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.onSent(1, 0, 0);
+        // overwritten by a later frame
+        tracker.onSent(1 + LatencyTracker.CAPACITY, 0, 0);
+
+        Assert.assertFalse(tracker.onEcho(ControlMessage.createLatencyEcho(1, 0, 0, 0), MS));
+        Assert.assertFalse(tracker.onEcho(ControlMessage.createLatencyEcho(2, 0, 0, 0), MS));
+        Assert.assertTrue(tracker.onEcho(ControlMessage.createLatencyEcho(1 + LatencyTracker.CAPACITY, 0, 0, 0), MS));
+    }
+}
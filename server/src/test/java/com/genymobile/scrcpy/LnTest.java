@@ -0,0 +1,42 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LnTest {
+
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void testRateLimiter() {
+        Ln.RateLimiter limiter = new Ln.RateLimiter(100);
+        long now = System.nanoTime();
+
+        Assert.assertTrue(limiter.tryAcquire(now));
+        Assert.assertFalse(limiter.tryAcquire(now + 10 * MS));
+        Assert.assertFalse(limiter.tryAcquire(now + 99 * MS));
+        Assert.assertEquals(2, limiter.takeSuppressed());
+        Assert.assertEquals(0, limiter.takeSuppressed());
+
+        Assert.assertTrue(limiter.tryAcquire(now + 100 * MS));
+        Assert.assertFalse(limiter.tryAcquire(now + 150 * MS));
+        // the interval starts from the last logged message
+        Assert.assertTrue(limiter.tryAcquire(now + 250 * MS));
+        Assert.assertEquals(1, limiter.takeSuppressed());
+    }
+
+    @Test
+    public void testSupplierNotCalledIfDisabled() {
+        Ln.initLogLevel(Ln.Level.ERROR);
+        try {
+            Ln.d(new Ln.MessageSupplier() {
+                @Override
+                public String get() {
+                    throw new AssertionError("Must not be called");
+                }
+            });
+        } finally {
+            Ln.initLogLevel(Ln.Level.INFO);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogAppenderTest {
+
+    @Test
+    public void testDropWhenFull() {
+        // not started, nothing is consumed
+        LogAppender appender = new LogAppender(2);
+
+        Assert.assertTrue(appender.offer(Ln.Level.INFO, "a", null));
+        Assert.assertTrue(appender.offer(Ln.Level.WARN, "b", null));
+        Assert.assertEquals(2, appender.size());
+
+        // dropped
+        Assert.assertTrue(appender.offer(Ln.Level.INFO, "c", null));
+        Assert.assertTrue(appender.offer(Ln.Level.DEBUG, "d", null));
+        Assert.assertEquals(2, appender.size());
+        Assert.assertEquals(2, appender.getDroppedCount());
+
+        // errors are never dropped, the caller must write them
+        Assert.assertFalse(appender.offer(Ln.Level.ERROR, "e", null));
+        Assert.assertEquals(2, appender.getDroppedCount());
+    }
+
+    @Test
+    public void testRejectWhenStopped() {
+        LogAppender appender = new LogAppender(2);
+        appender.stop();
+        Assert.assertFalse(appender.offer(Ln.Level.INFO, "a", null));
+        Assert.assertEquals(0, appender.size());
+    }
+}
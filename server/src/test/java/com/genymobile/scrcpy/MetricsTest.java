@@ -0,0 +1,69 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class MetricsTest {
+
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 100_000; ++value) {
+            int index = Metrics.Histogram.bucketIndex(value);
+            long upperBound = Metrics.Histogram.bucketUpperBound(index);
+            Assert.assertTrue(value <= upperBound);
+            if (index > 0) {
+                Assert.assertTrue(value > Metrics.Histogram.bucketUpperBound(index - 1));
+            }
+            // relative error less than 1/16
+            Assert.assertTrue(upperBound - value <= value / 16);
+        }
+        int last = Metrics.Histogram.bucketIndex(Long.MAX_VALUE);
+        Assert.assertEquals(Long.MAX_VALUE, Metrics.Histogram.bucketUpperBound(last));
+    }
+
+    @Test
+    public void testHistogram() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(500, histogram.getMean());
+        Assert.assertEquals(1000, histogram.getMax());
+
+        long p50 = histogram.getValueAtPercentile(50);
+        Assert.assertTrue(p50 >= 500 && p50 <= 500 + 500 / 16);
+        long p99 = histogram.getValueAtPercentile(99);
+        Assert.assertTrue(p99 >= 990 && p99 <= 990 + 990 / 16);
+        // never above the max
+        Assert.assertEquals(1000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testRegistry() {
+        Metrics.Counter counter = Metrics.counter("test.counter");
+        Assert.assertSame(counter, Metrics.counter("test.counter"));
+        counter.inc();
+        counter.add(41);
+
+        Metrics.histogram("test.histogram").record(7);
+        Metrics.gauge("test.gauge", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return 12;
+            }
+        });
+
+        Map<String, Object> snapshot = Metrics.snapshot();
+        Assert.assertEquals(42L, snapshot.get("test.counter"));
+        Assert.assertEquals(12L, snapshot.get("test.gauge"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> histogram = (Map<String, Object>) snapshot.get("test.histogram");
+        Assert.assertEquals(1L, histogram.get("count"));
+        Assert.assertEquals(7L, histogram.get("p99"));
+    }
+}
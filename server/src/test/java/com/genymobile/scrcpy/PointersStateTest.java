@@ -0,0 +1,164 @@
+package com.genymobile.scrcpy;
+
+import android.view.MotionEvent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PointersStateTest {
+
+    private final MotionEvent.PointerProperties[] props = new MotionEvent.PointerProperties[PointersState.MAX_POINTERS];
+    private final MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[PointersState.MAX_POINTERS];
+
+    public PointersStateTest() {
+        for (int i = 0; i < PointersState.MAX_POINTERS; ++i) {
+            props[i] = new MotionEvent.PointerProperties();
+            coords[i] = new MotionEvent.PointerCoords();
+        }
+    }
+
+    /**
+     * Apply a touch event like {@code Controller.injectTouch()}.
+     *
+     * @return the action of the motion event, the pointer count in the upper 16 bits
+     */
+    private int touch(PointersState state, int action, long id, float x) {
+        int index = state.getPointerIndex(id);
+        int pointerCount = state.touch(index, x, 0, 1f, action == MotionEvent.ACTION_UP, props, coords);
+        return PointersState.getMotionAction(action, index, pointerCount) | pointerCount << 16;
+    }
+
+    private static int expected(int action, int pointerCount) {
+        return action | pointerCount << 16;
+    }
+
+    private static void release(PointersState state, long id) {
+        state.setUp(state.getPointerIndex(id), true);
+        state.cleanUp();
+    }
+
+    @Test
+    public void testPointersInOrderOfArrival() {
+        PointersState state = new PointersState();
+
+        Assert.assertEquals(0, state.getPointerIndex(-42));
+        Assert.assertEquals(1, state.getPointerIndex(7));
+        Assert.assertEquals(2, state.getPointerIndex(1000));
+        // already known
+        Assert.assertEquals(1, state.getPointerIndex(7));
+        Assert.assertEquals(3, state.getCount());
+
+        Assert.assertEquals(-42, state.getId(0));
+        Assert.assertEquals(0, state.getLocalId(0));
+        Assert.assertEquals(1, state.getLocalId(1));
+        Assert.assertEquals(2, state.getLocalId(2));
+    }
+
+    @Test
+    public void testPointerState() {
+        PointersState state = new PointersState();
+
+        int index = state.getPointerIndex(5);
+        state.setPoint(index, 100, 200);
+        state.setPressure(index, 0.5f);
+
+        Assert.assertEquals(100, state.getX(index), 0);
+        Assert.assertEquals(200, state.getY(index), 0);
+        Assert.assertEquals(0.5f, state.getPressure(index), 0);
+        Assert.assertFalse(state.isUp(index));
+    }
+
+    @Test
+    public void testCleanUpKeepsOrder() {
+        PointersState state = new PointersState();
+        for (int id = 10; id < 14; ++id) {
+            state.setPoint(state.getPointerIndex(id), id, id);
+        }
+
+        // only removed on clean up
+        state.setUp(state.getPointerIndex(11), true);
+        Assert.assertEquals(4, state.getCount());
+        state.cleanUp();
+
+        Assert.assertEquals(3, state.getCount());
+        Assert.assertEquals(10, state.getId(0));
+        Assert.assertEquals(12, state.getId(1));
+        Assert.assertEquals(13, state.getId(2));
+        Assert.assertEquals(0, state.getLocalId(0));
+        Assert.assertEquals(2, state.getLocalId(1));
+        Assert.assertEquals(3, state.getLocalId(2));
+        Assert.assertEquals(12, state.getX(1), 0);
+        Assert.assertFalse(state.isUp(1));
+    }
+
+    @Test
+    public void testReuseLowestLocalId() {
+        PointersState state = new PointersState();
+        state.getPointerIndex(10);
+        state.getPointerIndex(11);
+        state.getPointerIndex(12);
+
+        release(state, 11);
+        release(state, 10);
+
+        // appended, with the lowest free local id
+        int index = state.getPointerIndex(20);
+        Assert.assertEquals(1, index);
+        Assert.assertEquals(0, state.getLocalId(index));
+        // a new pointer is reset
+        Assert.assertEquals(0, state.getX(index), 0);
+        Assert.assertFalse(state.isUp(index));
+
+        index = state.getPointerIndex(21);
+        Assert.assertEquals(2, index);
+        Assert.assertEquals(1, state.getLocalId(index));
+    }
+
+    @Test
+    public void testFull() {
+        PointersState state = new PointersState();
+        for (int i = 0; i < PointersState.MAX_POINTERS; ++i) {
+            Assert.assertEquals(i, state.getPointerIndex(i));
+        }
+        Assert.assertEquals(-1, state.getPointerIndex(PointersState.MAX_POINTERS));
+
+        release(state, 3);
+        int index = state.getPointerIndex(PointersState.MAX_POINTERS);
+        Assert.assertEquals(PointersState.MAX_POINTERS - 1, index);
+        Assert.assertEquals(3, state.getLocalId(index));
+    }
+
+    @Test
+    public void testTouchSequence() {
+        PointersState state = new PointersState();
+        int shift = MotionEvent.ACTION_POINTER_INDEX_SHIFT;
+
+        Assert.assertEquals(expected(MotionEvent.ACTION_DOWN, 1), touch(state, MotionEvent.ACTION_DOWN, 100, 1));
+        Assert.assertEquals(expected(MotionEvent.ACTION_POINTER_DOWN | 1 << shift, 2), touch(state, MotionEvent.ACTION_DOWN, 200, 2));
+        Assert.assertEquals(expected(MotionEvent.ACTION_MOVE, 2), touch(state, MotionEvent.ACTION_MOVE, 100, 3));
+        Assert.assertEquals(3, coords[0].x, 0);
+        Assert.assertEquals(2, coords[1].x, 0);
+
+        // the first pointer is released: it is still part of the event, then removed
+        Assert.assertEquals(expected(MotionEvent.ACTION_POINTER_UP, 2), touch(state, MotionEvent.ACTION_UP, 100, 4));
+        Assert.assertEquals(0, props[0].id);
+        Assert.assertEquals(1, props[1].id);
+        Assert.assertEquals(1, state.getCount());
+
+        // the remaining pointer is now at index 0
+        Assert.assertEquals(expected(MotionEvent.ACTION_MOVE, 1), touch(state, MotionEvent.ACTION_MOVE, 200, 5));
+        Assert.assertEquals(1, props[0].id);
+        Assert.assertEquals(5, coords[0].x, 0);
+
+        // a new pointer reuses the lowest local id
+        Assert.assertEquals(expected(MotionEvent.ACTION_POINTER_DOWN | 1 << shift, 2), touch(state, MotionEvent.ACTION_DOWN, 300, 6));
+        Assert.assertEquals(0, props[1].id);
+        Assert.assertEquals(expected(MotionEvent.ACTION_POINTER_UP | 1 << shift, 2), touch(state, MotionEvent.ACTION_UP, 300, 6));
+        Assert.assertEquals(expected(MotionEvent.ACTION_UP, 1), touch(state, MotionEvent.ACTION_UP, 200, 5));
+
+        // all the pointers are cleaned up after the last UP
+        Assert.assertEquals(0, state.getCount());
+        Assert.assertEquals(expected(MotionEvent.ACTION_DOWN, 1), touch(state, MotionEvent.ACTION_DOWN, 400, 7));
+        Assert.assertEquals(0, props[0].id);
+    }
+}
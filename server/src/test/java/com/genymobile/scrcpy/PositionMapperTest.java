@@ -0,0 +1,64 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class PositionMapperTest {
+
+    // the former implementation of Device.getPhysicalPoint()
+    private static Point mapWithRotate(Position position, int left, int top, int contentWidth, int contentHeight, Size unlockedVideoSize,
+            int reverseVideoRotation) {
+        Position devicePosition = position.rotate(reverseVideoRotation);
+        if (!unlockedVideoSize.equals(devicePosition.getScreenSize())) {
+            return null;
+        }
+        Point point = devicePosition.getPoint();
+        int x = left + point.getX() * contentWidth / unlockedVideoSize.getWidth();
+        int y = top + point.getY() * contentHeight / unlockedVideoSize.getHeight();
+        return new Point(x, y);
+    }
+
+    @Test
+    public void testIdentity() {
+        PositionMapper mapper = new PositionMapper(0, 0, 1080, 1920, new Size(1080, 1920), 0);
+        Assert.assertEquals(new Point(100, 200), mapper.map(new Position(100, 200, 1080, 1920)));
+    }
+
+    @Test
+    public void testScaleAndCrop() {
+        // the video is half the size of the cropped content
+        PositionMapper mapper = new PositionMapper(100, 50, 800, 1600, new Size(400, 800), 0);
+        Assert.assertEquals(new Point(300, 450), mapper.map(new Position(100, 200, 400, 800)));
+    }
+
+    @Test
+    public void testRejectOtherVideoSize() {
+        PositionMapper mapper = new PositionMapper(0, 0, 1080, 1920, new Size(1080, 1920), 0);
+        Assert.assertFalse(mapper.accepts(new Size(1920, 1080)));
+        Assert.assertNull(mapper.map(new Position(100, 200, 1920, 1080)));
+
+        // with a reverse rotation of 90°, the client video is in landscape
+        mapper = new PositionMapper(0, 0, 1080, 1920, new Size(1080, 1920), 1);
+        Assert.assertTrue(mapper.accepts(new Size(1920, 1080)));
+        Assert.assertFalse(mapper.accepts(new Size(1080, 1920)));
+    }
+
+    @Test
+    public void testSameAsRotate() {
+        Random random = new Random(42);
+        Size videoSize = new Size(720, 1280);
+        for (int rotation = 0; rotation < 4; ++rotation) {
+            PositionMapper mapper = new PositionMapper(40, 60, 1000, 1800, videoSize, rotation);
+            Size clientSize = rotation % 2 == 0 ? videoSize : videoSize.rotate();
+            for (int i = 0; i < 1000; ++i) {
+                int x = random.nextInt(clientSize.getWidth() + 1);
+                int y = random.nextInt(clientSize.getHeight() + 1);
+                Position position = new Position(new Point(x, y), clientSize);
+                Point expected = mapWithRotate(position, 40, 60, 1000, 1800, videoSize, rotation);
+                Assert.assertEquals("rotation " + rotation + ", " + position, expected, mapper.map(position));
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.genymobile.scrcpy;
+
+import org.java_websocket.WebSocket;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SessionRegistryTest {
+
+    private static final class TestStream {
+        private final VideoSettings videoSettings;
+        private final AtomicInteger viewers = new AtomicInteger();
+        private volatile boolean released;
+
+        TestStream(VideoSettings videoSettings) {
+            this.videoSettings = videoSettings;
+        }
+    }
+
+    private static final class TestRenditions implements SessionRegistry.Renditions<TestStream> {
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicInteger released = new AtomicInteger();
+        private final AtomicReference<String> error = new AtomicReference<>();
+
+        private void fail(String message) {
+            error.compareAndSet(null, message);
+        }
+
+        @Override
+        public TestStream create(VideoSettings videoSettings) {
+            created.incrementAndGet();
+            return new TestStream(videoSettings);
+        }
+
+        @Override
+        public VideoSettings reconfigure(TestStream stream, VideoSettings videoSettings) {
+            stream.videoSettings.merge(videoSettings);
+            return stream.videoSettings;
+        }
+
+        @Override
+        public VideoSettings findNearest(VideoSettings videoSettings, Collection<VideoSettings> candidates) {
+            VideoSettings nearest = null;
+            int nearestDistance = Integer.MAX_VALUE;
+            for (VideoSettings candidate : candidates) {
+                int distance = Math.abs(candidate.getBitRate() - videoSettings.getBitRate());
+                if (distance < nearestDistance) {
+                    nearest = candidate;
+                    nearestDistance = distance;
+                }
+            }
+            return nearest;
+        }
+
+        @Override
+        public void join(TestStream stream, WebSocket webSocket) {
+            if (stream.released) {
+                fail("Joined a released stream");
+            }
+            stream.viewers.incrementAndGet();
+        }
+
+        @Override
+        public void leave(TestStream stream, WebSocket webSocket) {
+            if (stream.viewers.decrementAndGet() < 0) {
+                fail("Left a stream twice");
+            }
+        }
+
+        @Override
+        public void release(TestStream stream) {
+            if (stream.viewers.get() != 0) {
+                fail("Released a stream with " + stream.viewers.get() + " viewers");
+            }
+            if (stream.released) {
+                fail("Released a stream twice");
+            }
+            stream.released = true;
+            released.incrementAndGet();
+        }
+    }
+
+    private static VideoSettings createSettings(int bitRate) {
+        VideoSettings videoSettings = new VideoSettings();
+        videoSettings.setBounds(new Size(800, 800));
+        videoSettings.setBitRate(bitRate);
+        return videoSettings;
+    }
+
+    private static SessionRegistry.Session<TestStream> open(SessionRegistry<TestStream> registry) {
+        short id = registry.acquireId();
+        Assert.assertNotEquals(-1, id);
+        return new SessionRegistry.Session<>(id, null);
+    }
+
+    @Test
+    public void testAllocateIds() {
+        SessionRegistry<TestStream> registry = new SessionRegistry<>(new TestRenditions(), 4, 3);
+        Assert.assertEquals(1, registry.acquireId());
+        Assert.assertEquals(2, registry.acquireId());
+        SessionRegistry.Session<TestStream> session = new SessionRegistry.Session<>(registry.acquireId(), null);
+        Assert.assertEquals(3, session.getId());
+        Assert.assertEquals(-1, registry.acquireId());
+
+        registry.close(session);
+        // closing twice must not free the id twice
+        registry.close(session);
+        Assert.assertEquals(3, registry.acquireId());
+        Assert.assertEquals(-1, registry.acquireId());
+    }
+
+    @Test
+    public void testShareStreams() {
+        TestRenditions renditions = new TestRenditions();
+        SessionRegistry<TestStream> registry = new SessionRegistry<>(renditions, 4);
+        SessionRegistry.Session<TestStream> session1 = open(registry);
+        SessionRegistry.Session<TestStream> session2 = open(registry);
+
+        Assert.assertEquals(SessionRegistry.JOINED, registry.join(session1, createSettings(1000000)));
+        Assert.assertEquals(SessionRegistry.JOINED, registry.join(session2, createSettings(1000000)));
+        Assert.assertEquals(SessionRegistry.UNCHANGED, registry.join(session2, createSettings(1000000)));
+        Assert.assertSame(session1.getStream(), session2.getStream());
+        Assert.assertEquals(2, session1.getStream().viewers.get());
+        Assert.assertEquals(1, renditions.created.get());
+
+        TestStream stream = session1.getStream();
+        registry.close(session1);
+        Assert.assertFalse(stream.released);
+        registry.close(session2);
+        Assert.assertTrue(stream.released);
+        Assert.assertEquals(0, registry.getStreamCount());
+        Assert.assertNull(renditions.error.get());
+    }
+
+    @Test
+    public void testReconfigureWhenAlone() {
+        TestRenditions renditions = new TestRenditions();
+        SessionRegistry<TestStream> registry = new SessionRegistry<>(renditions, 4);
+        SessionRegistry.Session<TestStream> session = open(registry);
+
+        registry.join(session, createSettings(1000000));
+        TestStream stream = session.getStream();
+        Assert.assertEquals(SessionRegistry.RECONFIGURED, registry.join(session, createSettings(2000000)));
+        Assert.assertSame(stream, session.getStream());
+        Assert.assertEquals(2000000, stream.videoSettings.getBitRate());
+        Assert.assertEquals(1, registry.getStreamCount());
+
+        // the stream is found by its new settings
+        SessionRegistry.Session<TestStream> other = open(registry);
+        Assert.assertEquals(SessionRegistry.JOINED, registry.join(other, createSettings(2000000)));
+        Assert.assertSame(stream, other.getStream());
+        Assert.assertEquals(1, renditions.created.get());
+    }
+
+    @Test
+    public void testJoinNearestWhenFull() {
+        TestRenditions renditions = new TestRenditions();
+        SessionRegistry<TestStream> registry = new SessionRegistry<>(renditions, 2);
+        SessionRegistry.Session<TestStream> session1 = open(registry);
+        SessionRegistry.Session<TestStream> session2 = open(registry);
+        SessionRegistry.Session<TestStream> session3 = open(registry);
+
+        registry.join(session1, createSettings(1000000));
+        registry.join(session2, createSettings(4000000));
+        Assert.assertEquals(SessionRegistry.JOINED, registry.join(session3, createSettings(3000000)));
+        Assert.assertSame(session2.getStream(), session3.getStream());
+        Assert.assertEquals(2, renditions.created.get());
+
+        // the nearest stream is the current one: the client must not leave and join it again
+        TestStream stream = session3.getStream();
+        Assert.assertEquals(SessionRegistry.UNCHANGED, registry.join(session3, createSettings(5000000)));
+        Assert.assertSame(stream, session3.getStream());
+        Assert.assertEquals(2, stream.viewers.get());
+        Assert.assertEquals(4000000, stream.videoSettings.getBitRate());
+
+        // the viewers count of the stream is unchanged: it is released by its last client
+        registry.close(session2);
+        Assert.assertFalse(stream.released);
+        registry.close(session3);
+        Assert.assertTrue(stream.released);
+        Assert.assertEquals(2, renditions.created.get());
+        Assert.assertNull(renditions.error.get());
+    }
+
+    @Test
+    public void testLatencyProbeOnSharedStream() {
+        TestRenditions renditions = new TestRenditions();
+        SessionRegistry<TestStream> registry = new SessionRegistry<>(renditions, 4);
+        SessionRegistry.Session<TestStream> session1 = open(registry);
+        SessionRegistry.Session<TestStream> session2 = open(registry);
+        registry.join(session1, createSettings(1000000));
+        registry.join(session2, createSettings(1000000));
+
+        // not reconfigured in place: the other client would receive the probe
+        VideoSettings probe = createSettings(1000000);
+        probe.setLatencyProbe(true);
+        Assert.assertEquals(SessionRegistry.JOINED, registry.join(session2, probe));
+        Assert.assertNotSame(session1.getStream(), session2.getStream());
+        Assert.assertFalse(session1.getStream().videoSettings.getLatencyProbe());
+        Assert.assertTrue(session2.getStream().videoSettings.getLatencyProbe());
+        Assert.assertEquals(2, renditions.created.get());
+    }
+
+    @Test
+    public void testNearestHasSameFrameFormat() {
+        SessionRegistry<TestStream> registry = new SessionRegistry<>(new TestRenditions(), 1);
+        SessionRegistry.Session<TestStream> session1 = open(registry);
+        SessionRegistry.Session<TestStream> session2 = open(registry);
+        VideoSettings probe = createSettings(1000000);
+        probe.setLatencyProbe(true);
+        registry.join(session1, probe);
+
+        // the only stream sends the latency probe, which the client did not request
+        Assert.assertEquals(SessionRegistry.REJECTED, registry.join(session2, createSettings(1000000)));
+        Assert.assertNull(session2.getStream());
+    }
+
+    @Test
+    public void testRejectWhenNoNearest() {
+        SessionRegistry<TestStream> registry = new SessionRegistry<>(new TestRenditions(), 0);
+        SessionRegistry.Session<TestStream> session = open(registry);
+        Assert.assertEquals(SessionRegistry.REJECTED, registry.join(session, createSettings(1000000)));
+        Assert.assertNull(session.getStream());
+    }
+
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        final int threadCount = 8;
+        final int iterations = 2000;
+        final int maxSessions = 64;
+        final TestRenditions renditions = new TestRenditions();
+        final SessionRegistry<TestStream> registry = new SessionRegistry<>(renditions, 3, maxSessions);
+        final Set<Short> liveIds = ConcurrentHashMap.newKeySet();
+        final AtomicInteger opened = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; ++t) {
+            final long seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < iterations; ++i) {
+                        short id = registry.acquireId();
+                        if (id == -1) {
+                            renditions.fail("No id available");
+                            return;
+                        }
+                        if (!liveIds.add(id)) {
+                            renditions.fail("Duplicate id " + id);
+                            return;
+                        }
+                        opened.incrementAndGet();
+                        SessionRegistry.Session<TestStream> session = new SessionRegistry.Session<>(id, null);
+                        int joins = random.nextInt(4);
+                        for (int j = 0; j < joins; ++j) {
+                            // few distinct settings, so that the sessions share, switch and reconfigure the streams
+                            registry.join(session, createSettings(1000000 * (1 + random.nextInt(5))));
+                            TestStream stream = session.getStream();
+                            if (stream != null && stream.released) {
+                                renditions.fail("Watching a released stream");
+                            }
+                        }
+                        // the id must be removed before it may be reused
+                        liveIds.remove(id);
+                        registry.close(session);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertNull(renditions.error.get());
+        Assert.assertEquals(threadCount * iterations, opened.get());
+        Assert.assertEquals(0, registry.getStreamCount());
+        Assert.assertEquals(renditions.created.get(), renditions.released.get());
+
+        // all the ids have been released
+        Set<Short> ids = new HashSet<>();
+        for (int i = 0; i < maxSessions; ++i) {
+            Assert.assertTrue(ids.add(registry.acquireId()));
+        }
+        Assert.assertEquals(-1, registry.acquireId());
+        List<TestStream> streams = registry.getStreams();
+        Assert.assertTrue(streams.isEmpty());
+    }
+}
@@ -0,0 +1,87 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpscRingTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityNotPowerOfTwo() {
+        new SpscRing<Integer>(6);
+    }
+
+    @Test
+    public void testFifo() {
+        SpscRing<Integer> ring = new SpscRing<>(4);
+        Assert.assertTrue(ring.isEmpty());
+        Assert.assertNull(ring.poll());
+
+        Assert.assertTrue(ring.offer(1));
+        Assert.assertTrue(ring.offer(2));
+        Assert.assertTrue(ring.offer(3));
+        Assert.assertEquals(3, ring.size());
+
+        Assert.assertEquals(1, (int) ring.poll());
+        Assert.assertEquals(2, (int) ring.poll());
+        Assert.assertEquals(3, (int) ring.poll());
+        Assert.assertNull(ring.poll());
+        Assert.assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testFull() {
+        SpscRing<Integer> ring = new SpscRing<>(2);
+        Assert.assertTrue(ring.offer(1));
+        Assert.assertTrue(ring.offer(2));
+        Assert.assertFalse(ring.offer(3));
+        Assert.assertEquals(2, ring.size());
+
+        Assert.assertEquals(1, (int) ring.poll());
+        Assert.assertTrue(ring.offer(3));
+        Assert.assertEquals(2, (int) ring.poll());
+        Assert.assertEquals(3, (int) ring.poll());
+    }
+
+    @Test
+    public void testWrapAround() {
+        SpscRing<Integer> ring = new SpscRing<>(4);
+        for (int i = 0; i < 100; ++i) {
+            Assert.assertTrue(ring.offer(i));
+            Assert.assertTrue(ring.offer(-i));
+            Assert.assertEquals(i, (int) ring.poll());
+            Assert.assertEquals(-i, (int) ring.poll());
+        }
+        Assert.assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducerConsumer() throws InterruptedException {
+        final int count = 1_000_000;
+        final SpscRing<Integer> ring = new SpscRing<>(64);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    while (!ring.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        int expected = 0;
+        while (expected < count) {
+            Integer value = ring.poll();
+            if (value == null) {
+                Thread.yield();
+                continue;
+            }
+            // no element lost, duplicated or reordered
+            Assert.assertEquals(expected, (int) value);
+            ++expected;
+        }
+        producer.join();
+        Assert.assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,105 @@
+package com.genymobile.scrcpy;
+
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.Framedata;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class VideoPacketTest {
+
+    private static void assertFramedAsWebSocket(int payloadSize) {
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; ++i) {
+            payload[i] = (byte) i;
+        }
+
+        Draft_6455 draft = new Draft_6455();
+        List<Framedata> frames = draft.createFrames(ByteBuffer.wrap(payload), false);
+        Assert.assertEquals(1, frames.size());
+        ByteBuffer expected = draft.createBinaryFrame(frames.get(0));
+
+        VideoPacket packet = VideoPacket.copyOf(ByteBuffer.wrap(payload), 0);
+        Assert.assertEquals(expected, packet.getFrame());
+        Assert.assertEquals(ByteBuffer.wrap(payload), packet.getData());
+        Assert.assertEquals(payloadSize, packet.getSize());
+    }
+
+    @Test
+    public void testFrameHeader() {
+        assertFramedAsWebSocket(0);
+        assertFramedAsWebSocket(125); // 7-bit length
+        assertFramedAsWebSocket(126); // 16-bit length
+        assertFramedAsWebSocket(0xffff);
+        assertFramedAsWebSocket(0x10000); // 64-bit length
+    }
+
+    @Test
+    public void testIndependentViews() {
+        VideoPacket packet = VideoPacket.copyOf(ByteBuffer.wrap(new byte[]{1, 2, 3}), 0);
+        ByteBuffer view = packet.getData();
+        view.get();
+        Assert.assertEquals(2, view.remaining());
+        Assert.assertEquals(3, packet.getData().remaining());
+        Assert.assertTrue(view.isReadOnly());
+    }
+
+    @Test
+    public void testRefCount() {
+        VideoPacket packet = VideoPacket.copyOf(ByteBuffer.allocate(4), 0);
+        Assert.assertEquals(1, packet.getRefCount());
+        packet.retain();
+        Assert.assertEquals(2, packet.getRefCount());
+        packet.release();
+        packet.release();
+        Assert.assertEquals(0, packet.getRefCount());
+        try {
+            packet.release();
+            Assert.fail("Released too many times");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBufferReturnedToPoolOnLastRelease() {
+        BufferPool pool = new BufferPool(false);
+        VideoPacket packet = VideoPacket.copyOf(null, ByteBuffer.allocate(100), 0, pool);
+        packet.retain();
+        packet.release();
+        Assert.assertEquals(0, pool.getFreeBytes());
+        packet.release();
+        Assert.assertEquals(1024, pool.getFreeBytes());
+
+        // reused by the next packet
+        VideoPacket next = VideoPacket.copyOf(null, ByteBuffer.allocate(200), 0, pool);
+        Assert.assertEquals(1, pool.getAllocations());
+        Assert.assertEquals(1, pool.getReuses());
+        Assert.assertEquals(200, next.getSize());
+        next.release();
+    }
+
+    @Test
+    public void testDetachedBufferNotRecycled() {
+        BufferPool pool = new BufferPool(false);
+        VideoPacket packet = VideoPacket.copyOf(null, ByteBuffer.allocate(100), 0, pool);
+        packet.detach();
+        packet.release();
+        Assert.assertEquals(0, pool.getFreeBytes());
+    }
+
+    @Test
+    public void testDirectBuffer() {
+        BufferPool pool = new BufferPool(true);
+        byte[] payload = {1, 2, 3, 4};
+        VideoPacket packet = VideoPacket.copyOf(ByteBuffer.wrap(new byte[]{0}), ByteBuffer.wrap(payload), 0, pool);
+        ByteBuffer data = packet.getData();
+        Assert.assertTrue(data.isDirect());
+        byte[] content = new byte[data.remaining()];
+        data.get(content);
+        Assert.assertArrayEquals(new byte[]{0, 1, 2, 3, 4}, content);
+        packet.release();
+    }
+}
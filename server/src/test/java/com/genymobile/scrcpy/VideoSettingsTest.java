@@ -0,0 +1,169 @@
+package com.genymobile.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VideoSettingsTest {
+
+    private static final Size DISPLAY_SIZE = new Size(1080, 1920);
+
+    private static VideoSettings createSettings(int width, int height, int bitRate) {
+        VideoSettings videoSettings = new VideoSettings();
+        videoSettings.setBounds(new Size(width, height));
+        videoSettings.setBitRate(bitRate);
+        return videoSettings;
+    }
+
+    @Test
+    public void testCopy() {
+        VideoSettings videoSettings = createSettings(800, 800, 4000000);
+        videoSettings.setDisplayId(1);
+        videoSettings.setMaxFps(30);
+
+        VideoSettings copy = videoSettings.copy();
+        Assert.assertEquals(videoSettings, copy);
+        Assert.assertEquals(videoSettings.hashCode(), copy.hashCode());
+
+        copy.setBitRate(2000000);
+        Assert.assertNotEquals(videoSettings, copy);
+        Assert.assertEquals(4000000, videoSettings.getBitRate());
+    }
+
+    @Test
+    public void testSerializeFrameMetaFlags() {
+        VideoSettings videoSettings = createSettings(800, 800, 4000000);
+        videoSettings.setLatencyProbe(true);
+
+        VideoSettings parsed = VideoSettings.fromByteArray(videoSettings.toByteArray());
+        Assert.assertTrue(parsed.getLatencyProbe());
+        Assert.assertFalse(parsed.getSendFrameMeta());
+        Assert.assertEquals(videoSettings, parsed);
+
+        videoSettings.setLatencyProbe(false);
+        videoSettings.setSendFrameMeta(true);
+        parsed = VideoSettings.fromByteArray(videoSettings.toByteArray());
+        Assert.assertFalse(parsed.getLatencyProbe());
+        Assert.assertTrue(parsed.getSendFrameMeta());
+    }
+
+    @Test
+    public void testSameFrameFormat() {
+        VideoSettings videoSettings = createSettings(800, 800, 4000000);
+        VideoSettings other = createSettings(400, 400, 1000000);
+        Assert.assertTrue(videoSettings.hasSameFrameFormat(other));
+
+        other.setLatencyProbe(true);
+        Assert.assertFalse(videoSettings.hasSameFrameFormat(other));
+        other.setLatencyProbe(false);
+        other.setSendFrameMeta(true);
+        Assert.assertFalse(videoSettings.hasSameFrameFormat(other));
+    }
+
+    @Test
+    public void testMergeLatencyProbe() {
+        VideoSettings videoSettings = createSettings(800, 800, 4000000);
+        VideoSettings newSettings = videoSettings.copy();
+        newSettings.setLatencyProbe(true);
+
+        VideoSettingsDiff diff = videoSettings.merge(newSettings);
+        Assert.assertTrue(diff.contains(VideoSettingsDiff.LATENCY_PROBE));
+        Assert.assertTrue(diff.hasFrameFormatChanges());
+        // the codec config must be sent again with the new header
+        Assert.assertFalse(diff.hasLiveChanges());
+        Assert.assertTrue(diff.requiresRestart());
+        Assert.assertTrue(videoSettings.getLatencyProbe());
+    }
+
+    @Test
+    public void testDistanceToIdenticalSettings() {
+        VideoSettings a = createSettings(720, 1280, 4000000);
+        VideoSettings b = createSettings(720, 1280, 4000000);
+        Assert.assertEquals(0, a.distanceTo(b, DISPLAY_SIZE), 0);
+    }
+
+    @Test
+    public void testDistanceToIsSymmetric() {
+        VideoSettings a = createSettings(720, 1280, 4000000);
+        VideoSettings b = createSettings(1080, 1920, 8000000);
+        Assert.assertEquals(a.distanceTo(b, DISPLAY_SIZE), b.distanceTo(a, DISPLAY_SIZE), 1e-9);
+    }
+
+    @Test
+    public void testDistanceToNearestRendition() {
+        VideoSettings requested = createSettings(720, 1280, 4000000);
+        VideoSettings low = createSettings(480, 864, 2000000);
+        VideoSettings high = createSettings(1080, 1920, 8000000);
+        VideoSettings similar = createSettings(720, 1280, 6000000);
+
+        double toLow = requested.distanceTo(low, DISPLAY_SIZE);
+        double toHigh = requested.distanceTo(high, DISPLAY_SIZE);
+        double toSimilar = requested.distanceTo(similar, DISPLAY_SIZE);
+        Assert.assertTrue(toSimilar < toLow);
+        Assert.assertTrue(toSimilar < toHigh);
+    }
+
+    @Test
+    public void testDistanceToBoundsLargerThanDisplay() {
+        // without bounds, or with bounds larger than the display, the video has the display size
+        VideoSettings unbounded = new VideoSettings();
+        unbounded.setBitRate(4000000);
+        VideoSettings large = createSettings(4000, 4000, 4000000);
+        VideoSettings nativeSize = createSettings(1080, 1920, 4000000);
+
+        Assert.assertEquals(0, unbounded.distanceTo(large, DISPLAY_SIZE), 1e-9);
+        Assert.assertEquals(0, unbounded.distanceTo(nativeSize, DISPLAY_SIZE), 1e-9);
+        // half the area
+        VideoSettings half = createSettings(540, 1920, 4000000);
+        Assert.assertEquals(1, unbounded.distanceTo(half, DISPLAY_SIZE), 1e-9);
+    }
+
+    @Test
+    public void testMergeWithoutChanges() {
+        VideoSettings videoSettings = createSettings(800, 800, 4000000);
+        VideoSettingsDiff diff = videoSettings.merge(videoSettings.copy());
+        Assert.assertTrue(diff.isEmpty());
+        Assert.assertFalse(diff.hasLiveChanges());
+        Assert.assertFalse(diff.requiresRestart());
+    }
+
+    @Test
+    public void testMergeLiveChanges() {
+        VideoSettings videoSettings = createSettings(800, 800, 4000000);
+        VideoSettings newSettings = videoSettings.copy();
+        newSettings.setBitRate(2000000);
+        newSettings.setMaxFps(30);
+
+        VideoSettingsDiff diff = videoSettings.merge(newSettings);
+        Assert.assertTrue(diff.contains(VideoSettingsDiff.BIT_RATE));
+        Assert.assertTrue(diff.contains(VideoSettingsDiff.MAX_FPS));
+        Assert.assertTrue(diff.hasLiveChanges());
+        Assert.assertFalse(diff.hasProjectionChanges());
+        Assert.assertFalse(diff.hasFrameFormatChanges());
+        Assert.assertFalse(diff.requiresRestart());
+        Assert.assertEquals(newSettings, videoSettings);
+    }
+
+    @Test
+    public void testMergeRestartChanges() {
+        VideoSettings videoSettings = createSettings(800, 800, 4000000);
+
+        VideoSettings newSettings = videoSettings.copy();
+        newSettings.setBounds(new Size(1280, 720));
+        newSettings.setBitRate(2000000);
+        VideoSettingsDiff diff = videoSettings.merge(newSettings);
+        Assert.assertTrue(diff.contains(VideoSettingsDiff.BOUNDS));
+        Assert.assertTrue(diff.hasLiveChanges());
+        Assert.assertTrue(diff.requiresRestart());
+
+        newSettings = videoSettings.copy();
+        newSettings.setEncoderName("OMX.google.h264.encoder");
+        diff = videoSettings.merge(newSettings);
+        Assert.assertTrue(diff.contains(VideoSettingsDiff.ENCODER_NAME));
+        Assert.assertFalse(diff.hasLiveChanges());
+        Assert.assertTrue(diff.requiresRestart());
+
+        newSettings = videoSettings.copy();
+        newSettings.setLockedVideoOrientation(1);
+        Assert.assertTrue(videoSettings.merge(newSettings).requiresRestart());
+    }
+}
@@ -0,0 +1,153 @@
+package com.genymobile.scrcpy;
+
+import android.media.MediaCodec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class WebSocketSenderTest {
+
+    private static VideoPacket createPacket(int flags) {
+        ByteBuffer data = ByteBuffer.allocate(64);
+        // the packet carries its creation time, to measure the latency on reception
+        data.putLong(0, System.nanoTime());
+        return VideoPacket.copyOf(data, flags);
+    }
+
+    private static long getMaxLatencyMs(FakeWebSocket webSocket) {
+        List<byte[]> received = webSocket.getReceived();
+        List<Long> receptionTimes = webSocket.getReceptionTimes();
+        long max = 0;
+        for (int i = 0; i < received.size(); ++i) {
+            long sentTime = ByteBuffer.wrap(received.get(i)).getLong();
+            max = Math.max(max, receptionTimes.get(i) - sentTime);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(max);
+    }
+
+    @Test
+    public void testDropUntilKeyFrame() {
+        WebSocketSender sender = new WebSocketSender(new FakeWebSocket().get(), 4);
+        // not started, so nothing is consumed
+
+        Assert.assertTrue(sender.offer(createPacket(MediaCodec.BUFFER_FLAG_CODEC_CONFIG)));
+        Assert.assertTrue(sender.offer(createPacket(MediaCodec.BUFFER_FLAG_KEY_FRAME)));
+        Assert.assertTrue(sender.offer(createPacket(0)));
+        Assert.assertTrue(sender.offer(createPacket(0)));
+        Assert.assertEquals(4, sender.getQueueSize());
+
+        // full, the client is lagging
+        Assert.assertFalse(sender.offer(createPacket(0)));
+        Assert.assertEquals(1, sender.getDroppedPackets());
+
+        // no more frames until the next key frame
+        Assert.assertFalse(sender.offer(createPacket(0)));
+        Assert.assertEquals(2, sender.getDroppedPackets());
+
+        // the key frame replaces the stale frames, but the codec config is kept
+        Assert.assertTrue(sender.offer(createPacket(MediaCodec.BUFFER_FLAG_KEY_FRAME)));
+        Assert.assertEquals(2, sender.getQueueSize());
+        Assert.assertEquals(5, sender.getDroppedPackets());
+
+        Assert.assertTrue(sender.offer(createPacket(0)));
+        Assert.assertEquals(3, sender.getQueueSize());
+    }
+
+    @Test
+    public void testBufferedBytes() {
+        WebSocketSender sender = new WebSocketSender(new FakeWebSocket().get(), 4);
+        Assert.assertEquals(0, sender.getBufferedBytes());
+
+        sender.offer(createPacket(MediaCodec.BUFFER_FLAG_CODEC_CONFIG));
+        sender.offer(createPacket(MediaCodec.BUFFER_FLAG_KEY_FRAME));
+        sender.offer(createPacket(0));
+        Assert.assertEquals(3 * 64, sender.getBufferedBytes());
+
+        // the pending frames are dropped, only the config and the new key frame remain
+        sender.offer(createPacket(0));
+        sender.offer(createPacket(MediaCodec.BUFFER_FLAG_KEY_FRAME));
+        Assert.assertEquals(2 * 64, sender.getBufferedBytes());
+
+        sender.stop();
+        Assert.assertEquals(0, sender.getBufferedBytes());
+    }
+
+    @Test
+    public void testNewClientWaitsForKeyFrame() {
+        WebSocketSender sender = new WebSocketSender(new FakeWebSocket().get(), 4);
+        Assert.assertTrue(sender.isWaitingForKeyFrame());
+
+        // joined in the middle of a GOP, these frames could not be decoded
+        Assert.assertFalse(sender.offer(createPacket(0)));
+        Assert.assertTrue(sender.offer(createPacket(MediaCodec.BUFFER_FLAG_CODEC_CONFIG)));
+        Assert.assertFalse(sender.offer(createPacket(0)));
+        Assert.assertTrue(sender.isWaitingForKeyFrame());
+
+        Assert.assertTrue(sender.offer(createPacket(MediaCodec.BUFFER_FLAG_KEY_FRAME)));
+        Assert.assertFalse(sender.isWaitingForKeyFrame());
+        Assert.assertTrue(sender.offer(createPacket(0)));
+        Assert.assertEquals(3, sender.getQueueSize());
+    }
+
+    @Test
+    public void testReplay() {
+        WebSocketSender sender = new WebSocketSender(new FakeWebSocket().get(), 2);
+        List<VideoPacket> gop = Arrays.asList(createPacket(MediaCodec.BUFFER_FLAG_CODEC_CONFIG), createPacket(MediaCodec.BUFFER_FLAG_KEY_FRAME),
+                createPacket(0), createPacket(0), createPacket(0));
+        sender.replay(gop);
+        Assert.assertFalse(sender.isWaitingForKeyFrame());
+        Assert.assertEquals(5, sender.getQueueSize());
+
+        // the replayed packets do not count in the capacity
+        Assert.assertTrue(sender.offer(createPacket(0)));
+        Assert.assertTrue(sender.offer(createPacket(0)));
+        Assert.assertFalse(sender.offer(createPacket(0)));
+        Assert.assertEquals(7, sender.getQueueSize());
+    }
+
+    @Test
+    public void testSlowClientDoesNotDelayOthers() throws InterruptedException {
+        final int packetCount = 120;
+        final long slowSendDelayMs = 100;
+
+        FakeWebSocket slow = new FakeWebSocket(slowSendDelayMs);
+        FakeWebSocket fast1 = new FakeWebSocket();
+        FakeWebSocket fast2 = new FakeWebSocket();
+        WebSocketSender[] senders = {
+                new WebSocketSender(slow.get()), new WebSocketSender(fast1.get()), new WebSocketSender(fast2.get()),
+        };
+        for (WebSocketSender sender : senders) {
+            sender.start();
+        }
+
+        // simulate the encoder, at 200 fps with a key frame every 40 packets
+        for (int i = 0; i < packetCount; ++i) {
+            VideoPacket packet = createPacket(i % 40 == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            for (WebSocketSender sender : senders) {
+                sender.offer(packet);
+            }
+            Thread.sleep(5);
+        }
+
+        for (int i = 0; i < 100 && (senders[1].getQueueSize() > 0 || senders[2].getQueueSize() > 0); ++i) {
+            Thread.sleep(10);
+        }
+        for (WebSocketSender sender : senders) {
+            sender.stop();
+        }
+
+        Assert.assertEquals(packetCount, fast1.getReceived().size());
+        Assert.assertEquals(packetCount, fast2.getReceived().size());
+        // a single write to the slow client takes longer than the worst latency of the other clients
+        Assert.assertTrue(getMaxLatencyMs(fast1) < slowSendDelayMs);
+        Assert.assertTrue(getMaxLatencyMs(fast2) < slowSendDelayMs);
+
+        Assert.assertTrue(senders[0].getDroppedPackets() > 0);
+        Assert.assertTrue(slow.getReceived().size() < packetCount);
+    }
+}